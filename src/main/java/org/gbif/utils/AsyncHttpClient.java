@@ -0,0 +1,536 @@
+/*
+ * Copyright 2021 Global Biodiversity Information Facility (GBIF)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.utils;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.MalformedURLException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Date;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
+import java.util.function.Supplier;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.StatusLine;
+import org.apache.http.auth.UsernamePasswordCredentials;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.HttpDelete;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.client.utils.DateUtils;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.nio.IOControl;
+import org.apache.http.nio.client.methods.AsyncByteConsumer;
+import org.apache.http.nio.client.methods.HttpAsyncMethods;
+import org.apache.http.protocol.HttpContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A non-blocking counterpart of {@link HttpClient} wrapping Apache's CloseableHttpAsyncClient.
+ * <p/>
+ * All requests are executed on the NIO reactor threads of the underlying client and never block the caller.
+ * The returned futures are completed on an I/O thread, so dependent stages doing heavy work should be run with one
+ * of the {@code *Async} methods of {@link CompletableFuture} on a separate executor.
+ * Cancelling a returned future aborts the underlying exchange.
+ */
+@SuppressWarnings("unused")
+public class AsyncHttpClient implements Closeable {
+
+  private static final Logger LOG = LoggerFactory.getLogger(AsyncHttpClient.class);
+
+  private final CloseableHttpAsyncClient client;
+  private final RequestConfig defaultRequestConfig;
+  private HttpHost proxy;
+  private RequestConfig customRequestConfig;
+  private RateLimits rateLimits;
+
+  public AsyncHttpClient(CloseableHttpAsyncClient client, RequestConfig defaultRequestConfig) {
+    this.client = client;
+    this.defaultRequestConfig = defaultRequestConfig;
+  }
+
+  /**
+   * Executes a generic DELETE request.
+   */
+  public CompletableFuture<ExtendedResponse> delete(
+      String url, UsernamePasswordCredentials credentials) {
+    LOG.info("HTTP DELETE to {}", url);
+    try {
+      HttpDelete delete = new HttpDelete(url);
+      return execute(delete, HttpClient.buildContext(url, credentials));
+    } catch (URISyntaxException | IllegalArgumentException e) {
+      return failed(e);
+    }
+  }
+
+  /**
+   * Downloads something via HTTP GET to the provided file.
+   */
+  public CompletableFuture<StatusLine> download(String url, File downloadTo) {
+    try {
+      return download(new URL(url), downloadTo);
+    } catch (MalformedURLException e) {
+      return failed(e);
+    }
+  }
+
+  public CompletableFuture<StatusLine> download(URI url, File downloadTo) {
+    try {
+      return download(url.toURL(), downloadTo);
+    } catch (MalformedURLException | IllegalArgumentException e) {
+      return failed(e);
+    }
+  }
+
+  public CompletableFuture<String> download(URL url) {
+    return get(url.toString()).thenApply(ExtendedResponse::getContent);
+  }
+
+  public CompletableFuture<StatusLine> download(URL url, File downloadTo) {
+    return downloadIfModifiedSince(url, null, downloadTo);
+  }
+
+  /**
+   * @return future of the body content if changed or null if unmodified since lastModified
+   */
+  public CompletableFuture<String> downloadIfChanged(URL url, Date lastModified) {
+    final HttpGet get;
+    try {
+      get = new HttpGet(url.toString());
+    } catch (IllegalArgumentException e) {
+      return failed(e);
+    }
+    get.addHeader(HttpHeaders.IF_MODIFIED_SINCE, DateUtils.formatDate(lastModified));
+    return execute(get, HttpClientContext.create())
+        .thenApply(
+            resp -> {
+              if (resp.getStatusCode() == HttpStatus.SC_NOT_MODIFIED) {
+                LOG.debug("Content not modified since last request");
+              }
+              return resp.getContent();
+            });
+  }
+
+  /**
+   * Downloads a URL to a file if its modified since the date given.
+   * Updates the last modified file property to reflect the server's last-modified HTTP header.
+   *
+   * @param downloadTo file to download to
+   * @return future of true if changed or false if unmodified since lastModified
+   */
+  public CompletableFuture<Boolean> downloadIfChanged(URL url, Date lastModified, File downloadTo) {
+    return downloadIfModifiedSince(url, lastModified, downloadTo).thenApply(HttpUtil::success);
+  }
+
+  /**
+   * Downloads a URL to a local file using conditional GET, i.e. only downloading the file again if it has been changed
+   * since the last download.
+   */
+  public CompletableFuture<Boolean> downloadIfChanged(URL url, File downloadTo) {
+    return downloadIfModifiedSince(url, downloadTo).thenApply(HttpUtil::success);
+  }
+
+  /**
+   * Downloads a URL to a file if its modified since the date given.
+   * Updates the last modified file property to reflect the server's last-modified HTTP header.
+   * The response body is written to the file by the I/O threads while it is received.
+   *
+   * @param downloadTo file to download to
+   * @return future of the final status line
+   */
+  public CompletableFuture<StatusLine> downloadIfModifiedSince(
+      final URL url, final Date lastModified, final File downloadTo) {
+    final HttpGet get;
+    try {
+      get = new HttpGet(url.toString());
+    } catch (IllegalArgumentException e) {
+      return failed(e);
+    }
+    applyConfig(get, customRequestConfig);
+
+    // prepare conditional GET request headers
+    if (lastModified != null) {
+      get.addHeader(HttpHeaders.IF_MODIFIED_SINCE, DateUtils.formatDate(lastModified));
+      LOG.debug("Conditional GET: {}", DateUtils.formatDate(lastModified));
+    }
+
+    return throttled(get, () -> downloadIfModifiedSince(get, url, downloadTo));
+  }
+
+  private CompletableFuture<StatusLine> downloadIfModifiedSince(
+      HttpGet get, URL url, File downloadTo) {
+    CompletableFuture<StatusLine> result = new CompletableFuture<>();
+    Future<StatusLine> future =
+        client.execute(
+            HttpAsyncMethods.create(get),
+            new FileConsumer(downloadTo),
+            HttpClientContext.create(),
+            new CompletingCallback<StatusLine>(result) {
+              @Override
+              public void completed(StatusLine status) {
+                if (status.getStatusCode() == HttpStatus.SC_NOT_MODIFIED) {
+                  LOG.debug("Content not modified since last request");
+                } else if (HttpUtil.success(status)) {
+                  LOG.debug("Successfully downloaded {} to {}", url, downloadTo.getAbsolutePath());
+                } else {
+                  LOG.error(
+                      "Downloading {} to {} failed!: {}",
+                      url,
+                      downloadTo.getAbsolutePath(),
+                      status.getStatusCode());
+                }
+                super.completed(status);
+              }
+            });
+    return propagateCancel(result, future);
+  }
+
+  /**
+   * Downloads a URL to a local file using conditional GET, i.e. only downloading the file again if it has been changed
+   * on the filesystem since the last download.
+   *
+   * @param url URL to download
+   * @param downloadTo file to download into and used to get the last modified date from
+   */
+  public CompletableFuture<StatusLine> downloadIfModifiedSince(
+      final URL url, final File downloadTo) {
+    Date lastModified = null;
+    if (downloadTo.exists()) {
+      lastModified = new Date(downloadTo.lastModified());
+    }
+    return downloadIfModifiedSince(url, lastModified, downloadTo);
+  }
+
+  public CompletableFuture<ExtendedResponse> get(String url) {
+    return get(url, customRequestConfig, null, null);
+  }
+
+  public CompletableFuture<ExtendedResponse> get(String url, RequestConfig requestConfig) {
+    return get(url, requestConfig, null, null);
+  }
+
+  public CompletableFuture<ExtendedResponse> get(
+      String url, UsernamePasswordCredentials credentials) {
+    return get(url, customRequestConfig, null, credentials);
+  }
+
+  public CompletableFuture<ExtendedResponse> get(
+      String url, Map<String, String> headers, UsernamePasswordCredentials credentials) {
+    return get(url, customRequestConfig, headers, credentials);
+  }
+
+  public CompletableFuture<ExtendedResponse> get(
+      String url,
+      RequestConfig requestConfig,
+      Map<String, String> headers,
+      UsernamePasswordCredentials credentials) {
+    try {
+      HttpGet get = new HttpGet(url);
+      addHeaders(get, headers);
+      return execute(get, requestConfig, HttpClient.buildContext(url, credentials));
+    } catch (URISyntaxException | IllegalArgumentException e) {
+      return failed(e);
+    }
+  }
+
+  /**
+   * Executes a generic POST request.
+   */
+  public CompletableFuture<ExtendedResponse> post(String uri, HttpEntity requestEntity) {
+    return post(uri, null, null, requestEntity);
+  }
+
+  public CompletableFuture<ExtendedResponse> post(
+      String uri, UsernamePasswordCredentials credentials, HttpEntity requestEntity) {
+    return post(uri, null, credentials, requestEntity);
+  }
+
+  public CompletableFuture<ExtendedResponse> post(
+      String uri, Map<String, String> headers, UsernamePasswordCredentials credentials) {
+    return post(uri, headers, credentials, null);
+  }
+
+  public CompletableFuture<ExtendedResponse> post(
+      String uri,
+      Map<String, String> headers,
+      UsernamePasswordCredentials credentials,
+      HttpEntity requestEntity) {
+    try {
+      HttpPost post = new HttpPost(uri);
+      addHeaders(post, headers);
+      if (requestEntity != null) {
+        post.setEntity(requestEntity);
+      }
+      return execute(post, HttpClient.buildContext(uri, credentials));
+    } catch (URISyntaxException | IllegalArgumentException e) {
+      return failed(e);
+    }
+  }
+
+  private CompletableFuture<ExtendedResponse> execute(
+      HttpRequestBase request, HttpContext context) {
+    return execute(request, customRequestConfig, context);
+  }
+
+  /**
+   * Executes the request buffering the response body, which is decoded to a String using UTF-8 unless the response
+   * declares a different charset.
+   */
+  private CompletableFuture<ExtendedResponse> execute(
+      HttpRequestBase request, RequestConfig requestConfig, HttpContext context) {
+    applyConfig(request, requestConfig);
+    return throttled(request, () -> send(request, context));
+  }
+
+  private CompletableFuture<ExtendedResponse> send(HttpRequestBase request, HttpContext context) {
+    CompletableFuture<ExtendedResponse> result = new CompletableFuture<>();
+    Future<HttpResponse> future =
+        client.execute(
+            request,
+            context,
+            new FutureCallback<HttpResponse>() {
+              @Override
+              public void completed(HttpResponse response) {
+                try {
+                  // Adding a default charset in case it is not found
+                  result.complete(ExtendedResponse.read(response, StandardCharsets.UTF_8));
+                } catch (IOException | RuntimeException e) {
+                  result.completeExceptionally(e);
+                }
+              }
+
+              @Override
+              public void failed(Exception ex) {
+                result.completeExceptionally(ex);
+              }
+
+              @Override
+              public void cancelled() {
+                result.cancel(false);
+              }
+            });
+    return propagateCancel(result, future);
+  }
+
+  /**
+   * Starts the exchange once the rate limit of the target host allows it, without blocking.
+   */
+  private <T> CompletableFuture<T> throttled(
+      HttpRequestBase request, Supplier<CompletableFuture<T>> exchange) {
+    String host = request.getURI().getHost();
+    if (rateLimits == null || host == null) {
+      return exchange.get();
+    }
+    return rateLimits.schedule(host, exchange);
+  }
+
+  private static void applyConfig(HttpRequestBase request, RequestConfig requestConfig) {
+    // proxy and timeouts
+    if (requestConfig != null) {
+      request.setConfig(requestConfig);
+    }
+  }
+
+  private static void addHeaders(HttpRequestBase request, Map<String, String> headers) {
+    if (headers != null) {
+      for (Map.Entry<String, String> header : headers.entrySet()) {
+        request.addHeader(
+            StringUtils.trimToEmpty(header.getKey()), StringUtils.trimToEmpty(header.getValue()));
+      }
+    }
+  }
+
+  /**
+   * Aborts the underlying exchange when the caller cancels the returned future.
+   */
+  private static <T> CompletableFuture<T> propagateCancel(
+      CompletableFuture<T> result, Future<?> exchange) {
+    result.whenComplete(
+        (r, e) -> {
+          if (result.isCancelled()) {
+            exchange.cancel(true);
+          }
+        });
+    return result;
+  }
+
+  private static <T> CompletableFuture<T> failed(Exception e) {
+    CompletableFuture<T> result = new CompletableFuture<>();
+    result.completeExceptionally(e);
+    return result;
+  }
+
+  public CloseableHttpAsyncClient getClient() {
+    return client;
+  }
+
+  public HttpHost getProxy() {
+    return proxy;
+  }
+
+  public void setProxy(String proxy) throws IOException {
+    setProxy(proxy != null ? HttpUtil.getHost(proxy) : null);
+  }
+
+  public void setProxy(HttpHost proxy) {
+    if (proxy != null) {
+      this.proxy = proxy;
+      this.customRequestConfig =
+          RequestConfig.copy(defaultRequestConfig).setProxy(this.proxy).build();
+    } else {
+      this.proxy = null;
+      this.customRequestConfig = null;
+    }
+  }
+
+  public void removeProxy() {
+    this.proxy = null;
+    this.customRequestConfig = null;
+  }
+
+  public RateLimits getRateLimits() {
+    return rateLimits;
+  }
+
+  /**
+   * Delays requests to each host until its agreed request rate allows them, scheduling them instead of blocking.
+   * Only the first request of an exchange is limited, not the requests following redirects.
+   */
+  public void setRateLimits(RateLimits rateLimits) {
+    this.rateLimits = rateLimits;
+  }
+
+  /**
+   * Shuts down the I/O reactor and closes all pooled connections.
+   */
+  @Override
+  public void close() throws IOException {
+    client.close();
+  }
+
+  /**
+   * Completes a CompletableFuture from the callback of the Apache client.
+   */
+  private static class CompletingCallback<T> implements FutureCallback<T> {
+
+    private final CompletableFuture<T> result;
+
+    CompletingCallback(CompletableFuture<T> result) {
+      this.result = result;
+    }
+
+    @Override
+    public void completed(T value) {
+      result.complete(value);
+    }
+
+    @Override
+    public void failed(Exception ex) {
+      result.completeExceptionally(ex);
+    }
+
+    @Override
+    public void cancelled() {
+      result.cancel(false);
+    }
+  }
+
+  /**
+   * Streams a successful response body into a temporary file next to the target as it arrives, which replaces the
+   * target once complete. Nothing is written for unsuccessful responses, and failed or cancelled downloads leave the
+   * target untouched.
+   */
+  private static class FileConsumer extends AsyncByteConsumer<StatusLine> {
+
+    private final File downloadTo;
+    private StatusLine status;
+    private Date serverModified;
+    private File tmp;
+    private RandomAccessFile file;
+    private FileChannel channel;
+
+    FileConsumer(File downloadTo) {
+      this.downloadTo = downloadTo;
+    }
+
+    @Override
+    protected void onResponseReceived(HttpResponse response) throws IOException {
+      status = response.getStatusLine();
+      // write to file only when download succeeds
+      if (HttpUtil.success(status) && response.getEntity() != null) {
+        Header modHeader = response.getFirstHeader(HttpHeaders.LAST_MODIFIED);
+        if (modHeader != null) {
+          serverModified = DateUtils.parseDate(modHeader.getValue());
+        }
+        // the target is only replaced once the download is complete
+        tmp = FileTransfer.tempFileFor(downloadTo);
+        file = new RandomAccessFile(tmp, "rw");
+        channel = file.getChannel();
+      }
+    }
+
+    @Override
+    protected void onByteReceived(ByteBuffer buf, IOControl ioctrl) throws IOException {
+      if (channel != null) {
+        while (buf.hasRemaining()) {
+          channel.write(buf);
+        }
+      }
+    }
+
+    @Override
+    @SuppressWarnings("ResultOfMethodCallIgnored")
+    protected StatusLine buildResult(HttpContext context) throws IOException {
+      if (file != null) {
+        file.close();
+        FileTransfer.moveOver(tmp, downloadTo);
+        // update last modified of file with HTTP header date from server
+        if (serverModified != null) {
+          downloadTo.setLastModified(serverModified.getTime());
+        }
+      }
+      return status;
+    }
+
+    @Override
+    protected void releaseResources() {
+      IOUtils.closeQuietly(file);
+      // left behind only by failed or cancelled downloads
+      FileUtils.deleteQuietly(tmp);
+    }
+  }
+}
@@ -0,0 +1,44 @@
+/*
+ * Copyright 2021 Global Biodiversity Information Facility (GBIF)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.utils;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.protocol.HttpContext;
+
+/**
+ * Keeps connections alive as long as the {@code Keep-Alive: timeout} of the server says, but never longer than a
+ * maximum, which also applies when the server sends no timeout.
+ */
+class CappedKeepAliveStrategy implements ConnectionKeepAliveStrategy {
+
+  private final long maxKeepAlive;
+
+  /**
+   * @param maxKeepAlive in milliseconds
+   */
+  CappedKeepAliveStrategy(long maxKeepAlive) {
+    this.maxKeepAlive = maxKeepAlive;
+  }
+
+  @Override
+  public long getKeepAliveDuration(HttpResponse response, HttpContext context) {
+    long duration =
+        DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response, context);
+    return duration >= 0 ? Math.min(duration, maxKeepAlive) : maxKeepAlive;
+  }
+}
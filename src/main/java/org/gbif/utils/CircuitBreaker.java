@@ -0,0 +1,210 @@
+/*
+ * Copyright 2021 Global Biodiversity Information Facility (GBIF)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.utils;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * The circuit breaker of a single host. It opens when the failure rate in a rolling window crosses a threshold, fails
+ * requests fast while open, and after a while lets a few probe requests through, half open, to decide whether to
+ * close again.
+ * <p/>
+ * The rolling window is a ring of one second buckets, each packing its epoch, failure and request counts into a
+ * single long, so recording an outcome is a compare and set without locks.
+ */
+public class CircuitBreaker {
+
+  /**
+   * The states of a breaker.
+   */
+  public enum State {
+    /** Requests pass, outcomes are counted. */
+    CLOSED,
+    /** Requests fail fast. */
+    OPEN,
+    /** A limited number of probe requests pass to test whether the host recovered. */
+    HALF_OPEN
+  }
+
+  private static final long BUCKET_MILLIS = 1_000;
+  private static final long COUNT_MASK = (1L << 24) - 1;
+  private static final long EPOCH_MASK = (1L << 16) - 1;
+
+  private final String host;
+  private final CircuitBreakers config;
+  private final AtomicLongArray buckets;
+  private final AtomicReference<State> state = new AtomicReference<>(State.CLOSED);
+  private final AtomicLong openedAt = new AtomicLong();
+  private final AtomicInteger probePermits = new AtomicInteger();
+  private final AtomicInteger probeSuccesses = new AtomicInteger();
+
+  CircuitBreaker(String host, CircuitBreakers config) {
+    this.host = host;
+    this.config = config;
+    this.buckets = new AtomicLongArray(config.getWindowSeconds());
+  }
+
+  /**
+   * @return the host and port the breaker protects, like {@code api.gbif.org:443}
+   */
+  public String getHost() {
+    return host;
+  }
+
+  public State getState() {
+    return state.get();
+  }
+
+  /**
+   * @return the failure rate in the rolling window, 0 without requests
+   */
+  public double getFailureRate() {
+    long[] counts = counts(System.currentTimeMillis());
+    return counts[1] == 0 ? 0 : (double) counts[0] / counts[1];
+  }
+
+  /**
+   * @return the number of requests in the rolling window
+   */
+  public long getRequestCount() {
+    return counts(System.currentTimeMillis())[1];
+  }
+
+  /**
+   * @return true if a request may be sent, as a probe when half open
+   */
+  public boolean allowRequest() {
+    State current = state.get();
+    if (current == State.OPEN) {
+      if (System.currentTimeMillis() - openedAt.get() < config.getOpenMillis()) {
+        return false;
+      }
+      if (state.compareAndSet(State.OPEN, State.HALF_OPEN)) {
+        probeSuccesses.set(0);
+        probePermits.set(config.getHalfOpenProbes());
+      }
+      current = state.get();
+    }
+    if (current == State.HALF_OPEN) {
+      return probePermits.getAndUpdate(p -> Math.max(0, p - 1)) > 0;
+    }
+    return true;
+  }
+
+  public void recordSuccess() {
+    record(false);
+    if (state.get() == State.HALF_OPEN
+        && probeSuccesses.incrementAndGet() >= config.getHalfOpenProbes()
+        && state.compareAndSet(State.HALF_OPEN, State.CLOSED)) {
+      // start over, the failures before opening are history
+      for (int i = 0; i < buckets.length(); i++) {
+        buckets.set(i, 0);
+      }
+    }
+  }
+
+  public void recordFailure() {
+    long[] counts = record(true);
+    State current = state.get();
+    if (current == State.HALF_OPEN) {
+      open(State.HALF_OPEN);
+    } else if (current == State.CLOSED
+        && counts[1] >= config.getMinimumRequests()
+        && counts[0] >= config.getFailureRateThreshold() * counts[1]) {
+      open(State.CLOSED);
+    }
+  }
+
+  /**
+   * Gives back the permit of an allowed request which was never sent, so a probe rejected locally doesn't hold the
+   * breaker half open.
+   */
+  void releaseRequest() {
+    if (state.get() == State.HALF_OPEN) {
+      probePermits.incrementAndGet();
+    }
+  }
+
+  private void open(State from) {
+    openedAt.set(System.currentTimeMillis());
+    state.compareAndSet(from, State.OPEN);
+  }
+
+  /**
+   * Counts an outcome in the bucket of the current second, resetting the bucket if it is left from an earlier turn
+   * of the ring.
+   *
+   * @return the failures and requests in the window including the outcome
+   */
+  private long[] record(boolean failure) {
+    long now = System.currentTimeMillis();
+    long epoch = (now / BUCKET_MILLIS) & EPOCH_MASK;
+    int index = (int) ((now / BUCKET_MILLIS) % buckets.length());
+    long prev;
+    long next;
+    do {
+      prev = buckets.get(index);
+      long failures = epochOf(prev) == epoch ? failuresOf(prev) : 0;
+      long requests = epochOf(prev) == epoch ? requestsOf(prev) : 0;
+      next =
+          pack(
+              epoch,
+              Math.min(failures + (failure ? 1 : 0), COUNT_MASK),
+              Math.min(requests + 1, COUNT_MASK));
+    } while (!buckets.compareAndSet(index, prev, next));
+    return counts(now);
+  }
+
+  private long[] counts(long now) {
+    long current = now / BUCKET_MILLIS;
+    long failures = 0;
+    long requests = 0;
+    for (int i = 0; i < buckets.length(); i++) {
+      long bucket = buckets.get(i);
+      // only buckets of the last turn of the ring count
+      long age = (current - epochOf(bucket)) & EPOCH_MASK;
+      if (bucket != 0 && age < buckets.length()) {
+        failures += failuresOf(bucket);
+        requests += requestsOf(bucket);
+      }
+    }
+    return new long[] {failures, requests};
+  }
+
+  private static long pack(long epoch, long failures, long requests) {
+    return epoch << 48 | failures << 24 | requests;
+  }
+
+  private static long epochOf(long bucket) {
+    return bucket >>> 48;
+  }
+
+  private static long failuresOf(long bucket) {
+    return (bucket >>> 24) & COUNT_MASK;
+  }
+
+  private static long requestsOf(long bucket) {
+    return bucket & COUNT_MASK;
+  }
+
+  @Override
+  public String toString() {
+    return "CircuitBreaker{host=" + host + ", state=" + state.get() + "}";
+  }
+}
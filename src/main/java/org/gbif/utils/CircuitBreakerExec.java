@@ -0,0 +1,72 @@
+/*
+ * Copyright 2021 Global Biodiversity Information Facility (GBIF)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.utils;
+
+import java.io.IOException;
+
+import org.apache.http.HttpException;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpExecutionAware;
+import org.apache.http.client.methods.HttpRequestWrapper;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.impl.execchain.ClientExecChain;
+
+/**
+ * Guards every attempt of a request, including retries and redirects, with the circuit breaker of its target host.
+ * Requests the client rejects itself, over the concurrency or rate limit of the host, count neither as success nor as
+ * failure.
+ */
+class CircuitBreakerExec implements ClientExecChain {
+
+  private final ClientExecChain next;
+  private final CircuitBreakers breakers;
+
+  CircuitBreakerExec(ClientExecChain next, CircuitBreakers breakers) {
+    this.next = next;
+    this.breakers = breakers;
+  }
+
+  @Override
+  public CloseableHttpResponse execute(
+      HttpRoute route,
+      HttpRequestWrapper request,
+      HttpClientContext context,
+      HttpExecutionAware execAware)
+      throws IOException, HttpException {
+    CircuitBreaker breaker = breakers.get(Instrumentation.name(route));
+    if (!breaker.allowRequest()) {
+      throw new CircuitBreakerOpenException(breaker.getHost());
+    }
+    final CloseableHttpResponse response;
+    try {
+      response = next.execute(route, request, context, execAware);
+    } catch (ConcurrencyLimitExceededException | RateLimitExceededException e) {
+      // rejected by the client itself, the host wasn't asked
+      breaker.releaseRequest();
+      throw e;
+    } catch (IOException | HttpException | RuntimeException e) {
+      breaker.recordFailure();
+      throw e;
+    }
+    if (response.getStatusLine().getStatusCode() < 500) {
+      breaker.recordSuccess();
+    } else {
+      breaker.recordFailure();
+    }
+    return response;
+  }
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright 2021 Global Biodiversity Information Facility (GBIF)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.utils;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The {@link CircuitBreaker}s of the hosts a client talks to, created on first use with the same settings, so a
+ * hanging host fails fast instead of tying up threads and pooled connections needed for healthy hosts.
+ * <p/>
+ * Create them with {@link #custom()} and set them with {@link ClientBuilder#setCircuitBreakers(CircuitBreakers)}.
+ * Responses with a 5xx status and I/O errors including timeouts count as failures. Requests to an open breaker fail
+ * with a {@link CircuitBreakerOpenException}.
+ */
+public class CircuitBreakers {
+
+  private final double failureRateThreshold;
+  private final int minimumRequests;
+  private final int windowSeconds;
+  private final long openMillis;
+  private final int halfOpenProbes;
+  private final Map<String, CircuitBreaker> breakers = new ConcurrentHashMap<>();
+
+  private CircuitBreakers(Builder builder) {
+    this.failureRateThreshold = builder.failureRateThreshold;
+    this.minimumRequests = builder.minimumRequests;
+    this.windowSeconds = builder.windowSeconds;
+    this.openMillis = builder.openMillis;
+    this.halfOpenProbes = builder.halfOpenProbes;
+  }
+
+  /**
+   * @return a builder, by default opening at a 50% failure rate of at least 20 requests in 10 seconds, for 30
+   * seconds, and closing after 3 successful probes
+   */
+  public static Builder custom() {
+    return new Builder();
+  }
+
+  /**
+   * @param host the host and port, like {@code api.gbif.org:443}
+   * @return the breaker of the host, created if needed
+   */
+  public CircuitBreaker get(String host) {
+    return breakers.computeIfAbsent(host, h -> new CircuitBreaker(h, this));
+  }
+
+  /**
+   * @param host the host and port, like {@code api.gbif.org:443}
+   * @return the state of the breaker of the host, closed if it has none yet
+   */
+  public CircuitBreaker.State getState(String host) {
+    CircuitBreaker breaker = breakers.get(host);
+    return breaker != null ? breaker.getState() : CircuitBreaker.State.CLOSED;
+  }
+
+  /**
+   * @return the breakers by host
+   */
+  public Map<String, CircuitBreaker> getAll() {
+    return Collections.unmodifiableMap(breakers);
+  }
+
+  double getFailureRateThreshold() {
+    return failureRateThreshold;
+  }
+
+  int getMinimumRequests() {
+    return minimumRequests;
+  }
+
+  int getWindowSeconds() {
+    return windowSeconds;
+  }
+
+  long getOpenMillis() {
+    return openMillis;
+  }
+
+  int getHalfOpenProbes() {
+    return halfOpenProbes;
+  }
+
+  /**
+   * Builds {@link CircuitBreakers}.
+   */
+  public static class Builder {
+
+    private double failureRateThreshold = 0.5;
+    private int minimumRequests = 20;
+    private int windowSeconds = 10;
+    private long openMillis = 30_000;
+    private int halfOpenProbes = 3;
+
+    private Builder() {}
+
+    /**
+     * @param threshold the failure rate opening a breaker, e.g. 0.5 for 50%
+     * @param minimumRequests the requests needed in the window before the rate is considered
+     */
+    public Builder setFailureRateThreshold(double threshold, int minimumRequests) {
+      this.failureRateThreshold = threshold;
+      this.minimumRequests = minimumRequests;
+      return this;
+    }
+
+    /**
+     * @param seconds the length of the rolling window of outcomes, at most 3600
+     */
+    public Builder setWindow(int seconds) {
+      if (seconds < 1 || seconds > 3600) {
+        throw new IllegalArgumentException("Window must be 1 to 3600 seconds: " + seconds);
+      }
+      this.windowSeconds = seconds;
+      return this;
+    }
+
+    /**
+     * @param duration how long an opened breaker fails requests before probing the host
+     */
+    public Builder setOpenDuration(long duration, TimeUnit unit) {
+      this.openMillis = unit.toMillis(duration);
+      return this;
+    }
+
+    /**
+     * @param probes the requests let through when half open, all of which must succeed to close the breaker
+     */
+    public Builder setHalfOpenProbes(int probes) {
+      this.halfOpenProbes = Math.max(1, probes);
+      return this;
+    }
+
+    public CircuitBreakers build() {
+      return new CircuitBreakers(this);
+    }
+  }
+}
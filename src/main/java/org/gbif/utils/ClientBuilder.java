@@ -0,0 +1,508 @@
+/*
+ * Copyright 2021 Global Biodiversity Information Facility (GBIF)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.utils;
+
+import org.gbif.utils.cache.HttpCache;
+import org.gbif.utils.metrics.MetricsRegistry;
+
+import java.io.InterruptedIOException;
+import java.net.ConnectException;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.function.UnaryOperator;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLException;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequestInterceptor;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.config.ConnectionConfig;
+import org.apache.http.config.Registry;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.config.SocketConfig;
+import org.apache.http.conn.UnsupportedSchemeException;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultHttpRequestRetryHandler;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.conn.DefaultSchemePortResolver;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.impl.execchain.ClientExecChain;
+import org.apache.http.ssl.SSLContexts;
+
+/**
+ * A fluent builder for an {@link HttpClient} exposing the pool, timeout and socket settings the
+ * {@link HttpUtil} factory methods use defaults for, for example to allow many connections to our own API while
+ * limiting those to external publishers:
+ * <pre>{@code
+ * HttpClient client = HttpClient.builder()
+ *     .setConnectTimeout(5_000)
+ *     .setSocketTimeout(60_000)
+ *     .setMaxConnections(500)
+ *     .setMaxPerRoute(4)
+ *     .setMaxPerRoute("https://api.gbif.org", 200)
+ *     .setTcpNoDelay(true)
+ *     .build();
+ * }</pre>
+ * Unless set otherwise the client has the settings of {@link HttpUtil#newDefaultMultithreadedClient()}.
+ */
+public class ClientBuilder {
+
+  private int connectTimeout = 60_000;
+  private int socketTimeout = 60_000;
+  private int connectionRequestTimeout = 60_000;
+  private Integer maxConnections = 250;
+  private Integer maxPerRoute = 5;
+  private final Map<HttpRoute, Integer> maxPerHost = new LinkedHashMap<>();
+  private SocketConfig.Builder socketConfig = SocketConfig.custom();
+  private int bufferSize;
+  private String userAgent;
+  private final List<HttpRequestInterceptor> firstInterceptors = new ArrayList<>();
+  private final List<HttpRequestInterceptor> lastInterceptors = new ArrayList<>();
+  private ConnectionReuse connectionReuse = ConnectionReuse.DEFAULT;
+  private MetricsRegistry metrics;
+  private final List<HttpEventListener> listeners = new ArrayList<>();
+  private HttpCache responseCache;
+  private boolean coalesceRequests;
+  private RetryPolicy retryPolicy;
+  private CircuitBreakers circuitBreakers;
+  private ConcurrencyLimits concurrencyLimits;
+  private RateLimits rateLimits;
+  private HedgingPolicy hedgingPolicy;
+  private boolean singlethreaded;
+
+  ClientBuilder() {}
+
+  /**
+   * Sets the connect, socket and connection request timeouts at once.
+   *
+   * @param timeout in milliseconds
+   */
+  public ClientBuilder setTimeout(int timeout) {
+    this.connectTimeout = timeout;
+    this.socketTimeout = timeout;
+    this.connectionRequestTimeout = timeout;
+    return this;
+  }
+
+  /**
+   * @param connectTimeout the time to establish a connection in milliseconds
+   */
+  public ClientBuilder setConnectTimeout(int connectTimeout) {
+    this.connectTimeout = connectTimeout;
+    return this;
+  }
+
+  /**
+   * @param socketTimeout the maximum time of inactivity between two data packets in milliseconds
+   */
+  public ClientBuilder setSocketTimeout(int socketTimeout) {
+    this.socketTimeout = socketTimeout;
+    return this;
+  }
+
+  /**
+   * @param connectionRequestTimeout the time to wait for a connection from the pool in milliseconds
+   */
+  public ClientBuilder setConnectionRequestTimeout(int connectionRequestTimeout) {
+    this.connectionRequestTimeout = connectionRequestTimeout;
+    return this;
+  }
+
+  /**
+   * @param maxConnections maximum allowed connections in total
+   */
+  public ClientBuilder setMaxConnections(int maxConnections) {
+    this.maxConnections = maxConnections;
+    return this;
+  }
+
+  /**
+   * @param maxPerRoute maximum allowed connections per route unless set for the host
+   */
+  public ClientBuilder setMaxPerRoute(int maxPerRoute) {
+    this.maxPerRoute = maxPerRoute;
+    return this;
+  }
+
+  /**
+   * Sets the maximum connections to a single host. Doesn't apply to requests sent through a proxy.
+   *
+   * @param host the scheme, host and optional port, like {@code https://api.gbif.org}
+   * @param max maximum allowed connections to the host
+   */
+  public ClientBuilder setMaxPerRoute(String host, int max) {
+    return setMaxPerRoute(HttpHost.create(host), max);
+  }
+
+  /**
+   * Sets the maximum connections to a single host. Doesn't apply to requests sent through a proxy.
+   *
+   * @param host the host, with an http or https scheme
+   * @param max maximum allowed connections to the host
+   */
+  public ClientBuilder setMaxPerRoute(HttpHost host, int max) {
+    maxPerHost.put(route(host), max);
+    return this;
+  }
+
+  /**
+   * Replaces the socket options of new connections, including any set before with the other socket methods.
+   */
+  public ClientBuilder setSocketConfig(SocketConfig socketConfig) {
+    this.socketConfig = SocketConfig.copy(socketConfig);
+    return this;
+  }
+
+  /**
+   * @param tcpNoDelay true to disable Nagle's algorithm, sending small requests without delay
+   */
+  public ClientBuilder setTcpNoDelay(boolean tcpNoDelay) {
+    socketConfig.setTcpNoDelay(tcpNoDelay);
+    return this;
+  }
+
+  /**
+   * @param soKeepAlive true to send TCP keep-alive probes on idle connections
+   */
+  public ClientBuilder setSoKeepAlive(boolean soKeepAlive) {
+    socketConfig.setSoKeepAlive(soKeepAlive);
+    return this;
+  }
+
+  /**
+   * @param sendBufferSize the socket send buffer size in bytes, 0 for the system default
+   */
+  public ClientBuilder setSendBufferSize(int sendBufferSize) {
+    socketConfig.setSndBufSize(sendBufferSize);
+    return this;
+  }
+
+  /**
+   * @param receiveBufferSize the socket receive buffer size in bytes, 0 for the system default
+   */
+  public ClientBuilder setReceiveBufferSize(int receiveBufferSize) {
+    socketConfig.setRcvBufSize(receiveBufferSize);
+    return this;
+  }
+
+  /**
+   * @param bufferSize the size of the buffer of each connection in bytes, 0 for the default of 8KB
+   */
+  public ClientBuilder setBufferSize(int bufferSize) {
+    this.bufferSize = bufferSize;
+    return this;
+  }
+
+  /**
+   * @param userAgent replacing the default GBIF user agent describing the client settings
+   */
+  public ClientBuilder setUserAgent(String userAgent) {
+    this.userAgent = userAgent;
+    return this;
+  }
+
+  /**
+   * Adds an interceptor running before the standard ones, after any added before.
+   */
+  public ClientBuilder addInterceptorFirst(HttpRequestInterceptor interceptor) {
+    firstInterceptors.add(Objects.requireNonNull(interceptor));
+    return this;
+  }
+
+  /**
+   * Adds an interceptor running after the standard ones, after any added before.
+   */
+  public ClientBuilder addInterceptorLast(HttpRequestInterceptor interceptor) {
+    lastInterceptors.add(Objects.requireNonNull(interceptor));
+    return this;
+  }
+
+  /**
+   * @see HttpUtil#newMultithreadedClient(int, int, int, ConnectionReuse)
+   */
+  public ClientBuilder setConnectionReuse(ConnectionReuse connectionReuse) {
+    this.connectionReuse = Objects.requireNonNull(connectionReuse);
+    return this;
+  }
+
+  /**
+   * @see HttpUtil#newMultithreadedClient(int, int, int, MetricsRegistry, HttpEventListener...)
+   */
+  public ClientBuilder setMetrics(MetricsRegistry metrics) {
+    this.metrics = metrics;
+    return this;
+  }
+
+  /**
+   * @see HttpUtil#newMultithreadedClient(int, int, int, MetricsRegistry, HttpEventListener...)
+   */
+  public ClientBuilder addEventListener(HttpEventListener listener) {
+    listeners.add(Objects.requireNonNull(listener));
+    return this;
+  }
+
+  /**
+   * @see HttpClient#setResponseCache(HttpCache)
+   */
+  public ClientBuilder setResponseCache(HttpCache responseCache) {
+    this.responseCache = responseCache;
+    return this;
+  }
+
+  /**
+   * @see HttpClient#setCoalesceRequests(boolean)
+   */
+  public ClientBuilder setCoalesceRequests(boolean coalesceRequests) {
+    this.coalesceRequests = coalesceRequests;
+    return this;
+  }
+
+  /**
+   * Retries idempotent requests failing with transient errors with backoff, instead of the immediate retries of
+   * Apache HttpClient.
+   */
+  public ClientBuilder setRetryPolicy(RetryPolicy retryPolicy) {
+    this.retryPolicy = retryPolicy;
+    return this;
+  }
+
+  /**
+   * Fails requests to hosts with a high rolling failure rate fast, instead of waiting for them to time out.
+   *
+   * @see HttpClient#getCircuitBreakers()
+   */
+  public ClientBuilder setCircuitBreakers(CircuitBreakers circuitBreakers) {
+    this.circuitBreakers = circuitBreakers;
+    return this;
+  }
+
+  /**
+   * Adapts the number of concurrent requests to each host to its latency and errors, queueing or rejecting requests
+   * beyond it.
+   *
+   * @see HttpClient#getConcurrencyLimits()
+   */
+  public ClientBuilder setConcurrencyLimits(ConcurrencyLimits concurrencyLimits) {
+    this.concurrencyLimits = concurrencyLimits;
+    return this;
+  }
+
+  /**
+   * Holds requests to each host until its agreed request rate allows them, blocking the calling thread.
+   *
+   * @see HttpClient#getRateLimits()
+   */
+  public ClientBuilder setRateLimits(RateLimits rateLimits) {
+    this.rateLimits = rateLimits;
+    return this;
+  }
+
+  /**
+   * @see HttpClient#setHedgingPolicy(HedgingPolicy)
+   */
+  public ClientBuilder setHedgingPolicy(HedgingPolicy hedgingPolicy) {
+    this.hedgingPolicy = hedgingPolicy;
+    return this;
+  }
+
+  /**
+   * Keeps the pool limits of Apache HttpClient and describes the client as single threaded in the user agent.
+   */
+  ClientBuilder setSinglethreaded() {
+    this.singlethreaded = true;
+    return this;
+  }
+
+  public HttpClient build() {
+    RequestConfig defaultRequestConfig =
+        RequestConfig.custom()
+            .setSocketTimeout(socketTimeout)
+            .setConnectTimeout(connectTimeout)
+            .setConnectionRequestTimeout(connectionRequestTimeout)
+            .build();
+
+    SSLContext sslcontext = SSLContexts.createSystemDefault();
+
+    Instrumentation instrumentation =
+        metrics != null || !listeners.isEmpty() ? new Instrumentation(metrics, listeners) : null;
+    PoolingHttpClientConnectionManager connectionManager;
+    if (instrumentation != null) {
+      connectionManager =
+          new InstrumentedConnectionManager(
+              sslcontext, instrumentation, connectionReuse.getTimeToLive());
+    } else {
+      Registry<ConnectionSocketFactory> registry =
+          RegistryBuilder.<ConnectionSocketFactory>create()
+              .register("http", PlainConnectionSocketFactory.INSTANCE)
+              .register("https", new SSLConnectionSocketFactory(sslcontext))
+              .build();
+      connectionManager =
+          new PoolingHttpClientConnectionManager(
+              registry, null, null, null, connectionReuse.getTimeToLive(), TimeUnit.MILLISECONDS);
+    }
+    connectionManager.setDefaultConnectionConfig(
+        ConnectionConfig.custom()
+            .setCharset(StandardCharsets.UTF_8)
+            .setBufferSize(bufferSize)
+            .build());
+    connectionManager.setDefaultSocketConfig(socketConfig.build());
+    connectionManager.setValidateAfterInactivity(connectionReuse.getValidateAfterInactivity());
+    if (!singlethreaded) {
+      connectionManager.setMaxTotal(maxConnections);
+      connectionManager.setDefaultMaxPerRoute(maxPerRoute);
+    }
+    maxPerHost.forEach(connectionManager::setMaxPerRoute);
+
+    DecoratingBuilder builder = new DecoratingBuilder();
+    if (circuitBreakers != null) {
+      builder.decorators.add(exec -> new CircuitBreakerExec(exec, circuitBreakers));
+    }
+    if (rateLimits != null) {
+      builder.decorators.add(exec -> new RateLimitExec(exec, rateLimits));
+    }
+    if (concurrencyLimits != null) {
+      // inside the breakers and rate limits, so requests failing fast don't queue
+      builder.decorators.add(exec -> new ConcurrencyLimitExec(exec, concurrencyLimits));
+    }
+
+    // added first in reverse, so they run in the order they were added
+    for (int i = firstInterceptors.size() - 1; i >= 0; i--) {
+      builder.addInterceptorFirst(firstInterceptors.get(i));
+    }
+    lastInterceptors.forEach(builder::addInterceptorLast);
+    if (retryPolicy != null) {
+      builder
+          .addInterceptorLast(retryPolicy)
+          .setRetryHandler(retryPolicy)
+          .setServiceUnavailableRetryStrategy(retryPolicy);
+    } else if (circuitBreakers != null || concurrencyLimits != null || rateLimits != null) {
+      // the default retries, except of requests failed fast
+      builder.setRetryHandler(
+          new DefaultHttpRequestRetryHandler(
+              3,
+              false,
+              Arrays.asList(
+                  InterruptedIOException.class,
+                  UnknownHostException.class,
+                  ConnectException.class,
+                  SSLException.class,
+                  CircuitBreakerOpenException.class,
+                  ConcurrencyLimitExceededException.class,
+                  RateLimitExceededException.class)) {});
+    }
+    if (instrumentation != null) {
+      // first of all, to time the exchange from the start
+      builder.addInterceptorFirst(instrumentation);
+      builder.setRequestExecutor(new InstrumentedRequestExecutor(instrumentation));
+    }
+    if (connectionReuse.getMaxKeepAlive() >= 0) {
+      builder.setKeepAliveStrategy(new CappedKeepAliveStrategy(connectionReuse.getMaxKeepAlive()));
+    }
+    if (connectionReuse.getMaxIdleTime() > 0) {
+      // also closes connections past their time to live or keep-alive
+      builder
+          .evictExpiredConnections()
+          .evictIdleConnections(connectionReuse.getMaxIdleTime(), TimeUnit.MILLISECONDS);
+    }
+
+    CloseableHttpClient apacheHttpClient =
+        builder
+            // Retain compressed content, e.g. a tar.gz archive we download
+            .disableContentCompression()
+            .setRedirectStrategy(HttpUtil.newRedirectStrategy())
+            .setDefaultRequestConfig(defaultRequestConfig)
+            .setConnectionManager(connectionManager)
+            .setUserAgent(userAgent())
+            .build();
+
+    HttpClient client = new HttpClient(apacheHttpClient, defaultRequestConfig);
+    client.setResponseCache(responseCache);
+    client.setCoalesceRequests(coalesceRequests);
+    client.setCircuitBreakers(circuitBreakers);
+    client.setConcurrencyLimits(concurrencyLimits);
+    client.setRateLimits(rateLimits);
+    client.setHedgingPolicy(hedgingPolicy);
+    return client;
+  }
+
+  /**
+   * Wraps the protocol execution of every attempt of a request, inside the retry and redirect handling, with the
+   * decorators in the order they were added, the first one outermost.
+   */
+  private static class DecoratingBuilder extends HttpClientBuilder {
+
+    private final List<UnaryOperator<ClientExecChain>> decorators = new ArrayList<>();
+
+    @Override
+    protected ClientExecChain decorateProtocolExec(ClientExecChain protocolExec) {
+      ClientExecChain exec = protocolExec;
+      for (int i = decorators.size() - 1; i >= 0; i--) {
+        exec = decorators.get(i).apply(exec);
+      }
+      return exec;
+    }
+  }
+
+  private String userAgent() {
+    if (StringUtils.isNotEmpty(userAgent)) {
+      return userAgent;
+    } else if (singlethreaded) {
+      return String.format(
+          "%s/%s (Java/%s; S-%d; +https://www.gbif.org/)",
+          HttpUtil.GBIF_NAME, HttpUtil.GBIF_VERSION, HttpUtil.JAVA_VERSION, socketTimeout);
+    }
+    return String.format(
+        "%s/%s (Java/%s; M-%d-%d-%d; +https://www.gbif.org/)",
+        HttpUtil.GBIF_NAME,
+        HttpUtil.GBIF_VERSION,
+        HttpUtil.JAVA_VERSION,
+        socketTimeout,
+        maxConnections,
+        maxPerRoute);
+  }
+
+  /**
+   * @return the route the client plans for direct requests to the host
+   */
+  static HttpRoute route(HttpHost host) {
+    boolean secure = "https".equalsIgnoreCase(host.getSchemeName());
+    try {
+      HttpHost target =
+          host.getPort() > 0
+              ? host
+              : new HttpHost(
+                  host.getHostName(),
+                  DefaultSchemePortResolver.INSTANCE.resolve(host),
+                  host.getSchemeName());
+      return new HttpRoute(target, null, secure);
+    } catch (UnsupportedSchemeException e) {
+      throw new IllegalArgumentException("Unsupported scheme of host " + host, e);
+    }
+  }
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright 2021 Global Biodiversity Information Facility (GBIF)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.utils;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The adaptive limit of concurrent requests to a single host. The limit follows AIMD: every request answered in time
+ * while the limit is in use raises it additively, by one per limit worth of requests, and every failure, overload
+ * response or answer much slower than the host's recent best multiplies it down. Requests beyond the limit queue for
+ * a while and are rejected once the queue or the wait gets too long.
+ */
+public class ConcurrencyLimit {
+
+  private static final long BASELINE_WINDOW_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+  private final String host;
+  private final ConcurrencyLimits config;
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition available = lock.newCondition();
+  private double limit;
+  private int inFlight;
+  private int queued;
+  // the minimum latency of the previous and the current window
+  private long baseline = Long.MAX_VALUE;
+  private long windowMin = Long.MAX_VALUE;
+  private long windowStart = System.nanoTime();
+
+  ConcurrencyLimit(String host, ConcurrencyLimits config) {
+    this.host = host;
+    this.config = config;
+    this.limit = config.getInitialLimit();
+  }
+
+  /**
+   * @return the host and port the limit applies to, like {@code api.gbif.org:443}
+   */
+  public String getHost() {
+    return host;
+  }
+
+  /**
+   * @return the current number of concurrent requests allowed
+   */
+  public int getLimit() {
+    lock.lock();
+    try {
+      return (int) limit;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * @return the number of requests in flight
+   */
+  public int getInFlight() {
+    lock.lock();
+    try {
+      return inFlight;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Waits for the request to be allowed.
+   *
+   * @throws ConcurrencyLimitExceededException if the queue is full or the request waited too long
+   */
+  void acquire() throws ConcurrencyLimitExceededException, InterruptedIOException {
+    lock.lock();
+    try {
+      if (inFlight < (int) limit) {
+        inFlight++;
+        return;
+      }
+      if (queued >= config.getMaxQueued()) {
+        throw new ConcurrencyLimitExceededException(host, (int) limit);
+      }
+      queued++;
+      try {
+        long remaining = config.getMaxWaitNanos();
+        while (inFlight >= (int) limit) {
+          if (remaining <= 0) {
+            throw new ConcurrencyLimitExceededException(host, (int) limit);
+          }
+          remaining = available.awaitNanos(remaining);
+        }
+        inFlight++;
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Interrupted waiting for a request slot for " + host);
+      } finally {
+        queued--;
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Ends a request and adapts the limit to its outcome.
+   *
+   * @param latency the time to the response in nanoseconds
+   * @param failed true if the request failed or the host signalled overload
+   */
+  void release(long latency, boolean failed) {
+    lock.lock();
+    try {
+      inFlight--;
+      boolean slow = latency > config.getLatencyTolerance() * baseline(latency);
+      if (failed || slow) {
+        limit = Math.max(config.getMinLimit(), limit * config.getBackoffRatio());
+      } else if (inFlight + 1 >= limit / 2) {
+        // only grow while the limit is actually used
+        limit = Math.min(config.getMaxLimit(), limit + 1 / limit);
+      }
+      available.signalAll();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * @return the lowest latency seen recently, including the sample
+   */
+  private long baseline(long latency) {
+    long now = System.nanoTime();
+    if (now - windowStart > BASELINE_WINDOW_NANOS) {
+      baseline = windowMin;
+      windowMin = Long.MAX_VALUE;
+      windowStart = now;
+    }
+    windowMin = Math.min(windowMin, latency);
+    return Math.min(baseline, windowMin);
+  }
+
+  @Override
+  public String toString() {
+    return "ConcurrencyLimit{host=" + host + ", limit=" + getLimit() + "}";
+  }
+}
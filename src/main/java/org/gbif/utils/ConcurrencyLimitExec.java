@@ -0,0 +1,315 @@
+/*
+ * Copyright 2021 Global Biodiversity Information Facility (GBIF)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.utils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.http.Header;
+import org.apache.http.HeaderIterator;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpException;
+import org.apache.http.ProtocolVersion;
+import org.apache.http.StatusLine;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpExecutionAware;
+import org.apache.http.client.methods.HttpRequestWrapper;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.conn.EofSensorInputStream;
+import org.apache.http.conn.EofSensorWatcher;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.entity.HttpEntityWrapper;
+import org.apache.http.impl.execchain.ClientExecChain;
+
+/**
+ * Holds every attempt of a request to the concurrency limit of its target host until its response was read or
+ * closed, and feeds the time to the response and its outcome back into the limit.
+ */
+class ConcurrencyLimitExec implements ClientExecChain {
+
+  private static final int SC_TOO_MANY_REQUESTS = 429;
+
+  private final ClientExecChain next;
+  private final ConcurrencyLimits limits;
+
+  ConcurrencyLimitExec(ClientExecChain next, ConcurrencyLimits limits) {
+    this.next = next;
+    this.limits = limits;
+  }
+
+  @Override
+  public CloseableHttpResponse execute(
+      HttpRoute route,
+      HttpRequestWrapper request,
+      HttpClientContext context,
+      HttpExecutionAware execAware)
+      throws IOException, HttpException {
+    ConcurrencyLimit limit = limits.get(Instrumentation.name(route));
+    limit.acquire();
+    long start = System.nanoTime();
+    final CloseableHttpResponse response;
+    try {
+      response = next.execute(route, request, context, execAware);
+    } catch (IOException | HttpException | RuntimeException e) {
+      limit.release(System.nanoTime() - start, true);
+      throw e;
+    }
+
+    int status = response.getStatusLine().getStatusCode();
+    Permit permit =
+        new Permit(
+            limit, System.nanoTime() - start, status >= 500 || status == SC_TOO_MANY_REQUESTS);
+    HttpEntity entity = response.getEntity();
+    if (entity == null) {
+      permit.release();
+      return response;
+    }
+    response.setEntity(new ReleasingEntity(entity, permit));
+    return new ReleasingResponse(response, permit);
+  }
+
+  /**
+   * The slot of a request, released once.
+   */
+  private static class Permit implements EofSensorWatcher {
+
+    private final ConcurrencyLimit limit;
+    private final long latency;
+    private final boolean overload;
+    private final AtomicBoolean released = new AtomicBoolean();
+
+    Permit(ConcurrencyLimit limit, long latency, boolean overload) {
+      this.limit = limit;
+      this.latency = latency;
+      this.overload = overload;
+    }
+
+    void release() {
+      if (released.compareAndSet(false, true)) {
+        limit.release(latency, overload);
+      }
+    }
+
+    @Override
+    public boolean eofDetected(InputStream wrapped) {
+      release();
+      return true;
+    }
+
+    @Override
+    public boolean streamClosed(InputStream wrapped) {
+      release();
+      return true;
+    }
+
+    @Override
+    public boolean streamAbort(InputStream wrapped) {
+      release();
+      return true;
+    }
+  }
+
+  private static class ReleasingEntity extends HttpEntityWrapper {
+
+    private final Permit permit;
+
+    ReleasingEntity(HttpEntity entity, Permit permit) {
+      super(entity);
+      this.permit = permit;
+    }
+
+    @Override
+    public InputStream getContent() throws IOException {
+      return new EofSensorInputStream(wrappedEntity.getContent(), permit);
+    }
+
+    @Override
+    public void writeTo(OutputStream out) throws IOException {
+      try {
+        super.writeTo(out);
+      } finally {
+        permit.release();
+      }
+    }
+  }
+
+  /**
+   * Releases the slot when the response is closed without reading its content.
+   */
+  @SuppressWarnings("deprecation")
+  private static class ReleasingResponse implements CloseableHttpResponse {
+
+    private final CloseableHttpResponse response;
+    private final Permit permit;
+
+    ReleasingResponse(CloseableHttpResponse response, Permit permit) {
+      this.response = response;
+      this.permit = permit;
+    }
+
+    @Override
+    public void close() throws IOException {
+      try {
+        response.close();
+      } finally {
+        permit.release();
+      }
+    }
+
+    @Override
+    public StatusLine getStatusLine() {
+      return response.getStatusLine();
+    }
+
+    @Override
+    public void setStatusLine(StatusLine statusline) {
+      response.setStatusLine(statusline);
+    }
+
+    @Override
+    public void setStatusLine(ProtocolVersion ver, int code) {
+      response.setStatusLine(ver, code);
+    }
+
+    @Override
+    public void setStatusLine(ProtocolVersion ver, int code, String reason) {
+      response.setStatusLine(ver, code, reason);
+    }
+
+    @Override
+    public void setStatusCode(int code) {
+      response.setStatusCode(code);
+    }
+
+    @Override
+    public void setReasonPhrase(String reason) {
+      response.setReasonPhrase(reason);
+    }
+
+    @Override
+    public HttpEntity getEntity() {
+      return response.getEntity();
+    }
+
+    @Override
+    public void setEntity(HttpEntity entity) {
+      response.setEntity(entity);
+    }
+
+    @Override
+    public Locale getLocale() {
+      return response.getLocale();
+    }
+
+    @Override
+    public void setLocale(Locale loc) {
+      response.setLocale(loc);
+    }
+
+    @Override
+    public ProtocolVersion getProtocolVersion() {
+      return response.getProtocolVersion();
+    }
+
+    @Override
+    public boolean containsHeader(String name) {
+      return response.containsHeader(name);
+    }
+
+    @Override
+    public Header[] getHeaders(String name) {
+      return response.getHeaders(name);
+    }
+
+    @Override
+    public Header getFirstHeader(String name) {
+      return response.getFirstHeader(name);
+    }
+
+    @Override
+    public Header getLastHeader(String name) {
+      return response.getLastHeader(name);
+    }
+
+    @Override
+    public Header[] getAllHeaders() {
+      return response.getAllHeaders();
+    }
+
+    @Override
+    public void addHeader(Header header) {
+      response.addHeader(header);
+    }
+
+    @Override
+    public void addHeader(String name, String value) {
+      response.addHeader(name, value);
+    }
+
+    @Override
+    public void setHeader(Header header) {
+      response.setHeader(header);
+    }
+
+    @Override
+    public void setHeader(String name, String value) {
+      response.setHeader(name, value);
+    }
+
+    @Override
+    public void setHeaders(Header[] headers) {
+      response.setHeaders(headers);
+    }
+
+    @Override
+    public void removeHeader(Header header) {
+      response.removeHeader(header);
+    }
+
+    @Override
+    public void removeHeaders(String name) {
+      response.removeHeaders(name);
+    }
+
+    @Override
+    public HeaderIterator headerIterator() {
+      return response.headerIterator();
+    }
+
+    @Override
+    public HeaderIterator headerIterator(String name) {
+      return response.headerIterator(name);
+    }
+
+    @Override
+    public org.apache.http.params.HttpParams getParams() {
+      return response.getParams();
+    }
+
+    @Override
+    public void setParams(org.apache.http.params.HttpParams params) {
+      response.setParams(params);
+    }
+
+    @Override
+    public String toString() {
+      return response.toString();
+    }
+  }
+}
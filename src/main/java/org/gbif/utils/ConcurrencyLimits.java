@@ -0,0 +1,167 @@
+/*
+ * Copyright 2021 Global Biodiversity Information Facility (GBIF)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.utils;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The adaptive {@link ConcurrencyLimit}s of the hosts a client talks to, created on first use with the same
+ * settings, so the concurrency to each host settles near what it can serve without tuning the pool per host.
+ * <p/>
+ * Create them with {@link #custom()} and set them with
+ * {@link ClientBuilder#setConcurrencyLimits(ConcurrencyLimits)}. The limits apply in front of the connection pool,
+ * whose per route maximum remains the upper bound.
+ */
+public class ConcurrencyLimits {
+
+  private final int initialLimit;
+  private final int minLimit;
+  private final int maxLimit;
+  private final double backoffRatio;
+  private final double latencyTolerance;
+  private final int maxQueued;
+  private final long maxWaitNanos;
+  private final Map<String, ConcurrencyLimit> limits = new ConcurrentHashMap<>();
+
+  private ConcurrencyLimits(Builder builder) {
+    this.initialLimit = builder.initialLimit;
+    this.minLimit = builder.minLimit;
+    this.maxLimit = builder.maxLimit;
+    this.backoffRatio = builder.backoffRatio;
+    this.latencyTolerance = builder.latencyTolerance;
+    this.maxQueued = builder.maxQueued;
+    this.maxWaitNanos = builder.maxWaitNanos;
+  }
+
+  /**
+   * @return a builder, by default starting at 10 concurrent requests per host, between 1 and 200, backing off by 10%
+   * and treating answers more than 3 times slower than the recent best as overload, queueing up to 1000 requests for
+   * up to 10 seconds
+   */
+  public static Builder custom() {
+    return new Builder();
+  }
+
+  /**
+   * @param host the host and port, like {@code api.gbif.org:443}
+   * @return the limit of the host, created if needed
+   */
+  public ConcurrencyLimit get(String host) {
+    return limits.computeIfAbsent(host, h -> new ConcurrencyLimit(h, this));
+  }
+
+  /**
+   * @return the limits by host
+   */
+  public Map<String, ConcurrencyLimit> getAll() {
+    return Collections.unmodifiableMap(limits);
+  }
+
+  int getInitialLimit() {
+    return initialLimit;
+  }
+
+  int getMinLimit() {
+    return minLimit;
+  }
+
+  int getMaxLimit() {
+    return maxLimit;
+  }
+
+  double getBackoffRatio() {
+    return backoffRatio;
+  }
+
+  double getLatencyTolerance() {
+    return latencyTolerance;
+  }
+
+  int getMaxQueued() {
+    return maxQueued;
+  }
+
+  long getMaxWaitNanos() {
+    return maxWaitNanos;
+  }
+
+  /**
+   * Builds {@link ConcurrencyLimits}.
+   */
+  public static class Builder {
+
+    private int initialLimit = 10;
+    private int minLimit = 1;
+    private int maxLimit = 200;
+    private double backoffRatio = 0.9;
+    private double latencyTolerance = 3;
+    private int maxQueued = 1000;
+    private long maxWaitNanos = TimeUnit.SECONDS.toNanos(10);
+
+    private Builder() {}
+
+    /**
+     * @param initial the limit of a host before any request completed
+     * @param min the lowest the limit backs off to
+     * @param max the highest the limit grows to
+     */
+    public Builder setLimits(int initial, int min, int max) {
+      if (min < 1 || initial < min || max < initial) {
+        throw new IllegalArgumentException(
+            String.format(
+                "Limits must be 1 <= min <= initial <= max: %d %d %d", min, initial, max));
+      }
+      this.initialLimit = initial;
+      this.minLimit = min;
+      this.maxLimit = max;
+      return this;
+    }
+
+    /**
+     * @param ratio the factor applied to the limit on overload, e.g. 0.9
+     */
+    public Builder setBackoffRatio(double ratio) {
+      this.backoffRatio = ratio;
+      return this;
+    }
+
+    /**
+     * @param tolerance how many times slower than the lowest recent latency an answer may be before it counts as
+     * overload
+     */
+    public Builder setLatencyTolerance(double tolerance) {
+      this.latencyTolerance = tolerance;
+      return this;
+    }
+
+    /**
+     * @param maxQueued the requests waiting for a host at most, further ones are rejected right away
+     * @param maxWait the time a request waits at most before it is rejected
+     */
+    public Builder setQueue(int maxQueued, long maxWait, TimeUnit unit) {
+      this.maxQueued = maxQueued;
+      this.maxWaitNanos = unit.toNanos(maxWait);
+      return this;
+    }
+
+    public ConcurrencyLimits build() {
+      return new ConcurrencyLimits(this);
+    }
+  }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright 2021 Global Biodiversity Information Facility (GBIF)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.utils;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * How long the pooled connections of a client are kept and reused. Long running clients like crawlers should evict
+ * idle connections and cap their keep-alive, so they don't pick up connections the server or a firewall dropped
+ * silently and have to retry the requests sent over them.
+ * <p/>
+ * Instances are immutable, start from {@link #DEFAULT} and derive settings with the {@code with} methods.
+ */
+public final class ConnectionReuse {
+
+  /**
+   * The behaviour of Apache HttpClient: no eviction, no time to live, validation of connections idle for more than
+   * two seconds and keeping connections alive as long as the server allows or forever.
+   */
+  public static final ConnectionReuse DEFAULT = new ConnectionReuse(0, -1, 2_000, -1);
+
+  private final long maxIdleTime;
+  private final long timeToLive;
+  private final int validateAfterInactivity;
+  private final long maxKeepAlive;
+
+  private ConnectionReuse(
+      long maxIdleTime, long timeToLive, int validateAfterInactivity, long maxKeepAlive) {
+    this.maxIdleTime = maxIdleTime;
+    this.timeToLive = timeToLive;
+    this.validateAfterInactivity = validateAfterInactivity;
+    this.maxKeepAlive = maxKeepAlive;
+  }
+
+  /**
+   * Runs a background thread closing connections idle for longer than the given time, as well as connections past
+   * their time to live or keep-alive.
+   */
+  public ConnectionReuse withIdleEviction(long maxIdleTime, TimeUnit unit) {
+    return new ConnectionReuse(
+        unit.toMillis(maxIdleTime), timeToLive, validateAfterInactivity, maxKeepAlive);
+  }
+
+  /**
+   * Closes connections once they are older than the given time, regardless of their keep-alive, so that DNS changes
+   * are picked up and load is rebalanced between servers.
+   */
+  public ConnectionReuse withTimeToLive(long timeToLive, TimeUnit unit) {
+    return new ConnectionReuse(
+        maxIdleTime, unit.toMillis(timeToLive), validateAfterInactivity, maxKeepAlive);
+  }
+
+  /**
+   * Checks whether a connection is still open before reusing it when it was idle for longer than the given time.
+   * The check costs a short read on the socket, a negative time disables it.
+   */
+  public ConnectionReuse withValidateAfterInactivity(long inactivity, TimeUnit unit) {
+    return new ConnectionReuse(
+        maxIdleTime, timeToLive, (int) unit.toMillis(inactivity), maxKeepAlive);
+  }
+
+  /**
+   * Keeps connections alive for at most the given time, shorter if the server sends a {@code Keep-Alive: timeout}.
+   */
+  public ConnectionReuse withMaxKeepAlive(long maxKeepAlive, TimeUnit unit) {
+    return new ConnectionReuse(
+        maxIdleTime, timeToLive, validateAfterInactivity, unit.toMillis(maxKeepAlive));
+  }
+
+  /**
+   * @return the idle time after which connections are evicted in milliseconds, 0 if there is no eviction
+   */
+  public long getMaxIdleTime() {
+    return maxIdleTime;
+  }
+
+  /**
+   * @return the time to live of connections in milliseconds, negative if unlimited
+   */
+  public long getTimeToLive() {
+    return timeToLive;
+  }
+
+  /**
+   * @return the idle time after which connections are validated before reuse in milliseconds, negative if never
+   */
+  public int getValidateAfterInactivity() {
+    return validateAfterInactivity;
+  }
+
+  /**
+   * @return the maximum keep-alive of connections in milliseconds, negative if unlimited
+   */
+  public long getMaxKeepAlive() {
+    return maxKeepAlive;
+  }
+
+  @Override
+  public String toString() {
+    return "ConnectionReuse{maxIdleTime="
+        + maxIdleTime
+        + ", timeToLive="
+        + timeToLive
+        + ", validateAfterInactivity="
+        + validateAfterInactivity
+        + ", maxKeepAlive="
+        + maxKeepAlive
+        + "}";
+  }
+}
@@ -15,81 +15,261 @@
  */
 package org.gbif.utils;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.charset.UnsupportedCharsetException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Locale;
 
+import org.apache.commons.io.IOUtils;
 import org.apache.http.Header;
 import org.apache.http.HeaderIterator;
+import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
 import org.apache.http.ProtocolVersion;
 import org.apache.http.StatusLine;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.message.BasicListHeaderIterator;
 
 /**
- * An {@link org.apache.http.HttpResponse} wrapper exposing limited fields.
+ * An immutable snapshot of an {@link org.apache.http.HttpResponse} exposing limited fields.
+ * <p/>
+ * The status line and headers are copied when the response is created, so the Apache response and its connection
+ * can be released right away. The body is kept as raw bytes and only decoded into a String on the first call to
+ * {@link #getContent()}.
  */
 @SuppressWarnings("unused")
 public class ExtendedResponse {
 
-  private String content;
+  private static final Header[] NO_HEADERS = new Header[0];
+
+  private final StatusLine statusLine;
+  private final Locale locale;
 
-  private final HttpResponse response;
+  // headers in their original order, with lower cased names at the same positions for lookups
+  private final Header[] headers;
+  private final String[] names;
+
+  private final byte[] bytes;
+  private final Charset charset;
+  private String content;
 
   public ExtendedResponse(HttpResponse resp) {
-    response = resp;
+    this(resp, null, StandardCharsets.UTF_8);
+  }
+
+  /**
+   * @param resp the response to copy the status line and headers from
+   * @param bytes the raw response body, not copied
+   * @param charset the charset used to decode the body
+   */
+  public ExtendedResponse(HttpResponse resp, byte[] bytes, Charset charset) {
+    this(resp.getStatusLine(), resp.getLocale(), resp.getAllHeaders(), bytes, charset);
+  }
+
+  /**
+   * @param headers the response headers, the array is copied
+   * @param bytes the raw response body, not copied
+   * @param charset the charset used to decode the body
+   */
+  public ExtendedResponse(
+      StatusLine statusLine, Locale locale, Header[] headers, byte[] bytes, Charset charset) {
+    this.statusLine = statusLine;
+    this.locale = locale;
+    this.headers = headers != null && headers.length > 0 ? headers.clone() : NO_HEADERS;
+    this.names = new String[this.headers.length];
+    for (int i = 0; i < this.headers.length; i++) {
+      names[i] = this.headers[i].getName().toLowerCase(Locale.ROOT);
+    }
+    this.bytes = bytes;
+    this.charset = charset;
   }
 
+  /**
+   * Reads the whole body of the response into a byte array presized from the Content-Length header and copies the
+   * status line and headers. The entity is fully consumed, so the response can be closed afterwards.
+   *
+   * @param defaultCharset charset to decode the body with if the response neither declares one nor has a mime type
+   * implying one
+   */
+  public static ExtendedResponse read(HttpResponse response, Charset defaultCharset)
+      throws IOException {
+    HttpEntity entity = response.getEntity();
+    if (entity == null) {
+      return new ExtendedResponse(response, null, defaultCharset);
+    }
+
+    Charset charset = null;
+    try {
+      ContentType contentType = ContentType.get(entity);
+      if (contentType != null) {
+        charset = contentType.getCharset();
+        if (charset == null) {
+          // the implied charset of the mime type, like UTF-8 for application/json
+          ContentType mimeDefault = ContentType.getByMimeType(contentType.getMimeType());
+          charset = mimeDefault != null ? mimeDefault.getCharset() : null;
+        }
+      }
+    } catch (org.apache.http.ParseException | UnsupportedCharsetException e) {
+      // fall back to the default charset
+    }
+    return new ExtendedResponse(
+        response, toByteArray(entity), charset != null ? charset : defaultCharset);
+  }
+
+  private static byte[] toByteArray(HttpEntity entity) throws IOException {
+    try (InputStream in = entity.getContent()) {
+      if (in == null) {
+        return null;
+      }
+      long length = entity.getContentLength();
+      if (length >= 0 && length < Integer.MAX_VALUE - 8) {
+        byte[] data = new byte[(int) length];
+        int read = IOUtils.read(in, data);
+        // the declared length was wrong, fall back to copying
+        if (read < data.length) {
+          return Arrays.copyOf(data, read);
+        }
+        int next = in.read();
+        if (next == -1) {
+          return data;
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream(data.length * 2);
+        out.write(data);
+        out.write(next);
+        IOUtils.copy(in, out);
+        return out.toByteArray();
+      }
+      ByteArrayOutputStream out = new ByteArrayOutputStream(4096);
+      IOUtils.copy(in, out);
+      return out.toByteArray();
+    }
+  }
+
+  /**
+   * @return the body decoded as a String, or null if there was no body
+   */
   public String getContent() {
+    if (content == null && bytes != null) {
+      content = new String(bytes, charset);
+    }
     return content;
   }
 
+  /**
+   * @deprecated the response is meant to be an immutable snapshot, replacing the decoded content makes it disagree
+   * with {@link #getBytes()}
+   */
+  @Deprecated
   public void setContent(String content) {
     this.content = content;
   }
 
+  /**
+   * @return the raw body bytes, or null if there was no body. The array is not copied and must not be modified.
+   */
+  public byte[] getBytes() {
+    if (bytes == null && content != null) {
+      return content.getBytes(charset);
+    }
+    return bytes;
+  }
+
+  /**
+   * @return the charset used to decode the body
+   */
+  public Charset getCharset() {
+    return charset;
+  }
+
+  /**
+   * @return a detached copy of the response, carrying the snapshot of the status line, headers and body
+   * @deprecated the original response is no longer retained, use the accessors of this class instead
+   */
+  @Deprecated
   public HttpResponse getResponse() {
+    BasicHttpResponse response = new BasicHttpResponse(statusLine);
+    response.setHeaders(headers.clone());
+    if (locale != null) {
+      response.setLocale(locale);
+    }
+    byte[] body = getBytes();
+    if (body != null) {
+      response.setEntity(new ByteArrayEntity(body));
+    }
     return response;
   }
 
   public boolean containsHeader(String name) {
-    return response.containsHeader(name);
+    return indexOf(name, 0) >= 0;
   }
 
   public Header[] getAllHeaders() {
-    return response.getAllHeaders();
+    return headers.clone();
   }
 
   public Header getFirstHeader(String name) {
-    return response.getFirstHeader(name);
+    int i = indexOf(name, 0);
+    return i >= 0 ? headers[i] : null;
   }
 
   public Header[] getHeaders(String name) {
-    return response.getHeaders(name);
+    List<Header> matches = new ArrayList<>(2);
+    for (int i = indexOf(name, 0); i >= 0; i = indexOf(name, i + 1)) {
+      matches.add(headers[i]);
+    }
+    return matches.toArray(NO_HEADERS);
   }
 
   public Header getLastHeader(String name) {
-    return response.getLastHeader(name);
+    Header last = null;
+    for (int i = indexOf(name, 0); i >= 0; i = indexOf(name, i + 1)) {
+      last = headers[i];
+    }
+    return last;
   }
 
   public Locale getLocale() {
-    return response.getLocale();
+    return locale;
   }
 
   public ProtocolVersion getProtocolVersion() {
-    return response.getProtocolVersion();
+    return statusLine.getProtocolVersion();
   }
 
   public int getStatusCode() {
-    return response.getStatusLine().getStatusCode();
+    return statusLine.getStatusCode();
   }
 
   public StatusLine getStatusLine() {
-    return response.getStatusLine();
+    return statusLine;
   }
 
   public HeaderIterator headerIterator() {
-    return response.headerIterator();
+    return new BasicListHeaderIterator(Arrays.asList(headers), null);
   }
 
   public HeaderIterator headerIterator(String name) {
-    return response.headerIterator(name);
+    return new BasicListHeaderIterator(Arrays.asList(headers), name);
+  }
+
+  private int indexOf(String name, int from) {
+    if (name == null) {
+      return -1;
+    }
+    String lowerCaseName = name.toLowerCase(Locale.ROOT);
+    for (int i = from; i < names.length; i++) {
+      if (names[i].equals(lowerCaseName)) {
+        return i;
+      }
+    }
+    return -1;
   }
 }
@@ -0,0 +1,88 @@
+/*
+ * Copyright 2021 Global Biodiversity Information Facility (GBIF)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+import org.apache.commons.io.FileUtils;
+
+/**
+ * File handling shared by the download methods: bodies are written into a temporary file next to the target in large
+ * chunks and only moved over the target once complete, so readers never see a partial file.
+ */
+final class FileTransfer {
+
+  /**
+   * Large enough for the connection to read straight from the socket into the buffer, bypassing its own buffer.
+   */
+  static final int BUFFER_SIZE = 256 * 1024;
+
+  private FileTransfer() {}
+
+  /**
+   * Creates an empty temporary file in the directory of the target, so it can be renamed atomically over it.
+   */
+  static File tempFileFor(File target) throws IOException {
+    File dir = target.getAbsoluteFile().getParentFile();
+    FileUtils.forceMkdir(dir);
+    return File.createTempFile("." + target.getName() + ".", ".tmp", dir);
+  }
+
+  /**
+   * Copies the stream into the channel with positional writes, so several transfers can share a channel.
+   *
+   * @param position offset in the file to start writing at
+   * @param limit maximum number of bytes to write, any further content is left in the stream
+   * @return the number of bytes written
+   */
+  static long transfer(InputStream in, FileChannel channel, long position, long limit)
+      throws IOException {
+    byte[] chunk = new byte[BUFFER_SIZE];
+    long written = 0;
+    int n;
+    while (written < limit
+        && (n = in.read(chunk, 0, (int) Math.min(chunk.length, limit - written))) != -1) {
+      // the channel copies through its own cached direct buffer
+      ByteBuffer buffer = ByteBuffer.wrap(chunk, 0, n);
+      while (buffer.hasRemaining()) {
+        written += channel.write(buffer, position + written);
+      }
+    }
+    return written;
+  }
+
+  /**
+   * Replaces the target with the source file, atomically if the file system supports it.
+   */
+  static void moveOver(File source, File target) throws IOException {
+    try {
+      Files.move(
+          source.toPath(),
+          target.toPath(),
+          StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+    } catch (AtomicMoveNotSupportedException e) {
+      Files.move(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+  }
+}
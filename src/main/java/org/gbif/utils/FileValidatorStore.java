@@ -0,0 +1,111 @@
+/*
+ * Copyright 2021 Global Biodiversity Information Facility (GBIF)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.utils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Properties;
+
+import org.apache.commons.io.FileUtils;
+
+/**
+ * A {@link ValidatorStore} keeping one small properties file per key in a directory, so validators survive restarts.
+ * <p/>
+ * Files are named after the SHA-1 hash of the key and replaced atomically on updates.
+ */
+public class FileValidatorStore implements ValidatorStore {
+
+  private static final String KEY = "key";
+  private static final String ETAG = "etag";
+  private static final String LAST_MODIFIED = "lastModified";
+
+  private final File dir;
+
+  public FileValidatorStore(File dir) throws IOException {
+    FileUtils.forceMkdir(dir);
+    this.dir = dir;
+  }
+
+  @Override
+  public Validators get(String key) throws IOException {
+    Properties props = new Properties();
+    try (InputStream in = new FileInputStream(file(key))) {
+      props.load(in);
+    } catch (FileNotFoundException e) {
+      return null;
+    }
+    // guard against hash collisions
+    if (!key.equals(props.getProperty(KEY))) {
+      return null;
+    }
+    return new Validators(props.getProperty(ETAG), props.getProperty(LAST_MODIFIED));
+  }
+
+  @Override
+  public void put(String key, Validators validators) throws IOException {
+    Properties props = new Properties();
+    props.setProperty(KEY, key);
+    if (validators.getEtag() != null) {
+      props.setProperty(ETAG, validators.getEtag());
+    }
+    if (validators.getLastModified() != null) {
+      props.setProperty(LAST_MODIFIED, validators.getLastModified());
+    }
+
+    File target = file(key);
+    File tmp = FileTransfer.tempFileFor(target);
+    try {
+      try (OutputStream out = new FileOutputStream(tmp)) {
+        props.store(out, null);
+      }
+      FileTransfer.moveOver(tmp, target);
+    } finally {
+      Files.deleteIfExists(tmp.toPath());
+    }
+  }
+
+  @Override
+  public void remove(String key) throws IOException {
+    Files.deleteIfExists(file(key).toPath());
+  }
+
+  private File file(String key) {
+    return new File(dir, sha1(key) + ".properties");
+  }
+
+  private static String sha1(String key) {
+    try {
+      byte[] hash = MessageDigest.getInstance("SHA-1").digest(key.getBytes(StandardCharsets.UTF_8));
+      StringBuilder sb = new StringBuilder(hash.length * 2);
+      for (byte b : hash) {
+        sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+      }
+      return sb.toString();
+    } catch (NoSuchAlgorithmException e) {
+      // every Java platform is required to support SHA-1
+      throw new IllegalStateException(e);
+    }
+  }
+}
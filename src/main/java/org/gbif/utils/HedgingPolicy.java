@@ -0,0 +1,244 @@
+/*
+ * Copyright 2021 Global Biodiversity Information Facility (GBIF)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.utils;
+
+import org.gbif.utils.metrics.Histogram;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.URISyntaxException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+import org.apache.http.concurrent.Cancellable;
+
+/**
+ * Hedges GET requests: if the first attempt hasn't answered within a delay, an identical second request is sent and
+ * whichever answers first is used, while the other one is aborted. This cuts the tail latency caused by the
+ * occasional slow backend of a replicated service.
+ * <p/>
+ * The delay is fixed, or a percentile of the latencies observed so far, like the 95th, so only the slowest requests
+ * are hedged. A budget caps hedged requests to a fraction of all requests, so a slow service doesn't get twice the
+ * load.
+ * <p/>
+ * Create a policy with {@link #custom()} and set it with {@link ClientBuilder#setHedgingPolicy(HedgingPolicy)}. The
+ * attempts run on the threads of the policy while the caller waits.
+ */
+public class HedgingPolicy {
+
+  /**
+   * A single attempt of a request, which can be aborted when the other attempt won.
+   */
+  interface Attempt<V> extends Cancellable {
+    V call() throws IOException, URISyntaxException;
+  }
+
+  private final long delayNanos;
+  private final double percentile;
+  private final long minSamples;
+  private final TokenBudget budget;
+  private final ExecutorService executor;
+  private final Histogram latencies = new Histogram();
+  private final LongAdder hedged = new LongAdder();
+  private final LongAdder hedgeWins = new LongAdder();
+
+  private HedgingPolicy(Builder builder) {
+    this.delayNanos = builder.delayNanos;
+    this.percentile = builder.percentile;
+    this.minSamples = builder.minSamples;
+    this.budget = new TokenBudget(builder.maxHedgeRatio, builder.reserve);
+    this.executor =
+        builder.executor != null
+            ? builder.executor
+            : Executors.newCachedThreadPool(
+                r -> {
+                  Thread thread = new Thread(r, "http-hedging");
+                  thread.setDaemon(true);
+                  return thread;
+                });
+  }
+
+  /**
+   * @return a builder for a policy, by default hedging after the 95th percentile of the latencies, or 100ms until 100
+   * requests were observed, and hedging at most 5% of the requests
+   */
+  public static Builder custom() {
+    return new Builder();
+  }
+
+  /**
+   * Runs the first attempt and a hedged one if it takes longer than the delay and the budget allows.
+   *
+   * @param attempts creates an attempt, called once or twice
+   * @return the result of the attempt answering first, or the failure of the last one failing
+   */
+  <V> V execute(Supplier<Attempt<V>> attempts) throws IOException, URISyntaxException {
+    budget.deposit();
+    CompletableFuture<V> result = new CompletableFuture<>();
+    AtomicInteger pending = new AtomicInteger(1);
+    Attempt<V> first = attempts.get();
+    Attempt<V> second = null;
+    submit(first, result, pending, false);
+    try {
+      try {
+        return result.get(getDelay(), TimeUnit.NANOSECONDS);
+      } catch (TimeoutException e) {
+        if (budget.withdraw()) {
+          pending.incrementAndGet();
+          hedged.increment();
+          second = attempts.get();
+          submit(second, result, pending, true);
+        }
+      }
+      return result.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted waiting for a hedged request");
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      } else if (cause instanceof URISyntaxException) {
+        throw (URISyntaxException) cause;
+      } else if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      } else if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      throw new IOException(cause);
+    } finally {
+      // aborting the completed attempt is a no-op
+      first.cancel();
+      if (second != null) {
+        second.cancel();
+      }
+    }
+  }
+
+  private <V> void submit(
+      Attempt<V> attempt, CompletableFuture<V> result, AtomicInteger pending, boolean hedge) {
+    executor.execute(
+        () -> {
+          long start = System.nanoTime();
+          try {
+            V value = attempt.call();
+            latencies.record(System.nanoTime() - start);
+            // counted before completing, so the count is current when the caller returns
+            if (hedge && !result.isDone()) {
+              hedgeWins.increment();
+            }
+            result.complete(value);
+          } catch (Throwable e) {
+            // the other attempt may still succeed
+            if (pending.decrementAndGet() == 0) {
+              result.completeExceptionally(e);
+            }
+          }
+        });
+  }
+
+  /**
+   * @return the current delay before hedging in nanoseconds
+   */
+  public long getDelay() {
+    if (percentile > 0 && latencies.getCount() >= minSamples) {
+      return latencies.getPercentile(percentile);
+    }
+    return delayNanos;
+  }
+
+  /**
+   * @return the number of hedged requests sent
+   */
+  public long getHedgedCount() {
+    return hedged.sum();
+  }
+
+  /**
+   * @return the number of hedged requests which answered before the first attempt
+   */
+  public long getHedgeWinCount() {
+    return hedgeWins.sum();
+  }
+
+  /**
+   * Builds a {@link HedgingPolicy}.
+   */
+  public static class Builder {
+
+    private long delayNanos = TimeUnit.MILLISECONDS.toNanos(100);
+    private double percentile = 0.95;
+    private long minSamples = 100;
+    private double maxHedgeRatio = 0.05;
+    private int reserve = 10;
+    private ExecutorService executor;
+
+    private Builder() {}
+
+    /**
+     * Hedges after a fixed delay, instead of a percentile of the observed latencies.
+     */
+    public Builder setDelay(long delay, TimeUnit unit) {
+      this.delayNanos = unit.toNanos(delay);
+      this.percentile = 0;
+      return this;
+    }
+
+    /**
+     * Hedges after a percentile of the latencies observed, using the fixed delay until enough were observed.
+     *
+     * @param percentile between 0 and 1, like 0.95
+     * @param minSamples the latencies to observe before using the percentile
+     * @param initialDelay the delay until then
+     */
+    public Builder setDelayPercentile(
+        double percentile, long minSamples, long initialDelay, TimeUnit unit) {
+      this.percentile = percentile;
+      this.minSamples = minSamples;
+      this.delayNanos = unit.toNanos(initialDelay);
+      return this;
+    }
+
+    /**
+     * @param ratio the maximum hedged requests per request, e.g. 0.05 for 5%
+     * @param reserve the hedged requests allowed regardless of the ratio, also the most saved up in quiet periods
+     */
+    public Builder setMaxHedgeRate(double ratio, int reserve) {
+      this.maxHedgeRatio = ratio;
+      this.reserve = reserve;
+      return this;
+    }
+
+    /**
+     * @param executor running the attempts, by default an unbounded pool of daemon threads
+     */
+    public Builder setExecutor(ExecutorService executor) {
+      this.executor = executor;
+      return this;
+    }
+
+    public HedgingPolicy build() {
+      return new HedgingPolicy(this);
+    }
+  }
+}
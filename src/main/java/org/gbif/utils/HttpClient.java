@@ -15,43 +15,48 @@
  */
 package org.gbif.utils;
 
+import org.gbif.utils.cache.HttpCache;
+
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.OutputStream;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URL;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
-import org.apache.commons.io.FileUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.http.Header;
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpHeaders;
 import org.apache.http.HttpHost;
-import org.apache.http.HttpResponse;
 import org.apache.http.HttpStatus;
 import org.apache.http.StatusLine;
 import org.apache.http.auth.AuthScope;
 import org.apache.http.auth.UsernamePasswordCredentials;
 import org.apache.http.client.CredentialsProvider;
+import org.apache.http.client.ResponseHandler;
 import org.apache.http.client.config.RequestConfig;
 import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpDelete;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpHead;
 import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpRequestBase;
 import org.apache.http.client.protocol.HttpClientContext;
 import org.apache.http.client.utils.DateUtils;
 import org.apache.http.impl.client.BasicCredentialsProvider;
 import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.protocol.BasicHttpContext;
 import org.apache.http.protocol.HttpContext;
-import org.apache.http.util.EntityUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -68,20 +73,38 @@ public class HttpClient {
 
   private final CloseableHttpClient client;
   private final RequestConfig defaultRequestConfig;
+  private final SingleFlight<ExtendedResponse> inFlightGets = new SingleFlight<>();
+  private final SingleFlight<StatusLine> inFlightDownloads = new SingleFlight<>();
   private HttpHost proxy;
   private RequestConfig customRequestConfig;
+  private boolean resumableDownloads;
+  private boolean syncDownloads;
+  private ValidatorStore validatorStore;
+  private HttpCache responseCache;
+  private boolean coalesceRequests;
+  private CircuitBreakers circuitBreakers;
+  private ConcurrencyLimits concurrencyLimits;
+  private RateLimits rateLimits;
+  private HedgingPolicy hedgingPolicy;
 
   public HttpClient(CloseableHttpClient client, RequestConfig defaultRequestConfig) {
     this.client = client;
     this.defaultRequestConfig = defaultRequestConfig;
   }
 
+  /**
+   * @return a builder for a client with custom pool, timeout and socket settings
+   */
+  public static ClientBuilder builder() {
+    return new ClientBuilder();
+  }
+
   public UsernamePasswordCredentials credentials(String username, String password) {
     return new UsernamePasswordCredentials(
         StringUtils.trimToEmpty(username), StringUtils.trimToEmpty(password));
   }
 
-  private HttpContext buildContext(String uri, UsernamePasswordCredentials credentials)
+  static HttpContext buildContext(String uri, UsernamePasswordCredentials credentials)
       throws URISyntaxException {
     HttpContext authContext = new BasicHttpContext();
     if (credentials != null) {
@@ -110,16 +133,26 @@ public class HttpClient {
     }
 
     HttpContext authContext = buildContext(url, credentials);
-    ExtendedResponse result;
     try (CloseableHttpResponse response = client.execute(delete, authContext)) {
-      result = new ExtendedResponse(response);
-      HttpEntity entity = response.getEntity();
-      if (entity != null) {
-        result.setContent(EntityUtils.toString(entity));
-        EntityUtils.consume(entity);
-      }
+      return ExtendedResponse.read(response, StandardCharsets.ISO_8859_1);
+    }
+  }
+
+  /**
+   * Executes a generic DELETE request passing the response to the handler.
+   * The connection is released once the handler returns.
+   */
+  public <T> T delete(
+      String url, UsernamePasswordCredentials credentials, ResponseHandler<? extends T> handler)
+      throws IOException, URISyntaxException {
+    LOG.info("HTTP DELETE to {}", url);
+    HttpDelete delete = new HttpDelete(url);
+
+    if (customRequestConfig != null) {
+      delete.setConfig(customRequestConfig);
     }
-    return result;
+
+    return client.execute(delete, handler, buildContext(url, credentials));
   }
 
   /**
@@ -144,29 +177,48 @@ public class HttpClient {
   }
 
   public StatusLine download(URL url, File downloadTo) throws IOException {
-    HttpGet get = new HttpGet(url.toString());
+    return conditionalDownload(url, null, null, downloadTo);
+  }
 
-    if (customRequestConfig != null) {
-      get.setConfig(customRequestConfig);
+  /**
+   * Downloads a large file as several byte ranges fetched concurrently over separate pooled connections, which
+   * overcomes the throughput limit of a single connection on high latency links.
+   * <p/>
+   * The server is first probed with a HEAD request. If it doesn't accept byte ranges or the file is too small to be
+   * split, the file is downloaded as a single stream instead.
+   * The number of segments should not exceed the maximum connections per route of the underlying client.
+   *
+   * @param segments maximum number of ranges to download concurrently
+   */
+  public StatusLine downloadSegmented(URL url, File downloadTo, int segments) throws IOException {
+    if (segments < 2) {
+      return download(url, downloadTo);
     }
-
-    final StatusLine status;
-    try (CloseableHttpResponse response = client.execute(get)) {
-      status = response.getStatusLine();
-
-      // write to file only when download succeeds
-      if (HttpUtil.success(status)) {
-        saveToFile(response, downloadTo);
-        LOG.debug("Successfully downloaded {} to {}", url, downloadTo.getAbsolutePath());
-      } else {
-        LOG.error(
-            "Downloading {} to {} failed!: {}",
-            url,
-            downloadTo.getAbsolutePath(),
-            status.getStatusCode());
-      }
+    ExecutorService executor = Executors.newFixedThreadPool(segments);
+    try {
+      return downloadSegmented(url, downloadTo, segments, executor);
+    } finally {
+      executor.shutdownNow();
     }
+  }
 
+  /**
+   * Downloads a large file as several byte ranges fetched concurrently over separate pooled connections.
+   *
+   * @param segments maximum number of ranges to download concurrently
+   * @param executor executor running the range requests
+   * @see #downloadSegmented(URL, File, int)
+   */
+  public StatusLine downloadSegmented(
+      URL url, File downloadTo, int segments, ExecutorService executor) throws IOException {
+    StatusLine status =
+        new SegmentedDownload(client, customRequestConfig, executor, syncDownloads)
+            .download(url, downloadTo, segments);
+    if (status == null) {
+      LOG.debug("Downloading {} as a single stream", url);
+      return download(url, downloadTo);
+    }
+    LOG.debug("Successfully downloaded {} to {}", url, downloadTo.getAbsolutePath());
     return status;
   }
 
@@ -174,13 +226,19 @@ public class HttpClient {
    * @return body content if changed or null if unmodified since lastModified
    */
   public String downloadIfChanged(URL url, Date lastModified) throws IOException {
-    Map<String, String> header = new HashMap<>(1);
+    Map<String, String> header = new HashMap<>(2);
     header.put(HttpHeaders.IF_MODIFIED_SINCE, DateUtils.formatDate(lastModified));
+    Validators validators = loadValidators(url.toString());
+    if (validators != null && validators.getEtag() != null) {
+      header.put(HttpHeaders.IF_NONE_MATCH, validators.getEtag());
+    }
 
     try {
       ExtendedResponse resp = get(url.toString(), header, null);
       if (resp.getStatusCode() == HttpStatus.SC_NOT_MODIFIED) {
         LOG.debug("Content not modified since last request");
+      } else if (HttpUtil.success(resp)) {
+        storeValidators(url.toString(), Validators.of(resp));
       }
       return resp.getContent();
     } catch (URISyntaxException e) {
@@ -219,6 +277,50 @@ public class HttpClient {
    */
   public StatusLine downloadIfModifiedSince(
       final URL url, final Date lastModified, final File downloadTo) throws IOException {
+    // stored validators only apply while the file they describe exists
+    Validators validators =
+        downloadTo.exists() ? loadValidators(validatorKey(url, downloadTo)) : null;
+    return conditionalDownload(url, lastModified, validators, downloadTo);
+  }
+
+  /**
+   * Downloads a URL to a file, conditionally if a date or validators are given, and records the validators of the
+   * new file in the validator store.
+   */
+  private StatusLine conditionalDownload(
+      final URL url, final Date lastModified, Validators validators, final File downloadTo)
+      throws IOException {
+    if (!coalesceRequests) {
+      return fetchToFile(url, lastModified, validators, downloadTo);
+    }
+    String key =
+        validatorKey(url, downloadTo)
+            + " "
+            + (lastModified != null ? lastModified.getTime() : "")
+            + " "
+            + validators;
+    try {
+      return inFlightDownloads.execute(
+          key, () -> fetchToFile(url, lastModified, validators, downloadTo));
+    } catch (URISyntaxException e) {
+      // never thrown by downloads
+      throw new IOException(e);
+    }
+  }
+
+  private StatusLine fetchToFile(
+      final URL url, final Date lastModified, Validators validators, final File downloadTo)
+      throws IOException {
+    if (resumableDownloads) {
+      ResumableDownload download =
+          new ResumableDownload(client, customRequestConfig, syncDownloads);
+      StatusLine status = download.download(url, lastModified, validators, downloadTo);
+      if (HttpUtil.success(status)) {
+        storeValidators(validatorKey(url, downloadTo), download.getValidators());
+      }
+      return status;
+    }
+
     HttpGet get = new HttpGet(url.toString());
 
     if (customRequestConfig != null) {
@@ -226,11 +328,7 @@ public class HttpClient {
     }
 
     // prepare conditional GET request headers
-    if (lastModified != null) {
-      // DateFormatUtils is threadsafe
-      get.addHeader(HttpHeaders.IF_MODIFIED_SINCE, DateUtils.formatDate(lastModified));
-      LOG.debug("Conditional GET: {}", DateUtils.formatDate(lastModified));
-    }
+    addConditionalHeaders(get, lastModified, validators);
 
     // execute
     final StatusLine status;
@@ -241,6 +339,7 @@ public class HttpClient {
       } else if (HttpUtil.success(status)) {
         // write to file only when download succeeds
         saveToFile(response, downloadTo);
+        storeValidators(validatorKey(url, downloadTo), Validators.of(response));
         LOG.debug("Successfully downloaded {} to {}", url, downloadTo.getAbsolutePath());
       } else {
         LOG.error(
@@ -254,6 +353,59 @@ public class HttpClient {
     return status;
   }
 
+  /**
+   * Adds If-Modified-Since and If-None-Match headers. The given date takes precedence over a stored Last-Modified.
+   */
+  static void addConditionalHeaders(
+      HttpRequestBase request, Date lastModified, Validators validators) {
+    String since = lastModified != null ? DateUtils.formatDate(lastModified) : null;
+    if (since == null && validators != null) {
+      since = validators.getLastModified();
+    }
+    if (since != null) {
+      // DateFormatUtils is threadsafe
+      request.addHeader(HttpHeaders.IF_MODIFIED_SINCE, since);
+      LOG.debug("Conditional GET: {}", since);
+    }
+    if (validators != null && validators.getEtag() != null) {
+      request.addHeader(HttpHeaders.IF_NONE_MATCH, validators.getEtag());
+      LOG.debug("Conditional GET: {}", validators.getEtag());
+    }
+  }
+
+  private static String validatorKey(URL url, File downloadTo) {
+    return url + " " + downloadTo.getAbsolutePath();
+  }
+
+  private Validators loadValidators(String key) {
+    if (validatorStore != null) {
+      try {
+        return validatorStore.get(key);
+      } catch (IOException e) {
+        LOG.warn("Failed to load validators for {}", key, e);
+      }
+    }
+    return null;
+  }
+
+  private void storeValidators(String key, Validators validators) {
+    if (validatorStore != null) {
+      try {
+        if (validators != null) {
+          validatorStore.put(key, validators);
+        } else {
+          validatorStore.remove(key);
+        }
+      } catch (IOException e) {
+        LOG.warn("Failed to store validators for {}", key, e);
+      }
+    }
+  }
+
+  /**
+   * Streams the response body into a temporary file next to the target, which then replaces the target atomically.
+   * Readers of the target therefore see either the previous or the complete new file.
+   */
   @SuppressWarnings("ResultOfMethodCallIgnored")
   private void saveToFile(CloseableHttpResponse response, File downloadTo) throws IOException {
     HttpEntity entity = response.getEntity();
@@ -264,14 +416,28 @@ public class HttpClient {
         serverModified = DateUtils.parseDate(modHeader.getValue());
       }
 
-      // copy stream to local file
-      FileUtils.forceMkdir(downloadTo.getParentFile());
-      if (downloadTo.isFile()) {
-        downloadTo.delete();
-      }
-      try (OutputStream fos = new FileOutputStream(downloadTo, false)) {
-        entity.writeTo(fos);
+      // copy stream to a temporary local file
+      File tmp = FileTransfer.tempFileFor(downloadTo);
+      try {
+        try (RandomAccessFile file = new RandomAccessFile(tmp, "rw");
+            InputStream in = entity.getContent()) {
+          long length = entity.getContentLength();
+          if (length > 0) {
+            // reserve the space upfront where the file system supports it
+            file.setLength(length);
+          }
+          FileChannel channel = file.getChannel();
+          long written = FileTransfer.transfer(in, channel, 0, Long.MAX_VALUE);
+          channel.truncate(written);
+          if (syncDownloads) {
+            channel.force(true);
+          }
+        }
+        FileTransfer.moveOver(tmp, downloadTo);
+      } finally {
+        Files.deleteIfExists(tmp.toPath());
       }
+
       // update last modified of file with HTTP header date from server
       if (serverModified != null) {
         downloadTo.setLastModified(serverModified.getTime());
@@ -324,34 +490,131 @@ public class HttpClient {
       Map<String, String> headers,
       UsernamePasswordCredentials credentials)
       throws IOException, URISyntaxException {
-    HttpGet get = new HttpGet(url);
-    // HTTP header
-    if (headers != null) {
-      for (Map.Entry<String, String> header : headers.entrySet()) {
-        get.addHeader(
-            StringUtils.trimToEmpty(header.getKey()), StringUtils.trimToEmpty(header.getValue()));
-      }
+    if (coalesceRequests) {
+      ExtendedResponse response =
+          inFlightGets.execute(
+              HttpCache.key(url, headers, credentials),
+              () -> cachedGet(url, requestConfig, headers, credentials));
+      // every caller gets its own instance, as the content can be replaced
+      return new ExtendedResponse(
+          response.getStatusLine(),
+          response.getLocale(),
+          response.getAllHeaders(),
+          response.getBytes(),
+          response.getCharset());
     }
+    return cachedGet(url, requestConfig, headers, credentials);
+  }
 
-    // proxy and timeouts
-    if (requestConfig != null) {
-      get.setConfig(requestConfig);
+  private ExtendedResponse cachedGet(
+      String url,
+      RequestConfig requestConfig,
+      Map<String, String> headers,
+      UsernamePasswordCredentials credentials)
+      throws IOException, URISyntaxException {
+    if (responseCache != null && HttpCache.isCacheable(headers)) {
+      return responseCache.get(
+          HttpCache.key(url, headers, credentials),
+          conditional ->
+              executeGet(url, requestConfig, withHeaders(headers, conditional), credentials));
+    }
+    return executeGet(url, requestConfig, headers, credentials);
+  }
+
+  private ExtendedResponse executeGet(
+      String url,
+      RequestConfig requestConfig,
+      Map<String, String> headers,
+      UsernamePasswordCredentials credentials)
+      throws IOException, URISyntaxException {
+    if (hedgingPolicy != null) {
+      return hedgingPolicy.execute(
+          () -> {
+            HttpGet get = newGet(url, requestConfig, headers);
+            return new HedgingPolicy.Attempt<ExtendedResponse>() {
+              @Override
+              public ExtendedResponse call() throws IOException, URISyntaxException {
+                return executeGet(get, url, credentials);
+              }
+
+              @Override
+              public boolean cancel() {
+                get.abort();
+                return true;
+              }
+            };
+          });
     }
+    return executeGet(newGet(url, requestConfig, headers), url, credentials);
+  }
 
+  private ExtendedResponse executeGet(
+      HttpGet get, String url, UsernamePasswordCredentials credentials)
+      throws IOException, URISyntaxException {
     // authentication
     HttpContext authContext = buildContext(url, credentials);
 
-    ExtendedResponse result;
     try (CloseableHttpResponse response = client.execute(get, authContext)) {
-      result = new ExtendedResponse(response);
-      HttpEntity entity = response.getEntity();
-      if (entity != null) {
-        // Adding a default charset in case it is not found
-        result.setContent(EntityUtils.toString(entity, StandardCharsets.UTF_8));
-      }
+      // Adding a default charset in case it is not found
+      return ExtendedResponse.read(response, StandardCharsets.UTF_8);
+    }
+  }
+
+  private static Map<String, String> withHeaders(
+      Map<String, String> headers, Map<String, String> extra) {
+    if (extra.isEmpty()) {
+      return headers;
     }
+    Map<String, String> all = headers != null ? new HashMap<>(headers) : new HashMap<>();
+    all.putAll(extra);
+    return all;
+  }
+
+  /**
+   * Executes a GET request passing the response to the handler, which can read the body incrementally
+   * with bounded memory. The connection is released once the handler returns.
+   */
+  public <T> T get(String url, ResponseHandler<? extends T> handler)
+      throws IOException, URISyntaxException {
+    return get(url, null, null, handler);
+  }
+
+  public <T> T get(
+      String url,
+      Map<String, String> headers,
+      UsernamePasswordCredentials credentials,
+      ResponseHandler<? extends T> handler)
+      throws IOException, URISyntaxException {
+    HttpGet get = newGet(url, customRequestConfig, headers);
+    return client.execute(get, handler, buildContext(url, credentials));
+  }
+
+  /**
+   * Executes a GET request returning the open response, so the body can be read incrementally.
+   * The response must be closed by the caller to release the connection.
+   */
+  public StreamingResponse getStream(String url) throws IOException, URISyntaxException {
+    return getStream(url, null, null);
+  }
+
+  public StreamingResponse getStream(
+      String url, Map<String, String> headers, UsernamePasswordCredentials credentials)
+      throws IOException, URISyntaxException {
+    HttpGet get = newGet(url, customRequestConfig, headers);
+    return new StreamingResponse(client.execute(get, buildContext(url, credentials)));
+  }
+
+  private static HttpGet newGet(
+      String url, RequestConfig requestConfig, Map<String, String> headers) {
+    HttpGet get = new HttpGet(url);
+    // HTTP header
+    addHeaders(get, headers);
 
-    return result;
+    // proxy and timeouts
+    if (requestConfig != null) {
+      get.setConfig(requestConfig);
+    }
+    return get;
   }
 
   /**
@@ -380,15 +643,54 @@ public class HttpClient {
       UsernamePasswordCredentials credentials,
       HttpEntity requestEntity)
       throws IOException, URISyntaxException {
+    HttpPost post = newPost(uri, headers, requestEntity);
+
+    // authentication
+    HttpContext authContext = buildContext(uri, credentials);
+    try (CloseableHttpResponse response = client.execute(post, authContext)) {
+      return ExtendedResponse.read(response, StandardCharsets.ISO_8859_1);
+    }
+  }
+
+  /**
+   * Executes a generic POST request passing the response to the handler, which can read the body incrementally
+   * with bounded memory. The connection is released once the handler returns.
+   */
+  public <T> T post(String uri, HttpEntity requestEntity, ResponseHandler<? extends T> handler)
+      throws IOException, URISyntaxException {
+    return post(uri, null, null, requestEntity, handler);
+  }
+
+  public <T> T post(
+      String uri,
+      Map<String, String> headers,
+      UsernamePasswordCredentials credentials,
+      HttpEntity requestEntity,
+      ResponseHandler<? extends T> handler)
+      throws IOException, URISyntaxException {
+    HttpPost post = newPost(uri, headers, requestEntity);
+    return client.execute(post, handler, buildContext(uri, credentials));
+  }
+
+  /**
+   * Executes a generic POST request returning the open response, so the body can be read incrementally.
+   * The response must be closed by the caller to release the connection.
+   */
+  public StreamingResponse postStream(
+      String uri,
+      Map<String, String> headers,
+      UsernamePasswordCredentials credentials,
+      HttpEntity requestEntity)
+      throws IOException, URISyntaxException {
+    HttpPost post = newPost(uri, headers, requestEntity);
+    return new StreamingResponse(client.execute(post, buildContext(uri, credentials)));
+  }
+
+  private HttpPost newPost(String uri, Map<String, String> headers, HttpEntity requestEntity) {
     HttpPost post = new HttpPost(uri);
 
     // headers
-    if (headers != null) {
-      for (Map.Entry<String, String> header : headers.entrySet()) {
-        post.addHeader(
-            StringUtils.trimToEmpty(header.getKey()), StringUtils.trimToEmpty(header.getValue()));
-      }
-    }
+    addHeaders(post, headers);
 
     // request entity
     if (requestEntity != null) {
@@ -399,22 +701,16 @@ public class HttpClient {
     if (customRequestConfig != null) {
       post.setConfig(customRequestConfig);
     }
+    return post;
+  }
 
-    // authentication
-    HttpContext authContext = buildContext(uri, credentials);
-    HttpResponse response = client.execute(post, authContext);
-
-    // response
-    if (response != null) {
-      ExtendedResponse result = new ExtendedResponse(response);
-      HttpEntity respEntity = response.getEntity();
-      if (respEntity != null) {
-        result.setContent(EntityUtils.toString(respEntity));
-        EntityUtils.consume(respEntity);
+  private static void addHeaders(HttpRequestBase request, Map<String, String> headers) {
+    if (headers != null) {
+      for (Map.Entry<String, String> header : headers.entrySet()) {
+        request.addHeader(
+            StringUtils.trimToEmpty(header.getKey()), StringUtils.trimToEmpty(header.getValue()));
       }
-      return result;
     }
-    return null;
   }
 
   public boolean verifyHost(HttpHost host) {
@@ -457,6 +753,125 @@ public class HttpClient {
     }
   }
 
+  public boolean isResumableDownloads() {
+    return resumableDownloads;
+  }
+
+  /**
+   * Enables resumable file downloads. Downloads are then written to a partial file next to the target, together with
+   * a small sidecar holding the validators of the response. A download interrupted by a failure is continued with a
+   * range request on the next attempt instead of starting over, and the partial file only replaces the target once
+   * complete.
+   */
+  public void setResumableDownloads(boolean resumableDownloads) {
+    this.resumableDownloads = resumableDownloads;
+  }
+
+  public boolean isSyncDownloads() {
+    return syncDownloads;
+  }
+
+  /**
+   * Forces downloaded files to disk before they replace their targets, so a complete file survives an OS crash.
+   * This is off by default as it slows down downloads.
+   */
+  public void setSyncDownloads(boolean syncDownloads) {
+    this.syncDownloads = syncDownloads;
+  }
+
+  public ValidatorStore getValidatorStore() {
+    return validatorStore;
+  }
+
+  /**
+   * Sets a store recording the ETag and Last-Modified validators of downloads, per URL and target file.
+   * The conditional download methods then send both If-None-Match and If-Modified-Since, so servers with weak or
+   * missing Last-Modified dates can still answer 304 Not Modified.
+   */
+  public void setValidatorStore(ValidatorStore validatorStore) {
+    this.validatorStore = validatorStore;
+  }
+
+  public HttpCache getResponseCache() {
+    return responseCache;
+  }
+
+  /**
+   * Sets a cache answering the plain {@link #get(String)} methods, honouring the Cache-Control and Expires headers of
+   * the responses. Stale entries are revalidated with a conditional request. Passing null disables caching.
+   */
+  public void setResponseCache(HttpCache responseCache) {
+    this.responseCache = responseCache;
+  }
+
+  public boolean isCoalesceRequests() {
+    return coalesceRequests;
+  }
+
+  /**
+   * Enables coalescing of concurrent identical requests. GET requests with the same URL, headers and credentials,
+   * and downloads of the same URL to the same file, then share a single exchange with the server while one is in
+   * flight, so an expiring cache entry doesn't send a burst of identical requests to the origin.
+   */
+  public void setCoalesceRequests(boolean coalesceRequests) {
+    this.coalesceRequests = coalesceRequests;
+  }
+
+  /**
+   * @return the number of requests which shared the exchange of an identical request in flight
+   */
+  public long getCoalescedRequestCount() {
+    return inFlightGets.getSharedCount() + inFlightDownloads.getSharedCount();
+  }
+
+  /**
+   * @return the per host circuit breakers of the client, or null if it has none
+   * @see ClientBuilder#setCircuitBreakers(CircuitBreakers)
+   */
+  public CircuitBreakers getCircuitBreakers() {
+    return circuitBreakers;
+  }
+
+  void setCircuitBreakers(CircuitBreakers circuitBreakers) {
+    this.circuitBreakers = circuitBreakers;
+  }
+
+  /**
+   * @return the adaptive per host concurrency limits of the client, or null if it has none
+   * @see ClientBuilder#setConcurrencyLimits(ConcurrencyLimits)
+   */
+  public ConcurrencyLimits getConcurrencyLimits() {
+    return concurrencyLimits;
+  }
+
+  void setConcurrencyLimits(ConcurrencyLimits concurrencyLimits) {
+    this.concurrencyLimits = concurrencyLimits;
+  }
+
+  /**
+   * @return the per host rate limits of the client, or null if it has none
+   * @see ClientBuilder#setRateLimits(RateLimits)
+   */
+  public RateLimits getRateLimits() {
+    return rateLimits;
+  }
+
+  void setRateLimits(RateLimits rateLimits) {
+    this.rateLimits = rateLimits;
+  }
+
+  public HedgingPolicy getHedgingPolicy() {
+    return hedgingPolicy;
+  }
+
+  /**
+   * Hedges the plain {@link #get(String)} requests which are slower than the delay of the policy with a second
+   * identical request, using whichever answers first. Passing null disables hedging.
+   */
+  public void setHedgingPolicy(HedgingPolicy hedgingPolicy) {
+    this.hedgingPolicy = hedgingPolicy;
+  }
+
   public void removeProxy() {
     this.proxy = null;
     this.customRequestConfig = null;
@@ -0,0 +1,78 @@
+/*
+ * Copyright 2021 Global Biodiversity Information Facility (GBIF)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.utils;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+
+import javax.net.ssl.SSLSession;
+
+/**
+ * Receives the phases of every exchange of a client, for example to attach tracing spans or to log slow requests.
+ * Register listeners with {@link HttpUtil#newMultithreadedClient(int, int, int,
+ * org.gbif.utils.metrics.MetricsRegistry, HttpEventListener...)}.
+ * <p/>
+ * All timestamps are {@link System#nanoTime()} values. A reused pooled connection skips the DNS, connect and TLS
+ * callbacks. The callbacks are made on the request threads, so they must be thread safe and cheap. Exceptions thrown
+ * by listeners are logged and ignored.
+ */
+public interface HttpEventListener {
+
+  /**
+   * The request is about to be sent, before a connection is leased.
+   */
+  default void started(HttpExchange exchange) {}
+
+  /**
+   * A connection was leased from the pool.
+   */
+  default void leaseAcquired(HttpExchange exchange, long nanoTime) {}
+
+  /**
+   * The host name of the route was resolved for a new connection.
+   */
+  default void dnsResolved(HttpExchange exchange, InetAddress[] addresses, long nanoTime) {}
+
+  /**
+   * The TCP connection of a new connection was established.
+   */
+  default void connected(HttpExchange exchange, InetSocketAddress remote, long nanoTime) {}
+
+  /**
+   * The TLS handshake of a new connection completed.
+   */
+  default void tlsHandshakeDone(HttpExchange exchange, SSLSession session, long nanoTime) {}
+
+  /**
+   * The request head and body were written.
+   */
+  default void requestSent(HttpExchange exchange, long bytes, long nanoTime) {}
+
+  /**
+   * The response head arrived.
+   */
+  default void firstByte(HttpExchange exchange, int status, long nanoTime) {}
+
+  /**
+   * The response body was consumed or closed, ending the exchange.
+   */
+  default void bodyComplete(HttpExchange exchange, long bytes, long nanoTime) {}
+
+  /**
+   * The exchange failed in any phase, ending it.
+   */
+  default void failed(HttpExchange exchange, Exception e, long nanoTime) {}
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright 2021 Global Biodiversity Information Facility (GBIF)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.utils;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A single attempt of a request and its response as seen by an {@link HttpEventListener}. Retries and redirects are
+ * exchanges of their own.
+ * <p/>
+ * The phase timestamps are {@link System#nanoTime()} values, 0 while the phase hasn't been reached or didn't happen,
+ * like connecting when a pooled connection was reused.
+ */
+public final class HttpExchange {
+
+  private final String method;
+  private final String uri;
+  private final String route;
+  private final long startNanos;
+  private final Map<String, Object> attributes = new ConcurrentHashMap<>();
+
+  volatile long leasedNanos;
+  volatile long dnsResolvedNanos;
+  volatile long connectedNanos;
+  volatile long tlsHandshakeNanos;
+  volatile long requestSentNanos;
+  volatile long firstByteNanos;
+  volatile long completedNanos;
+
+  HttpExchange(String method, String uri, String route, long startNanos) {
+    this.method = method;
+    this.uri = uri;
+    this.route = route;
+    this.startNanos = startNanos;
+  }
+
+  public String getMethod() {
+    return method;
+  }
+
+  /**
+   * @return the URI of the request line, which may be relative to the route
+   */
+  public String getUri() {
+    return uri;
+  }
+
+  /**
+   * @return the host and port of the target, like {@code api.gbif.org:443}
+   */
+  public String getRoute() {
+    return route;
+  }
+
+  public long getStartNanos() {
+    return startNanos;
+  }
+
+  public long getLeasedNanos() {
+    return leasedNanos;
+  }
+
+  public long getDnsResolvedNanos() {
+    return dnsResolvedNanos;
+  }
+
+  public long getConnectedNanos() {
+    return connectedNanos;
+  }
+
+  public long getTlsHandshakeNanos() {
+    return tlsHandshakeNanos;
+  }
+
+  public long getRequestSentNanos() {
+    return requestSentNanos;
+  }
+
+  public long getFirstByteNanos() {
+    return firstByteNanos;
+  }
+
+  /**
+   * @return when the response body was consumed or the exchange failed
+   */
+  public long getCompletedNanos() {
+    return completedNanos;
+  }
+
+  /**
+   * @return a value stored by a listener, like a tracing span, or null
+   */
+  public Object getAttribute(String name) {
+    return attributes.get(name);
+  }
+
+  public void setAttribute(String name, Object value) {
+    attributes.put(name, value);
+  }
+
+  @Override
+  public String toString() {
+    return method + " " + uri + " on " + route;
+  }
+}
@@ -15,14 +15,17 @@
  */
 package org.gbif.utils;
 
+import org.gbif.utils.cache.HttpCache;
+import org.gbif.utils.metrics.MetricsRegistry;
+
 import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
-import java.util.Optional;
 
 import javax.net.ssl.SSLContext;
 
@@ -42,14 +45,19 @@ import org.apache.http.client.entity.UrlEncodedFormEntity;
 import org.apache.http.config.ConnectionConfig;
 import org.apache.http.config.Registry;
 import org.apache.http.config.RegistryBuilder;
-import org.apache.http.conn.socket.PlainConnectionSocketFactory;
-import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
 import org.apache.http.entity.StringEntity;
-import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.impl.client.DefaultRedirectStrategy;
-import org.apache.http.impl.client.HttpClientBuilder;
-import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClientBuilder;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.impl.nio.conn.PoolingNHttpClientConnectionManager;
+import org.apache.http.impl.nio.reactor.DefaultConnectingIOReactor;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
 import org.apache.http.message.BasicNameValuePair;
+import org.apache.http.nio.conn.NoopIOSessionStrategy;
+import org.apache.http.nio.conn.SchemeIOSessionStrategy;
+import org.apache.http.nio.conn.ssl.SSLIOSessionStrategy;
+import org.apache.http.nio.reactor.IOReactorException;
 import org.apache.http.protocol.HttpContext;
 import org.apache.http.ssl.SSLContexts;
 import org.apache.http.util.EntityUtils;
@@ -117,7 +125,7 @@ public final class HttpUtil {
    * @param timeout in milliseconds
    */
   public static HttpClient newSinglethreadedClient(int timeout) {
-    return newClientInternal(timeout, null, null, null, null, false);
+    return HttpClient.builder().setTimeout(timeout).setSinglethreaded().build();
   }
 
   /**
@@ -139,7 +147,11 @@ public final class HttpUtil {
    */
   public static HttpClient newMultithreadedClient(
       int timeout, int maxConnections, int maxPerRoute) {
-    return newClientInternal(timeout, maxConnections, maxPerRoute, null, null, true);
+    return HttpClient.builder()
+        .setTimeout(timeout)
+        .setMaxConnections(maxConnections)
+        .setMaxPerRoute(maxPerRoute)
+        .build();
   }
 
   /**
@@ -159,28 +171,178 @@ public final class HttpUtil {
       int maxPerRoute,
       String userAgent,
       HttpRequestInterceptor firstInterceptor) {
-    return newClientInternal(
-        timeout, maxConnections, maxPerRoute, userAgent, firstInterceptor, true);
+    ClientBuilder builder =
+        HttpClient.builder()
+            .setTimeout(timeout)
+            .setMaxConnections(maxConnections)
+            .setMaxPerRoute(maxPerRoute)
+            .setUserAgent(userAgent);
+    if (firstInterceptor != null) {
+      builder.addInterceptorFirst(firstInterceptor);
+    }
+    return builder.build();
+  }
+
+  /**
+   * This creates a new threadsafe, multithreaded HTTP client with support for HTTP and HTTPS, answering GET requests
+   * from an in memory cache where the Cache-Control and Expires headers of the responses allow.
+   *
+   * @param timeout in milliseconds
+   * @param maxConnections maximum allowed connections in total
+   * @param maxPerRoute maximum allowed connections per route
+   * @param maxCacheBytes maximum total size of the cached responses
+   * @see HttpClient#setResponseCache(HttpCache)
+   */
+  public static HttpClient newCachingMultithreadedClient(
+      int timeout, int maxConnections, int maxPerRoute, long maxCacheBytes) {
+    HttpClient client = newMultithreadedClient(timeout, maxConnections, maxPerRoute);
+    client.setResponseCache(HttpCache.inMemory(maxCacheBytes));
+    return client;
+  }
+
+  /**
+   * This creates a new threadsafe, multithreaded HTTP client with support for HTTP and HTTPS, answering GET requests
+   * from the given cache, for example one backed by a {@link org.gbif.utils.cache.DiskCacheStorage} to stay warm
+   * across restarts.
+   *
+   * @param timeout in milliseconds
+   * @param maxConnections maximum allowed connections in total
+   * @param maxPerRoute maximum allowed connections per route
+   * @see HttpClient#setResponseCache(HttpCache)
+   */
+  public static HttpClient newCachingMultithreadedClient(
+      int timeout, int maxConnections, int maxPerRoute, HttpCache cache) {
+    HttpClient client = newMultithreadedClient(timeout, maxConnections, maxPerRoute);
+    client.setResponseCache(cache);
+    return client;
+  }
+
+  /**
+   * This creates a new threadsafe, multithreaded HTTP client with support for HTTP and HTTPS, reporting the timings of
+   * its requests, the bytes transferred, the response status codes and the usage of its connection pool per route to
+   * the registry, and the phases of every exchange to the listeners. See {@link org.gbif.utils.metrics.HttpMetrics}
+   * for the names of the metrics.
+   * <p>
+   * The underlying {@link HttpClient#getClient() client} can be shared with a
+   * {@link org.gbif.varnish.VarnishPurger} to instrument purges as well.
+   *
+   * @param timeout in milliseconds
+   * @param maxConnections maximum allowed connections in total
+   * @param maxPerRoute maximum allowed connections per route
+   * @param metrics the registry to report to, e.g. a {@link org.gbif.utils.metrics.SimpleMetricsRegistry}, or null
+   * @param listeners receiving the phases of every exchange, e.g. a {@link SlowExchangeLogger}
+   */
+  public static HttpClient newMultithreadedClient(
+      int timeout,
+      int maxConnections,
+      int maxPerRoute,
+      MetricsRegistry metrics,
+      HttpEventListener... listeners) {
+    ClientBuilder builder =
+        HttpClient.builder()
+            .setTimeout(timeout)
+            .setMaxConnections(maxConnections)
+            .setMaxPerRoute(maxPerRoute)
+            .setMetrics(metrics);
+    Arrays.stream(listeners).forEach(builder::addEventListener);
+    return builder.build();
+  }
+
+  /**
+   * This creates a new threadsafe, multithreaded HTTP client with support for HTTP and HTTPS, evicting, validating and
+   * keeping alive its pooled connections as configured, e.g. for long running crawlers:
+   * <pre>{@code
+   * HttpUtil.newMultithreadedClient(60_000, 250, 5, ConnectionReuse.DEFAULT
+   *     .withIdleEviction(30, TimeUnit.SECONDS)
+   *     .withTimeToLive(10, TimeUnit.MINUTES)
+   *     .withMaxKeepAlive(30, TimeUnit.SECONDS));
+   * }</pre>
+   *
+   * @param timeout in milliseconds
+   * @param maxConnections maximum allowed connections in total
+   * @param maxPerRoute maximum allowed connections per route
+   * @param reuse the settings for keeping and reusing connections
+   */
+  public static HttpClient newMultithreadedClient(
+      int timeout, int maxConnections, int maxPerRoute, ConnectionReuse reuse) {
+    return HttpClient.builder()
+        .setTimeout(timeout)
+        .setMaxConnections(maxConnections)
+        .setMaxPerRoute(maxPerRoute)
+        .setConnectionReuse(reuse)
+        .build();
+  }
+
+  /**
+   * This creates a new threadsafe, multithreaded HTTP client with support for HTTP and HTTPS, retrying idempotent
+   * requests which failed with a transient error according to the policy.
+   *
+   * @param timeout in milliseconds
+   * @param maxConnections maximum allowed connections in total
+   * @param maxPerRoute maximum allowed connections per route
+   * @param retryPolicy the retry policy, used by this client only
+   */
+  public static HttpClient newMultithreadedClient(
+      int timeout, int maxConnections, int maxPerRoute, RetryPolicy retryPolicy) {
+    return HttpClient.builder()
+        .setTimeout(timeout)
+        .setMaxConnections(maxConnections)
+        .setMaxPerRoute(maxPerRoute)
+        .setRetryPolicy(retryPolicy)
+        .build();
+  }
+
+  /**
+   * This creates a new non-blocking HTTP client with support for HTTP and HTTPS and default values.
+   */
+  public static AsyncHttpClient newDefaultAsyncClient() {
+    return newAsyncClient(60_000, 250, 5);
   }
 
   /**
-   * Internal method for client creation.
+   * This creates a new non-blocking HTTP client with support for HTTP and HTTPS.
+   * <p>
+   * Requests are multiplexed over a connection pool served by an NIO reactor with one I/O thread per CPU core, so many
+   * concurrent requests don't need as many caller threads.
    *
-   * @see HttpUtil#newSinglethreadedClient
-   * @see HttpUtil#newMultithreadedClient(int, int, int)
-   * @see HttpUtil#newMultithreadedClient(int, int, int, String, HttpRequestInterceptor)
+   * @param timeout in milliseconds
+   * @param maxConnections maximum allowed connections in total
+   * @param maxPerRoute maximum allowed connections per route
    */
-  @SuppressWarnings({"rawtypes", "unchecked"})
-  private static HttpClient newClientInternal(
-      Integer timeout,
-      Integer maxConnections,
-      Integer maxPerRoute,
+  public static AsyncHttpClient newAsyncClient(int timeout, int maxConnections, int maxPerRoute) {
+    return newAsyncClientInternal(timeout, maxConnections, maxPerRoute, null, null);
+  }
+
+  /**
+   * This creates a new non-blocking HTTP client with support for HTTP and HTTPS.
+   * It also allows to use a custom user agent and first interceptor.
+   *
+   * @param timeout in milliseconds
+   * @param maxConnections maximum allowed connections in total
+   * @param maxPerRoute maximum allowed connections per route
+   */
+  public static AsyncHttpClient newAsyncClient(
+      int timeout,
+      int maxConnections,
+      int maxPerRoute,
       String userAgent,
-      HttpRequestInterceptor firstInterceptor,
-      boolean multithreaded) {
-    ConnectionConfig connectionConfig =
-        ConnectionConfig.custom().setCharset(StandardCharsets.UTF_8).build();
+      HttpRequestInterceptor firstInterceptor) {
+    return newAsyncClientInternal(
+        timeout, maxConnections, maxPerRoute, userAgent, firstInterceptor);
+  }
 
+  /**
+   * Internal method for non-blocking client creation. The returned client is already started.
+   *
+   * @see HttpUtil#newAsyncClient(int, int, int)
+   * @see HttpUtil#newAsyncClient(int, int, int, String, HttpRequestInterceptor)
+   */
+  private static AsyncHttpClient newAsyncClientInternal(
+      int timeout,
+      int maxConnections,
+      int maxPerRoute,
+      String userAgent,
+      HttpRequestInterceptor firstInterceptor) {
     RequestConfig defaultRequestConfig =
         RequestConfig.custom()
             .setSocketTimeout(timeout)
@@ -188,64 +350,71 @@ public final class HttpUtil {
             .setConnectionRequestTimeout(timeout)
             .build();
 
+    IOReactorConfig ioReactorConfig =
+        IOReactorConfig.custom().setConnectTimeout(timeout).setSoTimeout(timeout).build();
+
     SSLContext sslcontext = SSLContexts.createSystemDefault();
 
-    Registry registry =
-        RegistryBuilder.create()
-            .register("http", PlainConnectionSocketFactory.INSTANCE)
-            .register("https", new SSLConnectionSocketFactory(sslcontext))
+    Registry<SchemeIOSessionStrategy> registry =
+        RegistryBuilder.<SchemeIOSessionStrategy>create()
+            .register("http", NoopIOSessionStrategy.INSTANCE)
+            .register("https", new SSLIOSessionStrategy(sslcontext))
             .build();
 
-    PoolingHttpClientConnectionManager connectionManager =
-        new PoolingHttpClientConnectionManager(registry);
-    connectionManager.setDefaultConnectionConfig(connectionConfig);
-    Optional.ofNullable(maxConnections).ifPresent(connectionManager::setMaxTotal);
-    Optional.ofNullable(maxPerRoute).ifPresent(connectionManager::setDefaultMaxPerRoute);
-
-    RedirectStrategy redirectStrategy =
-        new DefaultRedirectStrategy() {
-          @Override
-          public boolean isRedirected(
-              HttpRequest request, HttpResponse response, HttpContext context)
-              throws ProtocolException {
-            return super.isRedirected(request, response, context)
-                || (response.getStatusLine().getStatusCode() == 308
-                    && isRedirectable(request.getRequestLine().getMethod()));
-          }
-        };
+    PoolingNHttpClientConnectionManager connectionManager;
+    try {
+      connectionManager =
+          new PoolingNHttpClientConnectionManager(
+              new DefaultConnectingIOReactor(ioReactorConfig), registry);
+    } catch (IOReactorException e) {
+      throw new IllegalStateException("Failed to create the I/O reactor", e);
+    }
+    connectionManager.setDefaultConnectionConfig(
+        ConnectionConfig.custom().setCharset(StandardCharsets.UTF_8).build());
+    connectionManager.setMaxTotal(maxConnections);
+    connectionManager.setDefaultMaxPerRoute(maxPerRoute);
 
     final String resultUserAgent;
     if (StringUtils.isNotEmpty(userAgent)) {
       resultUserAgent = userAgent;
-    } else if (multithreaded) {
-      resultUserAgent =
-          String.format(
-              "%s/%s (Java/%s; M-%d-%d-%d; +https://www.gbif.org/)",
-              GBIF_NAME, GBIF_VERSION, JAVA_VERSION, timeout, maxConnections, maxPerRoute);
     } else {
       resultUserAgent =
           String.format(
-              "%s/%s (Java/%s; S-%d; +https://www.gbif.org/)",
-              GBIF_NAME, GBIF_VERSION, JAVA_VERSION, timeout);
+              "%s/%s (Java/%s; A-%d-%d-%d; +https://www.gbif.org/)",
+              GBIF_NAME, GBIF_VERSION, JAVA_VERSION, timeout, maxConnections, maxPerRoute);
     }
 
-    HttpClientBuilder builder = HttpClientBuilder.create();
+    HttpAsyncClientBuilder builder = HttpAsyncClients.custom();
 
     if (firstInterceptor != null) {
       builder.addInterceptorFirst(firstInterceptor);
     }
 
-    CloseableHttpClient apacheHttpClient =
+    CloseableHttpAsyncClient apacheHttpClient =
         builder
-            // Retain compressed content, e.g. a tar.gz archive we download
-            .disableContentCompression()
-            .setRedirectStrategy(redirectStrategy)
+            .setRedirectStrategy(newRedirectStrategy())
             .setDefaultRequestConfig(defaultRequestConfig)
             .setConnectionManager(connectionManager)
             .setUserAgent(resultUserAgent)
             .build();
+    apacheHttpClient.start();
 
-    return new HttpClient(apacheHttpClient, defaultRequestConfig);
+    return new AsyncHttpClient(apacheHttpClient, defaultRequestConfig);
+  }
+
+  /**
+   * The default redirect strategy, extended to follow HTTP 308 permanent redirects.
+   */
+  static RedirectStrategy newRedirectStrategy() {
+    return new DefaultRedirectStrategy() {
+      @Override
+      public boolean isRedirected(HttpRequest request, HttpResponse response, HttpContext context)
+          throws ProtocolException {
+        return super.isRedirected(request, response, context)
+            || (response.getStatusLine().getStatusCode() == 308
+                && isRedirectable(request.getRequestLine().getMethod()));
+      }
+    };
   }
 
   public static String responseAsString(HttpResponse response) {
@@ -0,0 +1,214 @@
+/*
+ * Copyright 2021 Global Biodiversity Information Facility (GBIF)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.utils;
+
+import org.gbif.utils.metrics.HttpMetrics;
+import org.gbif.utils.metrics.MetricsRegistry;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.function.LongSupplier;
+
+import javax.net.ssl.SSLSession;
+
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpRequestInterceptor;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.protocol.HttpContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Collects the phases of the exchanges of a client from the connection manager, socket factories, request executor
+ * and response entities it instruments, and reports them to a {@link MetricsRegistry} and {@link HttpEventListener}s.
+ * <p/>
+ * As the first request interceptor it starts an {@link HttpExchange} for every attempt of a request, including
+ * retries and redirects, and keeps it in the context for the later phases. Leasing a connection and resolving a host
+ * get no context, but happen on the thread which started the exchange.
+ */
+class Instrumentation implements HttpRequestInterceptor {
+
+  private static final Logger LOG = LoggerFactory.getLogger(Instrumentation.class);
+
+  static final String EXCHANGE_ATTRIBUTE = "org.gbif.utils.exchange";
+
+  private static final MetricsRegistry NO_METRICS =
+      new MetricsRegistry() {
+        @Override
+        public void recordTime(String name, String route, long nanos) {}
+
+        @Override
+        public void increment(String name, String route, long delta) {}
+
+        @Override
+        public void gauge(String name, String route, LongSupplier value) {}
+      };
+
+  private final MetricsRegistry metrics;
+  private final List<HttpEventListener> listeners;
+  private final ThreadLocal<HttpExchange> current = new ThreadLocal<>();
+
+  Instrumentation(MetricsRegistry metrics, List<HttpEventListener> listeners) {
+    this.metrics = metrics != null ? metrics : NO_METRICS;
+    this.listeners = new ArrayList<>(listeners);
+  }
+
+  @Override
+  public void process(HttpRequest request, HttpContext context) {
+    Object route = context.getAttribute(HttpClientContext.HTTP_ROUTE);
+    HttpExchange exchange =
+        new HttpExchange(
+            request.getRequestLine().getMethod(),
+            request.getRequestLine().getUri(),
+            route instanceof HttpRoute ? name((HttpRoute) route) : HttpMetrics.ALL_ROUTES,
+            System.nanoTime());
+    context.setAttribute(EXCHANGE_ATTRIBUTE, exchange);
+    current.set(exchange);
+    notify(l -> l.started(exchange));
+  }
+
+  void gauge(String name, HttpRoute route, LongSupplier value) {
+    metrics.gauge(name, route != null ? name(route) : HttpMetrics.ALL_ROUTES, value);
+  }
+
+  void leased(HttpRoute route, long nanos) {
+    metrics.recordTime(HttpMetrics.LEASE_WAIT, name(route), nanos);
+    HttpExchange exchange = current.get();
+    if (exchange != null) {
+      long now = exchange.leasedNanos = System.nanoTime();
+      notify(l -> l.leaseAcquired(exchange, now));
+    }
+  }
+
+  void leaseFailed(HttpRoute route, long nanos, Exception e) {
+    metrics.recordTime(HttpMetrics.LEASE_WAIT, name(route), nanos);
+    failed(current.get(), name(route), e);
+  }
+
+  void resolved(InetAddress[] addresses) {
+    HttpExchange exchange = current.get();
+    if (exchange != null) {
+      long now = exchange.dnsResolvedNanos = System.nanoTime();
+      notify(l -> l.dnsResolved(exchange, addresses, now));
+    }
+  }
+
+  void tcpConnected(HttpContext context, InetSocketAddress remote) {
+    HttpExchange exchange = exchange(context);
+    if (exchange != null) {
+      long now = exchange.connectedNanos = System.nanoTime();
+      notify(l -> l.connected(exchange, remote, now));
+    }
+  }
+
+  void tlsHandshakeDone(HttpContext context, SSLSession session) {
+    HttpExchange exchange = exchange(context);
+    if (exchange != null) {
+      long now = exchange.tlsHandshakeNanos = System.nanoTime();
+      notify(l -> l.tlsHandshakeDone(exchange, session, now));
+    }
+  }
+
+  void connected(HttpRoute route, long nanos) {
+    metrics.recordTime(HttpMetrics.CONNECT, name(route), nanos);
+  }
+
+  void connectFailed(HttpRoute route, HttpContext context, Exception e) {
+    failed(exchange(context), name(route), e);
+  }
+
+  void sent(HttpContext context, long bytes) {
+    HttpExchange exchange = exchange(context);
+    if (exchange != null) {
+      long now = exchange.requestSentNanos = System.nanoTime();
+      metrics.increment(HttpMetrics.BYTES_OUT, exchange.getRoute(), bytes);
+      notify(l -> l.requestSent(exchange, bytes, now));
+    }
+  }
+
+  /**
+   * Records the arrival of the response head and instruments its entity to record the end of the exchange.
+   */
+  void received(HttpResponse response, HttpContext context) {
+    HttpExchange exchange = exchange(context);
+    if (exchange == null) {
+      return;
+    }
+    current.remove();
+    long now = exchange.firstByteNanos = System.nanoTime();
+    long sent =
+        exchange.requestSentNanos != 0 ? exchange.requestSentNanos : exchange.getStartNanos();
+    metrics.recordTime(HttpMetrics.TIME_TO_FIRST_BYTE, exchange.getRoute(), now - sent);
+    int status = response.getStatusLine().getStatusCode();
+    metrics.increment(HttpMetrics.STATUS + status, exchange.getRoute(), 1);
+    notify(l -> l.firstByte(exchange, status, now));
+    if (response.getEntity() != null) {
+      response.setEntity(new InstrumentedEntity(response.getEntity(), this, exchange));
+    } else {
+      completed(exchange, 0);
+    }
+  }
+
+  void completed(HttpExchange exchange, long bytes) {
+    long now = exchange.completedNanos = System.nanoTime();
+    metrics.increment(HttpMetrics.BYTES_IN, exchange.getRoute(), bytes);
+    metrics.recordTime(HttpMetrics.TOTAL, exchange.getRoute(), now - exchange.getStartNanos());
+    notify(l -> l.bodyComplete(exchange, bytes, now));
+  }
+
+  void failed(HttpContext context, Exception e) {
+    HttpExchange exchange = exchange(context);
+    failed(exchange, exchange != null ? exchange.getRoute() : HttpMetrics.ALL_ROUTES, e);
+  }
+
+  void failed(HttpExchange exchange, String route, Exception e) {
+    current.remove();
+    metrics.increment(HttpMetrics.ERRORS, route, 1);
+    if (exchange != null) {
+      long now = exchange.completedNanos = System.nanoTime();
+      notify(l -> l.failed(exchange, e, now));
+    }
+  }
+
+  private void notify(Consumer<HttpEventListener> event) {
+    for (HttpEventListener listener : listeners) {
+      try {
+        event.accept(listener);
+      } catch (RuntimeException e) {
+        LOG.warn("HTTP event listener {} failed", listener, e);
+      }
+    }
+  }
+
+  private static HttpExchange exchange(HttpContext context) {
+    Object exchange = context.getAttribute(EXCHANGE_ATTRIBUTE);
+    return exchange instanceof HttpExchange ? (HttpExchange) exchange : null;
+  }
+
+  /**
+   * @return the host and port of the target of the route, like {@code api.gbif.org:443}
+   */
+  static String name(HttpRoute route) {
+    HttpHost target = route.getTargetHost();
+    return target.getPort() > 0 ? target.toHostString() : target.getHostName();
+  }
+}
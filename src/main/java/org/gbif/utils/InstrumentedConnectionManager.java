@@ -0,0 +1,180 @@
+/*
+ * Copyright 2021 Global Biodiversity Information Facility (GBIF)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.utils;
+
+import org.gbif.utils.metrics.HttpMetrics;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+
+import org.apache.http.HttpClientConnection;
+import org.apache.http.HttpHost;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.apache.http.conn.ConnectionRequest;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.impl.conn.SystemDefaultDnsResolver;
+import org.apache.http.protocol.HttpContext;
+
+/**
+ * A connection pool reporting the time waited for connections, the host name resolution, TCP connect and TLS handshake
+ * of new connections and the pool usage per route to the instrumentation.
+ */
+class InstrumentedConnectionManager extends PoolingHttpClientConnectionManager {
+
+  private final Instrumentation instrumentation;
+  private final Set<HttpRoute> routes = ConcurrentHashMap.newKeySet();
+
+  /**
+   * @param timeToLive of connections in milliseconds, negative for unlimited
+   */
+  InstrumentedConnectionManager(
+      SSLContext sslContext, Instrumentation instrumentation, long timeToLive) {
+    super(
+        RegistryBuilder.<ConnectionSocketFactory>create()
+            .register("http", new PlainSocketFactory(instrumentation))
+            .register("https", new SslSocketFactory(sslContext, instrumentation))
+            .build(),
+        null,
+        null,
+        host -> {
+          InetAddress[] addresses = SystemDefaultDnsResolver.INSTANCE.resolve(host);
+          instrumentation.resolved(addresses);
+          return addresses;
+        },
+        timeToLive,
+        TimeUnit.MILLISECONDS);
+    this.instrumentation = instrumentation;
+    instrumentation.gauge(HttpMetrics.POOL_LEASED, null, () -> getTotalStats().getLeased());
+    instrumentation.gauge(HttpMetrics.POOL_AVAILABLE, null, () -> getTotalStats().getAvailable());
+    instrumentation.gauge(HttpMetrics.POOL_PENDING, null, () -> getTotalStats().getPending());
+  }
+
+  @Override
+  public ConnectionRequest requestConnection(HttpRoute route, Object state) {
+    if (routes.add(route)) {
+      watch(route);
+    }
+    ConnectionRequest request = super.requestConnection(route, state);
+    return new ConnectionRequest() {
+      @Override
+      public HttpClientConnection get(long timeout, TimeUnit unit)
+          throws InterruptedException, ExecutionException, ConnectionPoolTimeoutException {
+        long start = System.nanoTime();
+        try {
+          HttpClientConnection conn = request.get(timeout, unit);
+          instrumentation.leased(route, System.nanoTime() - start);
+          return conn;
+        } catch (ConnectionPoolTimeoutException e) {
+          instrumentation.leaseFailed(route, System.nanoTime() - start, e);
+          throw e;
+        }
+      }
+
+      @Override
+      public boolean cancel() {
+        return request.cancel();
+      }
+    };
+  }
+
+  private void watch(HttpRoute route) {
+    instrumentation.gauge(HttpMetrics.POOL_LEASED, route, () -> getStats(route).getLeased());
+    instrumentation.gauge(HttpMetrics.POOL_AVAILABLE, route, () -> getStats(route).getAvailable());
+    instrumentation.gauge(HttpMetrics.POOL_PENDING, route, () -> getStats(route).getPending());
+  }
+
+  @Override
+  public void connect(
+      HttpClientConnection managedConn, HttpRoute route, int connectTimeout, HttpContext context)
+      throws IOException {
+    long start = System.nanoTime();
+    try {
+      super.connect(managedConn, route, connectTimeout, context);
+    } catch (IOException e) {
+      instrumentation.connectFailed(route, context, e);
+      throw e;
+    }
+    instrumentation.connected(route, System.nanoTime() - start);
+  }
+
+  /**
+   * Reports plain connections once connected.
+   */
+  private static class PlainSocketFactory extends PlainConnectionSocketFactory {
+
+    private final Instrumentation instrumentation;
+
+    PlainSocketFactory(Instrumentation instrumentation) {
+      this.instrumentation = instrumentation;
+    }
+
+    @Override
+    public Socket connectSocket(
+        int connectTimeout,
+        Socket socket,
+        HttpHost host,
+        InetSocketAddress remoteAddress,
+        InetSocketAddress localAddress,
+        HttpContext context)
+        throws IOException {
+      Socket connected =
+          super.connectSocket(
+              connectTimeout, socket, host, remoteAddress, localAddress, context);
+      instrumentation.tcpConnected(context, remoteAddress);
+      return connected;
+    }
+  }
+
+  /**
+   * Reports TLS connections once connected, before the handshake, and again once the handshake is done.
+   */
+  private static class SslSocketFactory extends SSLConnectionSocketFactory {
+
+    private final Instrumentation instrumentation;
+
+    SslSocketFactory(SSLContext sslContext, Instrumentation instrumentation) {
+      super(sslContext);
+      this.instrumentation = instrumentation;
+    }
+
+    @Override
+    public Socket createLayeredSocket(
+        Socket socket, String target, int port, HttpContext context) throws IOException {
+      if (socket.getRemoteSocketAddress() instanceof InetSocketAddress) {
+        instrumentation.tcpConnected(context, (InetSocketAddress) socket.getRemoteSocketAddress());
+      }
+      Socket layered = super.createLayeredSocket(socket, target, port, context);
+      if (layered instanceof SSLSocket) {
+        instrumentation.tlsHandshakeDone(context, ((SSLSocket) layered).getSession());
+      }
+      return layered;
+    }
+  }
+}
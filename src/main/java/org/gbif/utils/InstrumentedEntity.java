@@ -0,0 +1,137 @@
+/*
+ * Copyright 2021 Global Biodiversity Information Facility (GBIF)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.utils;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.HttpEntityWrapper;
+
+/**
+ * A response entity counting the bytes read from it, which completes its exchange once the content was read to the
+ * end or closed, or fails it when reading fails.
+ */
+class InstrumentedEntity extends HttpEntityWrapper {
+
+  private final Instrumentation instrumentation;
+  private final HttpExchange exchange;
+  private final AtomicBoolean completed = new AtomicBoolean();
+  private long bytes;
+  private InputStream content;
+
+  InstrumentedEntity(HttpEntity entity, Instrumentation instrumentation, HttpExchange exchange) {
+    super(entity);
+    this.instrumentation = instrumentation;
+    this.exchange = exchange;
+  }
+
+  @Override
+  public InputStream getContent() throws IOException {
+    if (content == null || wrappedEntity.isRepeatable()) {
+      content = new CountingInputStream(wrappedEntity.getContent());
+    }
+    return content;
+  }
+
+  @Override
+  public void writeTo(OutputStream out) throws IOException {
+    // the wrapped entity would write without passing the counting stream
+    try (InputStream in = getContent()) {
+      byte[] buffer = new byte[8192];
+      int n;
+      while ((n = in.read(buffer)) != -1) {
+        out.write(buffer, 0, n);
+      }
+    }
+  }
+
+  private void complete() {
+    if (completed.compareAndSet(false, true)) {
+      instrumentation.completed(exchange, bytes);
+    }
+  }
+
+  private IOException fail(IOException e) {
+    if (completed.compareAndSet(false, true)) {
+      instrumentation.failed(exchange, exchange.getRoute(), e);
+    }
+    return e;
+  }
+
+  private class CountingInputStream extends FilterInputStream {
+
+    CountingInputStream(InputStream in) {
+      super(in);
+    }
+
+    @Override
+    public int read() throws IOException {
+      final int b;
+      try {
+        b = super.read();
+      } catch (IOException e) {
+        throw fail(e);
+      }
+      if (b == -1) {
+        complete();
+      } else {
+        bytes++;
+      }
+      return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      final int n;
+      try {
+        n = super.read(b, off, len);
+      } catch (IOException e) {
+        throw fail(e);
+      }
+      if (n == -1) {
+        complete();
+      } else {
+        bytes += n;
+      }
+      return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+      final long skipped;
+      try {
+        skipped = super.skip(n);
+      } catch (IOException e) {
+        throw fail(e);
+      }
+      bytes += skipped;
+      return skipped;
+    }
+
+    @Override
+    public void close() throws IOException {
+      try {
+        super.close();
+      } finally {
+        complete();
+      }
+    }
+  }
+}
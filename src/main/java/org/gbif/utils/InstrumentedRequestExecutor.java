@@ -0,0 +1,62 @@
+/*
+ * Copyright 2021 Global Biodiversity Information Facility (GBIF)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.utils;
+
+import java.io.IOException;
+
+import org.apache.http.HttpClientConnection;
+import org.apache.http.HttpException;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpRequestExecutor;
+
+/**
+ * Reports the bytes sent, the time to the response head and the status of every exchange to the instrumentation.
+ */
+class InstrumentedRequestExecutor extends HttpRequestExecutor {
+
+  private final Instrumentation instrumentation;
+
+  InstrumentedRequestExecutor(Instrumentation instrumentation) {
+    this.instrumentation = instrumentation;
+  }
+
+  @Override
+  public HttpResponse execute(HttpRequest request, HttpClientConnection conn, HttpContext context)
+      throws IOException, HttpException {
+    final HttpResponse response;
+    try {
+      response = super.execute(request, conn, context);
+    } catch (IOException | HttpException | RuntimeException e) {
+      instrumentation.failed(context, e);
+      throw e;
+    }
+    // also covers a final response received in place of 100-continue while sending
+    instrumentation.received(response, context);
+    return response;
+  }
+
+  @Override
+  protected HttpResponse doSendRequest(
+      HttpRequest request, HttpClientConnection conn, HttpContext context)
+      throws IOException, HttpException {
+    long before = conn.getMetrics().getSentBytesCount();
+    HttpResponse response = super.doSendRequest(request, conn, context);
+    instrumentation.sent(context, conn.getMetrics().getSentBytesCount() - before);
+    return response;
+  }
+}
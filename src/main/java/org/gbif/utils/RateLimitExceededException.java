@@ -0,0 +1,41 @@
+/*
+ * Copyright 2021 Global Biodiversity Information Facility (GBIF)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.utils;
+
+import java.io.IOException;
+
+/**
+ * Thrown instead of sending a request to a host which couldn't be sent one within the maximum wait of its rate
+ * limit.
+ */
+public class RateLimitExceededException extends IOException {
+
+  private static final long serialVersionUID = 1L;
+
+  private final String host;
+
+  public RateLimitExceededException(String host, double rate) {
+    super("Rate limit of " + rate + " requests per second exceeded for " + host);
+    this.host = host;
+  }
+
+  /**
+   * @return the host name of the limit, like {@code api.gbif.org}
+   */
+  public String getHost() {
+    return host;
+  }
+}
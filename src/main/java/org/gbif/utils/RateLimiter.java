@@ -0,0 +1,111 @@
+/*
+ * Copyright 2021 Global Biodiversity Information Facility (GBIF)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.utils;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A lock-free token bucket limiting the request rate to a single host. The bucket is kept as the time the next
+ * request is due, which is the same as a bucket refilled at the rate and holding up to the burst, but needs a single
+ * compare and set to take a token or reserve one in the future.
+ */
+public class RateLimiter {
+
+  private final String host;
+  private final double rate;
+  private final int burst;
+  private final long intervalNanos;
+  private final long toleranceNanos;
+  private final AtomicLong nextDue = new AtomicLong(System.nanoTime());
+  private final LongAdder delayed = new LongAdder();
+  private final LongAdder rejected = new LongAdder();
+
+  RateLimiter(String host, double rate, int burst) {
+    this.host = host;
+    this.rate = rate;
+    this.burst = burst;
+    this.intervalNanos = (long) (TimeUnit.SECONDS.toNanos(1) / rate);
+    this.toleranceNanos = (burst - 1) * intervalNanos;
+  }
+
+  /**
+   * @return the host name the limit applies to
+   */
+  public String getHost() {
+    return host;
+  }
+
+  /**
+   * @return the requests allowed per second
+   */
+  public double getRate() {
+    return rate;
+  }
+
+  /**
+   * @return the requests allowed at once after a pause
+   */
+  public int getBurst() {
+    return burst;
+  }
+
+  /**
+   * @return the number of requests which had to wait for a token
+   */
+  public long getDelayedCount() {
+    return delayed.sum();
+  }
+
+  /**
+   * @return the number of requests rejected because their token was too far away
+   */
+  public long getRejectedCount() {
+    return rejected.sum();
+  }
+
+  /**
+   * Reserves the next token, unless it would only be available after the maximum wait.
+   *
+   * @return the nanoseconds to wait before sending the request, or -1 if no token was reserved
+   */
+  long reserve(long maxWaitNanos) {
+    while (true) {
+      long now = System.nanoTime();
+      long due = nextDue.get();
+      // an idle bucket fills up to the burst, but no further
+      long start = due - now > 0 ? due : now;
+      long wait = start - toleranceNanos - now;
+      if (wait > maxWaitNanos) {
+        rejected.increment();
+        return -1;
+      }
+      if (nextDue.compareAndSet(due, start + intervalNanos)) {
+        if (wait > 0) {
+          delayed.increment();
+          return wait;
+        }
+        return 0;
+      }
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "RateLimiter{host=" + host + ", rate=" + rate + ", burst=" + burst + "}";
+  }
+}
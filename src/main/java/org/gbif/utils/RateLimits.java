@@ -0,0 +1,247 @@
+/*
+ * Copyright 2021 Global Biodiversity Information Facility (GBIF)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.utils;
+
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * The request rates agreed with the hosts a client talks to, as a {@link RateLimiter} per host name created on first
+ * use from the first matching host pattern. Hosts matching no pattern aren't limited.
+ * <p/>
+ * Set them with {@link ClientBuilder#setRateLimits(RateLimits)}, where requests wait for their turn blocking the
+ * calling thread, or with {@link AsyncHttpClient#setRateLimits(RateLimits)}, where requests are scheduled to start
+ * at their turn without holding a thread. Requests which would have to wait longer than the maximum wait fail with a
+ * {@link RateLimitExceededException}.
+ */
+public class RateLimits {
+
+  private final List<Rate> rates;
+  private final long maxWaitNanos;
+  private final ScheduledExecutorService scheduler;
+  private final Map<String, RateLimiter> limiters = new ConcurrentHashMap<>();
+
+  private RateLimits(Builder builder) {
+    this.rates = new ArrayList<>(builder.rates);
+    this.maxWaitNanos = builder.maxWaitNanos;
+    this.scheduler =
+        builder.scheduler != null
+            ? builder.scheduler
+            : Executors.newSingleThreadScheduledExecutor(
+                r -> {
+                  Thread thread = new Thread(r, "http-rate-limit");
+                  thread.setDaemon(true);
+                  return thread;
+                });
+  }
+
+  /**
+   * @return a builder without any limits, letting requests wait up to a minute for their turn
+   */
+  public static Builder custom() {
+    return new Builder();
+  }
+
+  /**
+   * @param host the host name, like {@code api.gbif.org}
+   * @return the limiter of the host, created if needed, or null if the host isn't limited
+   */
+  public RateLimiter get(String host) {
+    String name = host.toLowerCase(Locale.ROOT);
+    RateLimiter limiter = limiters.get(name);
+    if (limiter != null) {
+      return limiter;
+    }
+    for (Rate rate : rates) {
+      if (rate.matches(name)) {
+        return limiters.computeIfAbsent(name, h -> new RateLimiter(h, rate.perSecond, rate.burst));
+      }
+    }
+    return null;
+  }
+
+  /**
+   * @return the limiters by host name
+   */
+  public Map<String, RateLimiter> getAll() {
+    return Collections.unmodifiableMap(limiters);
+  }
+
+  /**
+   * Blocks until the host may be sent a request.
+   *
+   * @throws RateLimitExceededException if the request would have to wait longer than the maximum wait
+   */
+  void acquire(String host) throws RateLimitExceededException, InterruptedIOException {
+    RateLimiter limiter = get(host);
+    if (limiter == null) {
+      return;
+    }
+    long wait = limiter.reserve(maxWaitNanos);
+    if (wait < 0) {
+      throw new RateLimitExceededException(limiter.getHost(), limiter.getRate());
+    }
+    if (wait > 0) {
+      try {
+        TimeUnit.NANOSECONDS.sleep(wait);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Interrupted waiting to send a request to " + host);
+      }
+    }
+  }
+
+  /**
+   * Starts the exchange once the host may be sent a request, without blocking. Cancelling the returned future before
+   * the exchange started drops it.
+   */
+  <T> CompletableFuture<T> schedule(String host, Supplier<CompletableFuture<T>> exchange) {
+    RateLimiter limiter = get(host);
+    long wait = limiter != null ? limiter.reserve(maxWaitNanos) : 0;
+    if (wait == 0) {
+      return exchange.get();
+    }
+    CompletableFuture<T> result = new CompletableFuture<>();
+    if (wait < 0) {
+      result.completeExceptionally(
+          new RateLimitExceededException(limiter.getHost(), limiter.getRate()));
+      return result;
+    }
+    ScheduledFuture<?> start =
+        scheduler.schedule(
+            () -> {
+              if (result.isDone()) {
+                return;
+              }
+              CompletableFuture<T> started;
+              try {
+                started = exchange.get();
+              } catch (RuntimeException e) {
+                // the scheduler would swallow it, leaving the result incomplete
+                result.completeExceptionally(e);
+                return;
+              }
+              started.whenComplete(
+                  (value, e) -> {
+                    if (e != null) {
+                      result.completeExceptionally(e);
+                    } else {
+                      result.complete(value);
+                    }
+                  });
+              result.whenComplete(
+                  (value, e) -> {
+                    if (result.isCancelled()) {
+                      started.cancel(true);
+                    }
+                  });
+            },
+            wait,
+            TimeUnit.NANOSECONDS);
+    result.whenComplete(
+        (value, e) -> {
+          if (result.isCancelled()) {
+            start.cancel(false);
+          }
+        });
+    return result;
+  }
+
+  /**
+   * The rate of the hosts matching a pattern.
+   */
+  private static class Rate {
+
+    private final String pattern;
+    private final double perSecond;
+    private final int burst;
+
+    Rate(String pattern, double perSecond, int burst) {
+      this.pattern = pattern.toLowerCase(Locale.ROOT);
+      this.perSecond = perSecond;
+      this.burst = burst;
+    }
+
+    boolean matches(String host) {
+      if (pattern.equals("*")) {
+        return true;
+      } else if (pattern.startsWith("*.")) {
+        return host.endsWith(pattern.substring(1));
+      }
+      return host.equals(pattern);
+    }
+  }
+
+  /**
+   * Builds {@link RateLimits}.
+   */
+  public static class Builder {
+
+    private final List<Rate> rates = new ArrayList<>();
+    private long maxWaitNanos = TimeUnit.MINUTES.toNanos(1);
+    private ScheduledExecutorService scheduler;
+
+    private Builder() {}
+
+    /**
+     * Limits the requests to each host matching the pattern, unless a pattern set before matches it already.
+     *
+     * @param hostPattern a host name like {@code api.gbif.org}, all its subdomains like {@code *.gbif.org} or any
+     * host {@code *}
+     * @param perSecond the requests allowed per second to each host
+     * @param burst the requests allowed at once to a host after a pause
+     */
+    public Builder setRate(String hostPattern, double perSecond, int burst) {
+      if (perSecond <= 0 || burst < 1) {
+        throw new IllegalArgumentException(
+            "Rate and burst must be positive: " + perSecond + " " + burst);
+      }
+      rates.add(new Rate(hostPattern, perSecond, burst));
+      return this;
+    }
+
+    /**
+     * @param maxWait the time a request waits for its turn at most, requests due later fail right away
+     */
+    public Builder setMaxWait(long maxWait, TimeUnit unit) {
+      this.maxWaitNanos = unit.toNanos(maxWait);
+      return this;
+    }
+
+    /**
+     * @param scheduler starts delayed asynchronous requests, by default a single daemon thread
+     */
+    public Builder setScheduler(ScheduledExecutorService scheduler) {
+      this.scheduler = scheduler;
+      return this;
+    }
+
+    public RateLimits build() {
+      return new RateLimits(this);
+    }
+  }
+}
@@ -0,0 +1,255 @@
+/*
+ * Copyright 2021 Global Biodiversity Information Facility (GBIF)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.utils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.URL;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.util.Date;
+import java.util.Properties;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpStatus;
+import org.apache.http.StatusLine;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.utils.DateUtils;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Downloads a file via a partial file next to the target, so an interrupted transfer can be continued later with a
+ * range request instead of starting over.
+ * <p/>
+ * The partial file is named after the target with a {@code .part} suffix. A small properties sidecar with a
+ * {@code .part.meta} suffix records the URL, the ETag and Last-Modified validators of the response and the number of
+ * bytes safely received. Resumed requests carry {@code If-Range}, so a changed file is sent in full again.
+ */
+class ResumableDownload {
+
+  private static final Logger LOG = LoggerFactory.getLogger(ResumableDownload.class);
+
+  static final String PART_SUFFIX = ".part";
+  static final String META_SUFFIX = ".part.meta";
+
+  private static final String URL_KEY = "url";
+  private static final String ETAG_KEY = "etag";
+  private static final String LAST_MODIFIED_KEY = "lastModified";
+  private static final String RECEIVED_KEY = "received";
+
+  // how often the received byte count is synced to disk
+  private static final long CHECKPOINT_BYTES = 16L * 1024 * 1024;
+
+  private final CloseableHttpClient client;
+  private final RequestConfig requestConfig;
+  private final boolean sync;
+  private Validators result;
+
+  ResumableDownload(CloseableHttpClient client, RequestConfig requestConfig, boolean sync) {
+    this.client = client;
+    this.requestConfig = requestConfig;
+    this.sync = sync;
+  }
+
+  /**
+   * Downloads the URL to the file, continuing a previously interrupted download if possible.
+   *
+   * @param lastModified optional date for a conditional GET, ignored when resuming a partial download
+   * @param validators optional validators for a conditional GET, ignored when resuming a partial download
+   */
+  @SuppressWarnings("ResultOfMethodCallIgnored")
+  StatusLine download(URL url, Date lastModified, Validators validators, File downloadTo)
+      throws IOException {
+    File dir = downloadTo.getAbsoluteFile().getParentFile();
+    File part = new File(dir, downloadTo.getName() + PART_SUFFIX);
+    File meta = new File(dir, downloadTo.getName() + META_SUFFIX);
+    FileUtils.forceMkdir(dir);
+
+    Properties state = readState(url, part, meta);
+    long offset = Long.parseLong(state.getProperty(RECEIVED_KEY, "0"));
+    String validator =
+        state.getProperty(ETAG_KEY) != null
+            ? state.getProperty(ETAG_KEY)
+            : state.getProperty(LAST_MODIFIED_KEY);
+
+    HttpGet get = new HttpGet(url.toString());
+    if (requestConfig != null) {
+      get.setConfig(requestConfig);
+    }
+    if (offset > 0 && validator != null) {
+      LOG.debug("Resuming download of {} at byte {}", url, offset);
+      get.setHeader(HttpHeaders.RANGE, "bytes=" + offset + "-");
+      get.setHeader(HttpHeaders.IF_RANGE, validator);
+    } else {
+      offset = 0;
+      HttpClient.addConditionalHeaders(get, lastModified, validators);
+    }
+
+    final StatusLine status;
+    try (CloseableHttpResponse response = client.execute(get)) {
+      status = response.getStatusLine();
+      int code = status.getStatusCode();
+
+      if (code == HttpStatus.SC_REQUESTED_RANGE_NOT_SATISFIABLE && offset > 0) {
+        LOG.debug("Partial download of {} no longer valid, starting over", url);
+        discard(part, meta);
+        return download(url, lastModified, validators, downloadTo);
+      } else if (code == HttpStatus.SC_NOT_MODIFIED) {
+        LOG.debug("Content not modified since last request");
+        return status;
+      } else if (!HttpUtil.success(status)) {
+        LOG.error("Downloading {} to {} failed!: {}", url, downloadTo.getAbsolutePath(), code);
+        return status;
+      }
+
+      HttpEntity entity = response.getEntity();
+      if (entity == null) {
+        return status;
+      }
+
+      if (code != HttpStatus.SC_PARTIAL_CONTENT || !startsAt(response, offset)) {
+        // the server sent the whole (possibly changed) file
+        offset = 0;
+      }
+      Header etag = response.getFirstHeader(HttpHeaders.ETAG);
+      Header modHeader = response.getFirstHeader(HttpHeaders.LAST_MODIFIED);
+      if (offset == 0) {
+        state.clear();
+        state.setProperty(URL_KEY, url.toString());
+        if (etag != null && !etag.getValue().startsWith("W/")) {
+          state.setProperty(ETAG_KEY, etag.getValue());
+        }
+        if (modHeader != null) {
+          state.setProperty(LAST_MODIFIED_KEY, modHeader.getValue());
+        }
+      }
+
+      receive(entity, part, meta, state, offset);
+    }
+
+    // the download is complete, put it in place
+    FileTransfer.moveOver(part, downloadTo);
+    Files.deleteIfExists(meta.toPath());
+
+    // update last modified of file with HTTP header date from server
+    String modified = state.getProperty(LAST_MODIFIED_KEY);
+    Date serverModified = modified != null ? DateUtils.parseDate(modified) : null;
+    if (serverModified != null) {
+      downloadTo.setLastModified(serverModified.getTime());
+    }
+    LOG.debug("Successfully downloaded {} to {}", url, downloadTo.getAbsolutePath());
+    result = new Validators(state.getProperty(ETAG_KEY), state.getProperty(LAST_MODIFIED_KEY));
+    return status;
+  }
+
+  /**
+   * @return the validators of the completed download, or null
+   */
+  Validators getValidators() {
+    return result;
+  }
+
+  /**
+   * Streams the entity into the partial file from the offset, checkpointing the received byte count regularly and
+   * when the transfer fails.
+   */
+  private void receive(HttpEntity entity, File part, File meta, Properties state, long offset)
+      throws IOException {
+    long received = offset;
+    try (RandomAccessFile file = new RandomAccessFile(part, "rw");
+        InputStream in = entity.getContent()) {
+      FileChannel channel = file.getChannel();
+      channel.truncate(offset);
+      state.setProperty(RECEIVED_KEY, String.valueOf(offset));
+      writeState(meta, state);
+
+      try {
+        long chunk;
+        do {
+          chunk = FileTransfer.transfer(in, channel, received, CHECKPOINT_BYTES);
+          received += chunk;
+          if (chunk == CHECKPOINT_BYTES) {
+            checkpoint(channel, meta, state, received);
+          }
+        } while (chunk == CHECKPOINT_BYTES);
+      } catch (IOException e) {
+        LOG.warn("Download interrupted after {} bytes, keeping partial file {}", received, part);
+        checkpoint(channel, meta, state, received);
+        throw e;
+      }
+      if (sync) {
+        channel.force(true);
+      }
+    }
+  }
+
+  private static void checkpoint(FileChannel channel, File meta, Properties state, long received)
+      throws IOException {
+    // the data must be on disk before the sidecar claims it
+    channel.force(false);
+    state.setProperty(RECEIVED_KEY, String.valueOf(received));
+    writeState(meta, state);
+  }
+
+  /**
+   * @return the recorded state of a previous download of the same URL, or an empty state
+   */
+  private static Properties readState(URL url, File part, File meta) {
+    Properties state = new Properties();
+    if (part.isFile() && meta.isFile()) {
+      try (InputStream in = new FileInputStream(meta)) {
+        state.load(in);
+        long received = Long.parseLong(state.getProperty(RECEIVED_KEY, "0"));
+        if (url.toString().equals(state.getProperty(URL_KEY))) {
+          // never trust more bytes than are actually in the partial file
+          state.setProperty(RECEIVED_KEY, String.valueOf(Math.min(received, part.length())));
+          return state;
+        }
+      } catch (IOException | NumberFormatException e) {
+        LOG.warn("Ignoring unreadable download state {}", meta, e);
+      }
+    }
+    return new Properties();
+  }
+
+  private static void writeState(File meta, Properties state) throws IOException {
+    try (OutputStream out = new FileOutputStream(meta)) {
+      state.store(out, "Partial download state");
+    }
+  }
+
+  private static void discard(File part, File meta) throws IOException {
+    Files.deleteIfExists(part.toPath());
+    Files.deleteIfExists(meta.toPath());
+  }
+
+  private static boolean startsAt(CloseableHttpResponse response, long offset) {
+    Header contentRange = response.getFirstHeader(HttpHeaders.CONTENT_RANGE);
+    return contentRange != null && contentRange.getValue().startsWith("bytes " + offset + "-");
+  }
+}
@@ -0,0 +1,287 @@
+/*
+ * Copyright 2021 Global Biodiversity Information Facility (GBIF)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.utils;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.net.ssl.SSLException;
+
+import org.apache.http.Header;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpRequestInterceptor;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.HttpRequestRetryHandler;
+import org.apache.http.client.ServiceUnavailableRetryStrategy;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.client.utils.DateUtils;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.util.EntityUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Retries idempotent requests failing with a transient error: a {@code 429}, {@code 502}, {@code 503} or
+ * {@code 504} response or an I/O error like a connection reset. Retries wait an exponentially growing delay with full
+ * jitter, or as long as the {@code Retry-After} header of the response says.
+ * <p/>
+ * A retry budget keeps retries to a fraction of the requests, with a small reserve for quiet periods, so a failing
+ * server isn't hit by a storm of retries from every caller.
+ * <p/>
+ * Create a policy with {@link #custom()} and set it with {@link ClientBuilder#setRetryPolicy(RetryPolicy)}. A policy
+ * keeps the budget of the client it is set on and must not be shared between clients.
+ */
+public class RetryPolicy
+    implements HttpRequestRetryHandler, ServiceUnavailableRetryStrategy, HttpRequestInterceptor {
+
+  private static final Logger LOG = LoggerFactory.getLogger(RetryPolicy.class);
+
+  private static final String COUNTED_ATTRIBUTE = "org.gbif.utils.retry.counted";
+
+  // PURGE and BAN invalidations of Varnish can be repeated safely as well
+  private static final Set<String> IDEMPOTENT_METHODS =
+      new HashSet<>(
+          Arrays.asList("GET", "HEAD", "OPTIONS", "TRACE", "PUT", "DELETE", "PURGE", "BAN"));
+
+  // HttpStatus has no constant for 429 Too Many Requests
+  static final int SC_TOO_MANY_REQUESTS = 429;
+
+  private static final Set<Integer> RETRIED_STATUS =
+      new HashSet<>(
+          Arrays.asList(
+              SC_TOO_MANY_REQUESTS,
+              HttpStatus.SC_BAD_GATEWAY,
+              HttpStatus.SC_SERVICE_UNAVAILABLE,
+              HttpStatus.SC_GATEWAY_TIMEOUT));
+
+  private final int maxRetries;
+  private final long baseDelay;
+  private final long maxDelay;
+  private final TokenBudget budget;
+  private final ThreadLocal<Long> nextInterval = new ThreadLocal<>();
+  private final LongAdder retries = new LongAdder();
+  private final LongAdder budgetExhausted = new LongAdder();
+
+  private RetryPolicy(Builder builder) {
+    this.maxRetries = builder.maxRetries;
+    this.baseDelay = builder.baseDelay;
+    this.maxDelay = builder.maxDelay;
+    this.budget = new TokenBudget(builder.budgetRatio, builder.minRetries);
+  }
+
+  /**
+   * @return a builder for a policy, by default with 3 retries, delays from 100ms to 10s and a budget of 20% retries
+   */
+  public static Builder custom() {
+    return new Builder();
+  }
+
+  /**
+   * Counts every request, but not its retries or redirects, to fill the retry budget.
+   */
+  @Override
+  public void process(HttpRequest request, HttpContext context) {
+    if (context.getAttribute(COUNTED_ATTRIBUTE) == null) {
+      context.setAttribute(COUNTED_ATTRIBUTE, Boolean.TRUE);
+      budget.deposit();
+    }
+  }
+
+  @Override
+  public boolean retryRequest(IOException exception, int executionCount, HttpContext context) {
+    if (executionCount > maxRetries || !retriable(exception) || !idempotent(context)) {
+      return false;
+    }
+    return withdraw(context) && sleep(delay(executionCount));
+  }
+
+  @Override
+  public boolean retryRequest(HttpResponse response, int executionCount, HttpContext context) {
+    if (executionCount > maxRetries
+        || !RETRIED_STATUS.contains(response.getStatusLine().getStatusCode())
+        || !idempotent(context)) {
+      return false;
+    }
+    long delay = delay(executionCount);
+    Long retryAfter = retryAfter(response);
+    if (retryAfter != null) {
+      if (retryAfter > maxDelay) {
+        LOG.debug("Not retrying, Retry-After of {}ms exceeds the maximum delay", retryAfter);
+        return false;
+      }
+      delay = retryAfter;
+    }
+    if (!withdraw(context)) {
+      return false;
+    }
+    // allows the connection to be reused for the retry
+    EntityUtils.consumeQuietly(response.getEntity());
+    nextInterval.set(delay);
+    return true;
+  }
+
+  /**
+   * @return the delay computed by the last call to {@link #retryRequest(HttpResponse, int, HttpContext)} on this
+   * thread
+   */
+  @Override
+  public long getRetryInterval() {
+    Long interval = nextInterval.get();
+    nextInterval.remove();
+    return interval != null ? interval : 0;
+  }
+
+  /**
+   * @return the number of retries made
+   */
+  public long getRetryCount() {
+    return retries.sum();
+  }
+
+  /**
+   * @return the number of retries given up because the budget was exhausted
+   */
+  public long getBudgetExhaustedCount() {
+    return budgetExhausted.sum();
+  }
+
+  /**
+   * @return a random delay up to the exponentially growing backoff of the attempt
+   */
+  long delay(int executionCount) {
+    long backoff = baseDelay << Math.min(executionCount - 1, 30);
+    return ThreadLocalRandom.current().nextLong(Math.min(backoff, maxDelay) + 1);
+  }
+
+  private boolean withdraw(HttpContext context) {
+    if (!budget.withdraw()) {
+      budgetExhausted.increment();
+      LOG.debug("Not retrying {}, retry budget exhausted", request(context));
+      return false;
+    }
+    retries.increment();
+    return true;
+  }
+
+  private static boolean retriable(IOException exception) {
+    // timeouts, including pool lease timeouts, already waited long enough
+    return !(exception instanceof InterruptedIOException)
+        && !(exception instanceof UnknownHostException)
+        && !(exception instanceof SSLException)
+        && !(exception instanceof CircuitBreakerOpenException)
+        && !(exception instanceof ConcurrencyLimitExceededException)
+        && !(exception instanceof RateLimitExceededException);
+  }
+
+  private static boolean idempotent(HttpContext context) {
+    HttpRequest request = request(context);
+    if (request == null
+        || (request instanceof HttpUriRequest && ((HttpUriRequest) request).isAborted())) {
+      return false;
+    }
+    return IDEMPOTENT_METHODS.contains(
+        request.getRequestLine().getMethod().toUpperCase(Locale.ENGLISH));
+  }
+
+  private static HttpRequest request(HttpContext context) {
+    return HttpClientContext.adapt(context).getRequest();
+  }
+
+  private static boolean sleep(long millis) {
+    try {
+      TimeUnit.MILLISECONDS.sleep(millis);
+      return true;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return false;
+    }
+  }
+
+  /**
+   * @return the delay requested by a Retry-After header in seconds or as a date, or null
+   */
+  static Long retryAfter(HttpResponse response) {
+    Header header = response.getFirstHeader(HttpHeaders.RETRY_AFTER);
+    if (header == null) {
+      return null;
+    }
+    String value = header.getValue().trim();
+    try {
+      return Math.max(0, TimeUnit.SECONDS.toMillis(Long.parseLong(value)));
+    } catch (NumberFormatException e) {
+      Date date = DateUtils.parseDate(value);
+      return date != null ? Math.max(0, date.getTime() - System.currentTimeMillis()) : null;
+    }
+  }
+
+  /**
+   * Builds a {@link RetryPolicy}.
+   */
+  public static class Builder {
+
+    private int maxRetries = 3;
+    private long baseDelay = 100;
+    private long maxDelay = 10_000;
+    private double budgetRatio = 0.2;
+    private int minRetries = 10;
+
+    private Builder() {}
+
+    /**
+     * @param maxRetries the number of retries of a request after the first attempt
+     */
+    public Builder setMaxRetries(int maxRetries) {
+      this.maxRetries = maxRetries;
+      return this;
+    }
+
+    /**
+     * Sets the range of the backoff, which starts at the base delay and doubles with every retry up to the maximum.
+     * Each retry waits a random delay up to the backoff. A {@code Retry-After} longer than the maximum isn't retried.
+     */
+    public Builder setDelay(long baseDelay, long maxDelay, TimeUnit unit) {
+      this.baseDelay = unit.toMillis(baseDelay);
+      this.maxDelay = unit.toMillis(maxDelay);
+      return this;
+    }
+
+    /**
+     * @param ratio the maximum number of retries per request, e.g. 0.2 for 20%
+     * @param minRetries the retries allowed regardless of the ratio, also the most saved up in quiet periods
+     */
+    public Builder setBudget(double ratio, int minRetries) {
+      this.budgetRatio = ratio;
+      this.minRetries = minRetries;
+      return this;
+    }
+
+    public RetryPolicy build() {
+      return new RetryPolicy(this);
+    }
+  }
+}
@@ -0,0 +1,266 @@
+/*
+ * Copyright 2021 Global Biodiversity Information Facility (GBIF)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpStatus;
+import org.apache.http.StatusLine;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpHead;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.client.utils.DateUtils;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Downloads a single large file as several byte ranges fetched concurrently, each over its own pooled connection,
+ * and written at their offsets into a temporary file which replaces the target once complete.
+ */
+class SegmentedDownload {
+
+  private static final Logger LOG = LoggerFactory.getLogger(SegmentedDownload.class);
+
+  /**
+   * Files are not split into segments smaller than this, as the extra requests wouldn't pay off.
+   */
+  static final long MIN_SEGMENT_SIZE = 8L * 1024 * 1024;
+
+  private final CloseableHttpClient client;
+  private final RequestConfig requestConfig;
+  private final ExecutorService executor;
+  private final boolean sync;
+
+  // requests in flight, aborted when any segment fails
+  private final Queue<HttpGet> requests = new ConcurrentLinkedQueue<>();
+
+  SegmentedDownload(
+      CloseableHttpClient client,
+      RequestConfig requestConfig,
+      ExecutorService executor,
+      boolean sync) {
+    this.client = client;
+    this.requestConfig = requestConfig;
+    this.executor = executor;
+    this.sync = sync;
+  }
+
+  /**
+   * Probes the server with a HEAD request and downloads the file in segments if it supports byte ranges.
+   *
+   * @return the status of the probe if the file was downloaded, or null if the server doesn't support ranges, the file
+   * is too small to split or the server ignored a range request, in which case a single stream download is needed
+   */
+  @SuppressWarnings("ResultOfMethodCallIgnored")
+  StatusLine download(URL url, File downloadTo, int segments) throws IOException {
+    HttpHead head = new HttpHead(url.toString());
+    if (requestConfig != null) {
+      head.setConfig(requestConfig);
+    }
+
+    HttpClientContext context = HttpClientContext.create();
+    final StatusLine status;
+    final long length;
+    final String validator;
+    final Date serverModified;
+    try (CloseableHttpResponse response = client.execute(head, context)) {
+      status = response.getStatusLine();
+      length = contentLength(response);
+      if (!HttpUtil.success(status) || !acceptsRanges(response)) {
+        return null;
+      }
+      validator = validator(response);
+      Header modHeader = response.getFirstHeader(HttpHeaders.LAST_MODIFIED);
+      serverModified = modHeader != null ? DateUtils.parseDate(modHeader.getValue()) : null;
+    }
+
+    int count = (int) Math.min(segments, length / MIN_SEGMENT_SIZE);
+    if (count < 2) {
+      return null;
+    }
+
+    // request the ranges from where any redirects ended
+    URI uri;
+    try {
+      List<URI> redirects = context.getRedirectLocations();
+      uri =
+          redirects != null && !redirects.isEmpty()
+              ? redirects.get(redirects.size() - 1)
+              : url.toURI();
+    } catch (URISyntaxException e) {
+      throw new IOException("Invalid URL " + url, e);
+    }
+
+    LOG.debug("Downloading {} bytes from {} in {} segments", length, uri, count);
+    File tmp = FileTransfer.tempFileFor(downloadTo);
+    try {
+      try (RandomAccessFile file = new RandomAccessFile(tmp, "rw")) {
+        file.setLength(length);
+        if (!fetchSegments(uri, validator, length, count, file.getChannel())) {
+          return null;
+        }
+        if (sync) {
+          file.getChannel().force(true);
+        }
+      }
+      FileTransfer.moveOver(tmp, downloadTo);
+    } finally {
+      Files.deleteIfExists(tmp.toPath());
+    }
+
+    // update last modified of file with HTTP header date from server
+    if (serverModified != null) {
+      downloadTo.setLastModified(serverModified.getTime());
+    }
+    return status;
+  }
+
+  private boolean fetchSegments(
+      URI uri, String validator, long length, int count, FileChannel channel)
+      throws IOException {
+    long segmentSize = length / count;
+    List<Future<Boolean>> futures = new ArrayList<>(count);
+    for (int i = 0; i < count; i++) {
+      long start = i * segmentSize;
+      long end = i == count - 1 ? length - 1 : start + segmentSize - 1;
+      futures.add(executor.submit(() -> fetchRange(uri, validator, start, end, channel)));
+    }
+
+    try {
+      for (Future<Boolean> future : futures) {
+        if (!future.get()) {
+          LOG.debug("Range request to {} ignored by the server", uri);
+          abort(futures);
+          return false;
+        }
+      }
+      return true;
+    } catch (InterruptedException e) {
+      abort(futures);
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted downloading " + uri);
+    } catch (ExecutionException e) {
+      abort(futures);
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      throw new IOException("Failed to download a segment of " + uri, e.getCause());
+    }
+  }
+
+  /**
+   * @return true if the range was written, false if the server didn't answer with the requested range
+   */
+  private boolean fetchRange(URI uri, String validator, long start, long end, FileChannel channel)
+      throws IOException {
+    HttpGet get = new HttpGet(uri);
+    if (requestConfig != null) {
+      get.setConfig(requestConfig);
+    }
+    get.setHeader(HttpHeaders.RANGE, "bytes=" + start + "-" + end);
+    if (validator != null) {
+      // a changed file is sent in full instead of the range
+      get.setHeader(HttpHeaders.IF_RANGE, validator);
+    }
+
+    requests.add(get);
+    try (CloseableHttpResponse response = client.execute(get)) {
+      Header contentRange = response.getFirstHeader(HttpHeaders.CONTENT_RANGE);
+      if (response.getStatusLine().getStatusCode() != HttpStatus.SC_PARTIAL_CONTENT
+          || contentRange == null
+          || !contentRange.getValue().startsWith("bytes " + start + "-" + end + "/")) {
+        get.abort();
+        return false;
+      }
+
+      HttpEntity entity = response.getEntity();
+      long position = start;
+      try (InputStream in = entity.getContent()) {
+        // positional writes don't move the channel position, so segments don't interfere
+        position += FileTransfer.transfer(in, channel, start, end + 1 - start);
+      }
+      if (position != end + 1) {
+        throw new IOException(
+            String.format("Segment %d-%d of %s ended at %d", start, end, uri, position));
+      }
+      return true;
+    } finally {
+      requests.remove(get);
+    }
+  }
+
+  private void abort(List<Future<Boolean>> futures) {
+    futures.forEach(f -> f.cancel(true));
+    // blocking socket reads don't react to interrupts
+    requests.forEach(HttpGet::abort);
+  }
+
+  private static long contentLength(CloseableHttpResponse response) {
+    Header header = response.getFirstHeader(HttpHeaders.CONTENT_LENGTH);
+    if (header != null) {
+      try {
+        return Long.parseLong(header.getValue().trim());
+      } catch (NumberFormatException e) {
+        LOG.debug("Invalid Content-Length {}", header.getValue());
+      }
+    }
+    return -1;
+  }
+
+  private static boolean acceptsRanges(CloseableHttpResponse response) {
+    Header ranges = response.getFirstHeader(HttpHeaders.ACCEPT_RANGES);
+    Header encoding = response.getFirstHeader(HttpHeaders.CONTENT_ENCODING);
+    return ranges != null
+        && StringUtils.containsIgnoreCase(ranges.getValue(), "bytes")
+        && (encoding == null || "identity".equalsIgnoreCase(encoding.getValue()));
+  }
+
+  /**
+   * @return a strong ETag or the last modified date to make sure all ranges come from the same file, or null
+   */
+  static String validator(CloseableHttpResponse response) {
+    Header etag = response.getFirstHeader(HttpHeaders.ETAG);
+    if (etag != null && !etag.getValue().startsWith("W/")) {
+      return etag.getValue();
+    }
+    Header modified = response.getFirstHeader(HttpHeaders.LAST_MODIFIED);
+    return modified != null ? modified.getValue() : null;
+  }
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright 2021 Global Biodiversity Information Facility (GBIF)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.utils;
+
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Logs the phase timings of exchanges taking longer than a threshold, to see whether a slow download or purge waited
+ * for the pool, the network or the server.
+ */
+public class SlowExchangeLogger implements HttpEventListener {
+
+  private static final Logger LOG = LoggerFactory.getLogger(SlowExchangeLogger.class);
+
+  private final long thresholdNanos;
+
+  public SlowExchangeLogger(long threshold, TimeUnit unit) {
+    this.thresholdNanos = unit.toNanos(threshold);
+  }
+
+  @Override
+  public void bodyComplete(HttpExchange exchange, long bytes, long nanoTime) {
+    if (nanoTime - exchange.getStartNanos() >= thresholdNanos) {
+      LOG.warn("Slow exchange {} with {} bytes: {}", exchange, bytes, phases(exchange, nanoTime));
+    }
+  }
+
+  @Override
+  public void failed(HttpExchange exchange, Exception e, long nanoTime) {
+    if (nanoTime - exchange.getStartNanos() >= thresholdNanos) {
+      LOG.warn("Slow exchange {} failed: {}", exchange, phases(exchange, nanoTime), e);
+    }
+  }
+
+  /**
+   * @return the milliseconds from the start of the exchange at which each reached phase ended
+   */
+  static String phases(HttpExchange exchange, long end) {
+    StringBuilder sb = new StringBuilder();
+    phase(sb, "lease", exchange, exchange.getLeasedNanos());
+    phase(sb, "dns", exchange, exchange.getDnsResolvedNanos());
+    phase(sb, "connect", exchange, exchange.getConnectedNanos());
+    phase(sb, "tls", exchange, exchange.getTlsHandshakeNanos());
+    phase(sb, "sent", exchange, exchange.getRequestSentNanos());
+    phase(sb, "firstByte", exchange, exchange.getFirstByteNanos());
+    phase(sb, "end", exchange, end);
+    return sb.toString();
+  }
+
+  private static void phase(StringBuilder sb, String name, HttpExchange exchange, long nanos) {
+    if (nanos != 0) {
+      if (sb.length() > 0) {
+        sb.append(", ");
+      }
+      sb.append(name)
+          .append('=')
+          .append(TimeUnit.NANOSECONDS.toMillis(nanos - exchange.getStartNanos()))
+          .append("ms");
+    }
+  }
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright 2021 Global Biodiversity Information Facility (GBIF)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.utils;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.StatusLine;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.entity.ContentType;
+import org.apache.http.util.EntityUtils;
+
+/**
+ * An open HTTP response whose body is read incrementally by the caller instead of being buffered in memory.
+ * <p/>
+ * The underlying connection is held until the response is closed, so instances must always be closed, ideally with
+ * try-with-resources. Closing reads any unread remainder of the body so the connection can be reused, use
+ * {@link #abort()} to give up on a large body and drop the connection instead.
+ */
+@SuppressWarnings("unused")
+public class StreamingResponse implements Closeable {
+
+  private final CloseableHttpResponse response;
+
+  public StreamingResponse(CloseableHttpResponse response) {
+    this.response = response;
+  }
+
+  public int getStatusCode() {
+    return response.getStatusLine().getStatusCode();
+  }
+
+  public StatusLine getStatusLine() {
+    return response.getStatusLine();
+  }
+
+  public boolean containsHeader(String name) {
+    return response.containsHeader(name);
+  }
+
+  public Header[] getAllHeaders() {
+    return response.getAllHeaders();
+  }
+
+  public Header getFirstHeader(String name) {
+    return response.getFirstHeader(name);
+  }
+
+  public Header[] getHeaders(String name) {
+    return response.getHeaders(name);
+  }
+
+  /**
+   * @return the declared length of the body or a negative number if unknown
+   */
+  public long getContentLength() {
+    HttpEntity entity = response.getEntity();
+    return entity != null ? entity.getContentLength() : 0;
+  }
+
+  /**
+   * @return the declared content type of the body or null if absent
+   */
+  public ContentType getContentType() {
+    HttpEntity entity = response.getEntity();
+    return entity != null ? ContentType.get(entity) : null;
+  }
+
+  /**
+   * @return the body as a stream, which can only be read once, or an empty stream if there is no body
+   */
+  public InputStream getInputStream() throws IOException {
+    HttpEntity entity = response.getEntity();
+    return entity != null ? entity.getContent() : new ByteArrayInputStream(new byte[0]);
+  }
+
+  /**
+   * @return the body as a channel, which can only be read once
+   * @see #getInputStream()
+   */
+  public ReadableByteChannel getChannel() throws IOException {
+    return Channels.newChannel(getInputStream());
+  }
+
+  /**
+   * Closes the response and the underlying connection without reading the rest of the body.
+   */
+  public void abort() throws IOException {
+    response.close();
+  }
+
+  /**
+   * Reads the unread remainder of the body and releases the connection back to the pool.
+   */
+  @Override
+  public void close() throws IOException {
+    try {
+      EntityUtils.consume(response.getEntity());
+    } finally {
+      response.close();
+    }
+  }
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright 2021 Global Biodiversity Information Facility (GBIF)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.utils;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits extra work, like retries or hedged requests, to a fraction of the requests made. Every request deposits
+ * the fraction of a token, every extra request withdraws a whole one. A reserve of tokens allows some extra work in
+ * quiet periods, it is also the most that can be saved up.
+ */
+class TokenBudget {
+
+  // tokens in thousandths
+  private static final long TOKEN = 1000;
+
+  private final long deposit;
+  private final long maxBalance;
+  private final AtomicLong balance;
+
+  /**
+   * @param ratio the extra requests allowed per request, e.g. 0.2 for 20%
+   * @param reserve the tokens allowed regardless of the ratio
+   */
+  TokenBudget(double ratio, int reserve) {
+    this.deposit = (long) (ratio * TOKEN);
+    this.maxBalance = reserve * TOKEN;
+    this.balance = new AtomicLong(maxBalance);
+  }
+
+  void deposit() {
+    balance.accumulateAndGet(deposit, (b, d) -> Math.min(b + d, maxBalance));
+  }
+
+  /**
+   * @return true if a token was withdrawn, false if the budget is exhausted
+   */
+  boolean withdraw() {
+    long b;
+    do {
+      b = balance.get();
+      if (b < TOKEN) {
+        return false;
+      }
+    } while (!balance.compareAndSet(b, b - TOKEN));
+    return true;
+  }
+}
@@ -0,0 +1,38 @@
+/*
+ * Copyright 2021 Global Biodiversity Information Facility (GBIF)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.utils;
+
+import java.io.IOException;
+
+/**
+ * Keeps the cache validators of previously downloaded resources, so later downloads can be made conditional with
+ * {@code If-None-Match} and {@code If-Modified-Since}.
+ * <p/>
+ * Implementations must be thread safe.
+ *
+ * @see FileValidatorStore
+ */
+public interface ValidatorStore {
+
+  /**
+   * @return the validators stored for the key or null if there are none
+   */
+  Validators get(String key) throws IOException;
+
+  void put(String key, Validators validators) throws IOException;
+
+  void remove(String key) throws IOException;
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright 2021 Global Biodiversity Information Facility (GBIF)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.utils;
+
+import java.io.Serializable;
+import java.util.Objects;
+
+import org.apache.http.Header;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpResponse;
+
+/**
+ * The cache validators of a response, its ETag and Last-Modified header values, used to make conditional requests.
+ */
+public final class Validators implements Serializable {
+
+  private static final long serialVersionUID = 1L;
+
+  private final String etag;
+  private final String lastModified;
+
+  public Validators(String etag, String lastModified) {
+    this.etag = etag;
+    this.lastModified = lastModified;
+  }
+
+  /**
+   * @return the validators of the response or null if it has none
+   */
+  public static Validators of(HttpResponse response) {
+    return of(
+        response.getFirstHeader(HttpHeaders.ETAG),
+        response.getFirstHeader(HttpHeaders.LAST_MODIFIED));
+  }
+
+  /**
+   * @return the validators of the response or null if it has none
+   */
+  public static Validators of(ExtendedResponse response) {
+    return of(
+        response.getFirstHeader(HttpHeaders.ETAG),
+        response.getFirstHeader(HttpHeaders.LAST_MODIFIED));
+  }
+
+  private static Validators of(Header etag, Header lastModified) {
+    if (etag == null && lastModified == null) {
+      return null;
+    }
+    return new Validators(
+        etag != null ? etag.getValue() : null,
+        lastModified != null ? lastModified.getValue() : null);
+  }
+
+  /**
+   * @return the entity tag including its quotes and weak prefix, or null
+   */
+  public String getEtag() {
+    return etag;
+  }
+
+  /**
+   * @return the Last-Modified date as sent by the server, or null
+   */
+  public String getLastModified() {
+    return lastModified;
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (this == o) {
+      return true;
+    }
+    if (o == null || getClass() != o.getClass()) {
+      return false;
+    }
+    Validators that = (Validators) o;
+    return Objects.equals(etag, that.etag) && Objects.equals(lastModified, that.lastModified);
+  }
+
+  @Override
+  public int hashCode() {
+    return Objects.hash(etag, lastModified);
+  }
+
+  @Override
+  public String toString() {
+    return "Validators{etag=" + etag + ", lastModified=" + lastModified + "}";
+  }
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright 2021 Global Biodiversity Information Facility (GBIF)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.utils.cache;
+
+import org.gbif.utils.ExtendedResponse;
+import org.gbif.utils.Validators;
+
+import org.apache.http.Header;
+
+/**
+ * A response stored in a {@link CacheStorage} together with the times needed to judge its freshness.
+ */
+public final class CacheEntry {
+
+  // rough per entry overhead of the objects holding the response
+  private static final int OVERHEAD = 256;
+
+  private final ExtendedResponse response;
+  private final long responseTime;
+  private final long expiresAt;
+
+  /**
+   * @param response the cached response
+   * @param responseTime when the response was received, in milliseconds since the epoch
+   * @param expiresAt when the response becomes stale, in milliseconds since the epoch
+   */
+  public CacheEntry(ExtendedResponse response, long responseTime, long expiresAt) {
+    this.response = response;
+    this.responseTime = responseTime;
+    this.expiresAt = expiresAt;
+  }
+
+  public ExtendedResponse getResponse() {
+    return response;
+  }
+
+  public long getResponseTime() {
+    return responseTime;
+  }
+
+  public long getExpiresAt() {
+    return expiresAt;
+  }
+
+  public boolean isFresh(long now) {
+    return now < expiresAt;
+  }
+
+  /**
+   * @return the validators to revalidate the entry with, or null if it has none
+   */
+  public Validators getValidators() {
+    return Validators.of(response);
+  }
+
+  /**
+   * @return an estimate of the memory held by the entry in bytes
+   */
+  public long weight() {
+    long weight = OVERHEAD;
+    byte[] bytes = response.getBytes();
+    if (bytes != null) {
+      weight += bytes.length;
+    }
+    for (Header header : response.getAllHeaders()) {
+      weight += 2L * (header.getName().length() + header.getValue().length());
+    }
+    return weight;
+  }
+}
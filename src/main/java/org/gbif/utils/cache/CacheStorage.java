@@ -0,0 +1,36 @@
+/*
+ * Copyright 2021 Global Biodiversity Information Facility (GBIF)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.utils.cache;
+
+/**
+ * Stores cached responses by key, evicting entries as needed to stay within its bounds.
+ * <p/>
+ * Implementations must be thread safe.
+ */
+public interface CacheStorage {
+
+  /**
+   * @return the entry stored for the key or null if there is none
+   */
+  CacheEntry get(String key);
+
+  /**
+   * Stores the entry replacing any previous one for the key. Entries too large for the storage are not stored.
+   */
+  void put(String key, CacheEntry entry);
+
+  void remove(String key);
+}
@@ -0,0 +1,500 @@
+/*
+ * Copyright 2021 Global Biodiversity Information Facility (GBIF)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.utils.cache;
+
+import org.gbif.utils.ExtendedResponse;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.http.Header;
+import org.apache.http.ProtocolVersion;
+import org.apache.http.StatusLine;
+import org.apache.http.message.BasicHeader;
+import org.apache.http.message.BasicStatusLine;
+import org.apache.http.util.Args;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A {@link CacheStorage} keeping responses in a directory, so the cache is still warm after a restart.
+ * <p/>
+ * Every response is stored in its own file named after the hash of its key, holding the key, the status line,
+ * headers and freshness times followed by the body. Files are replaced atomically.
+ * <p/>
+ * A memory mapped index file holds an open addressing table with the hash, size and last access time of every entry,
+ * so lookups for absent keys and evictions never touch the entry files. The least recently used entries are evicted
+ * once the total size of the files or the number of entries exceeds the limits, in an order kept in memory and
+ * rebuilt from the access times of the index when the cache is opened.
+ */
+public class DiskCacheStorage implements CacheStorage, Closeable {
+
+  private static final Logger LOG = LoggerFactory.getLogger(DiskCacheStorage.class);
+
+  private static final String INDEX_FILE = "index";
+  private static final String ENTRY_SUFFIX = ".entry";
+  private static final int INDEX_MAGIC = 0x47424943;
+  private static final int ENTRY_MAGIC = 0x47424945;
+  private static final int HEADER_SIZE = 16;
+
+  // slot layout: hash, size in bytes, last access time
+  private static final int SLOT_SIZE = 24;
+  private static final long EMPTY = 0;
+  private static final long DELETED = 1;
+  private static final int MAX_ENTRIES = 1 << 24;
+
+  private final File dir;
+  private final long maxBytes;
+  private final long maxEntryBytes;
+  private final int maxEntries;
+  private final int capacity;
+  private final RandomAccessFile indexFile;
+  private final MappedByteBuffer index;
+  // the hashes of all entries, least recently used first
+  private final LinkedHashMap<Long, Boolean> recency = new LinkedHashMap<>(16, 0.75f, true);
+  private long bytes;
+  private int entries;
+  private int deleted;
+  private long evictions;
+
+  /**
+   * @param dir directory to keep the responses in, created if needed
+   * @param maxBytes maximum total size of the stored responses, single entries may take up to a tenth of it
+   * @param maxEntries maximum number of stored responses
+   */
+  public DiskCacheStorage(File dir, long maxBytes, int maxEntries) throws IOException {
+    Args.positive(maxBytes, "maxBytes");
+    Args.positive(maxEntries, "maxEntries");
+    Args.check(maxEntries <= MAX_ENTRIES, "maxEntries must not exceed " + MAX_ENTRIES);
+    FileUtils.forceMkdir(dir);
+    this.dir = dir;
+    this.maxBytes = maxBytes;
+    this.maxEntryBytes = maxBytes / 10;
+    this.maxEntries = maxEntries;
+    // keep the table at most half full for short probe sequences
+    this.capacity = Integer.highestOneBit(maxEntries) * 4;
+
+    File file = new File(dir, INDEX_FILE);
+    long length = HEADER_SIZE + (long) capacity * SLOT_SIZE;
+    boolean existing = file.isFile() && file.length() == length;
+    indexFile = new RandomAccessFile(file, "rw");
+    indexFile.setLength(length);
+    index = indexFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, length);
+
+    if (existing && index.getInt(0) == INDEX_MAGIC && index.getInt(4) == capacity) {
+      List<long[]> accessed = new ArrayList<>();
+      for (int i = 0; i < capacity; i++) {
+        long hash = hash(i);
+        if (hash == DELETED) {
+          deleted++;
+        } else if (hash != EMPTY) {
+          entries++;
+          bytes += size(i);
+          accessed.add(new long[] {index.getLong(offset(i) + 16), hash});
+        }
+      }
+      accessed.sort((a, b) -> Long.compare(a[0], b[0]));
+      accessed.forEach(a -> recency.put(a[1], Boolean.TRUE));
+      sweep();
+      LOG.debug("Opened disk cache {} with {} entries of {} bytes", dir, entries, bytes);
+    } else {
+      reset();
+    }
+  }
+
+  @Override
+  public synchronized CacheEntry get(String key) {
+    long hash = hash(key);
+    int slot = find(hash);
+    if (slot < 0) {
+      return null;
+    }
+    try (DataInputStream in =
+        new DataInputStream(new BufferedInputStream(new FileInputStream(file(hash))))) {
+      CacheEntry entry = read(in, key);
+      if (entry != null) {
+        index.putLong(offset(slot) + 16, System.currentTimeMillis());
+        recency.get(hash);
+      }
+      return entry;
+    } catch (FileNotFoundException e) {
+      clear(slot);
+    } catch (IOException | RuntimeException e) {
+      LOG.warn("Removing unreadable cache entry {}", file(hash), e);
+      delete(slot);
+    }
+    return null;
+  }
+
+  @Override
+  public synchronized void put(String key, CacheEntry entry) {
+    long hash = hash(key);
+    File target = file(hash);
+    long size;
+    try {
+      File tmp = File.createTempFile("." + target.getName() + ".", ".tmp", dir);
+      try {
+        try (DataOutputStream out =
+            new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+          write(out, key, entry);
+        }
+        size = tmp.length();
+        if (size > maxEntryBytes) {
+          remove(key);
+          return;
+        }
+        moveOver(tmp, target);
+      } finally {
+        Files.deleteIfExists(tmp.toPath());
+      }
+    } catch (IOException e) {
+      LOG.warn("Failed to store cache entry {}", target, e);
+      return;
+    }
+
+    int slot = find(hash);
+    if (slot >= 0) {
+      bytes -= size(slot);
+    } else {
+      slot = insert(hash);
+      entries++;
+    }
+    index.putLong(offset(slot) + 8, size);
+    index.putLong(offset(slot) + 16, System.currentTimeMillis());
+    recency.put(hash, Boolean.TRUE);
+    bytes += size;
+
+    while (bytes > maxBytes || entries > maxEntries) {
+      if (!evict(hash)) {
+        break;
+      }
+    }
+  }
+
+  @Override
+  public synchronized void remove(String key) {
+    long hash = hash(key);
+    int slot = find(hash);
+    if (slot >= 0) {
+      delete(slot);
+    }
+  }
+
+  public synchronized int getEntryCount() {
+    return entries;
+  }
+
+  /**
+   * @return the total size of all entry files
+   */
+  public synchronized long getBytes() {
+    return bytes;
+  }
+
+  public synchronized long getEvictionCount() {
+    return evictions;
+  }
+
+  /**
+   * Flushes the index to disk and releases the index file.
+   */
+  @Override
+  public synchronized void close() throws IOException {
+    index.force();
+    indexFile.close();
+  }
+
+  /**
+   * Evicts the least recently used entry other than the one just stored.
+   *
+   * @return false if there was nothing to evict
+   */
+  private boolean evict(long keep) {
+    Iterator<Long> lru = recency.keySet().iterator();
+    while (lru.hasNext()) {
+      long hash = lru.next();
+      if (hash != keep) {
+        delete(find(hash));
+        evictions++;
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private void delete(int slot) {
+    try {
+      Files.deleteIfExists(file(hash(slot)).toPath());
+    } catch (IOException e) {
+      LOG.warn("Failed to delete cache entry {}", file(hash(slot)), e);
+    }
+    clear(slot);
+  }
+
+  private void clear(int slot) {
+    bytes -= size(slot);
+    entries--;
+    deleted++;
+    recency.remove(hash(slot));
+    index.putLong(offset(slot), DELETED);
+    index.putLong(offset(slot) + 8, 0);
+    if (deleted > capacity / 4) {
+      rehash();
+    }
+  }
+
+  /**
+   * @return the slot holding the hash or -1
+   */
+  private int find(long hash) {
+    int i = (int) (hash & (capacity - 1));
+    for (int n = 0; n < capacity; n++) {
+      long h = hash(i);
+      if (h == hash) {
+        return i;
+      } else if (h == EMPTY) {
+        return -1;
+      }
+      i = (i + 1) & (capacity - 1);
+    }
+    return -1;
+  }
+
+  private int insert(long hash) {
+    int i = (int) (hash & (capacity - 1));
+    while (hash(i) != EMPTY && hash(i) != DELETED) {
+      i = (i + 1) & (capacity - 1);
+    }
+    if (hash(i) == DELETED) {
+      deleted--;
+    }
+    index.putLong(offset(i), hash);
+    return i;
+  }
+
+  /**
+   * Rebuilds the table without the deleted markers, which would otherwise lengthen every probe sequence.
+   */
+  private void rehash() {
+    long[] slots = new long[entries * 3];
+    int n = 0;
+    for (int i = 0; i < capacity; i++) {
+      long hash = hash(i);
+      if (hash != EMPTY && hash != DELETED) {
+        slots[n++] = hash;
+        slots[n++] = size(i);
+        slots[n++] = index.getLong(offset(i) + 16);
+      }
+    }
+    zero(HEADER_SIZE, capacity * SLOT_SIZE);
+    deleted = 0;
+    for (int i = 0; i < n; i += 3) {
+      int slot = insert(slots[i]);
+      index.putLong(offset(slot) + 8, slots[i + 1]);
+      index.putLong(offset(slot) + 16, slots[i + 2]);
+    }
+  }
+
+  /**
+   * Deletes the entry and temporary files the index doesn't know about, like those left behind by a crash, which
+   * would otherwise never count against the size limit.
+   */
+  private void sweep() throws IOException {
+    File[] files =
+        dir.listFiles(
+            (d, name) ->
+                name.endsWith(ENTRY_SUFFIX) || (name.startsWith(".") && name.endsWith(".tmp")));
+    if (files != null) {
+      for (File f : files) {
+        String name = f.getName();
+        if (name.endsWith(ENTRY_SUFFIX)) {
+          try {
+            long hash = Long.parseUnsignedLong(StringUtils.removeEnd(name, ENTRY_SUFFIX), 16);
+            if (find(hash) >= 0) {
+              continue;
+            }
+          } catch (NumberFormatException e) {
+            // not an entry file of this cache
+          }
+        }
+        LOG.debug("Deleting unknown cache file {}", f);
+        Files.deleteIfExists(f.toPath());
+      }
+    }
+  }
+
+  /**
+   * Starts with an empty index, deleting all entry files.
+   */
+  private void reset() throws IOException {
+    zero(0, index.capacity());
+    index.putInt(0, INDEX_MAGIC);
+    index.putInt(4, capacity);
+    bytes = 0;
+    entries = 0;
+    deleted = 0;
+    recency.clear();
+    sweep();
+  }
+
+  private void zero(int from, int length) {
+    ByteBuffer buffer = index.duplicate();
+    buffer.position(from);
+    byte[] zeros = new byte[Math.min(length, 64 * 1024)];
+    for (int n = length; n > 0; n -= zeros.length) {
+      buffer.put(zeros, 0, Math.min(n, zeros.length));
+    }
+  }
+
+  private long hash(int slot) {
+    return index.getLong(offset(slot));
+  }
+
+  private long size(int slot) {
+    return index.getLong(offset(slot) + 8);
+  }
+
+  private static int offset(int slot) {
+    return HEADER_SIZE + slot * SLOT_SIZE;
+  }
+
+  private File file(long hash) {
+    return new File(dir, String.format("%016x", hash) + ENTRY_SUFFIX);
+  }
+
+  /**
+   * @return the first 64 bits of the SHA-1 hash of the key, never one of the markers for free slots
+   */
+  static long hash(String key) {
+    try {
+      byte[] digest =
+          MessageDigest.getInstance("SHA-1").digest(key.getBytes(StandardCharsets.UTF_8));
+      long hash = 0;
+      for (int i = 0; i < 8; i++) {
+        hash = (hash << 8) | (digest[i] & 0xFF);
+      }
+      return hash == EMPTY || hash == DELETED ? hash + 2 : hash;
+    } catch (NoSuchAlgorithmException e) {
+      // every Java platform is required to support SHA-1
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static void write(DataOutputStream out, String key, CacheEntry entry) throws IOException {
+    ExtendedResponse response = entry.getResponse();
+    StatusLine status = response.getStatusLine();
+    out.writeInt(ENTRY_MAGIC);
+    out.writeUTF(key);
+    out.writeLong(entry.getResponseTime());
+    out.writeLong(entry.getExpiresAt());
+    out.writeUTF(status.getProtocolVersion().getProtocol());
+    out.writeInt(status.getProtocolVersion().getMajor());
+    out.writeInt(status.getProtocolVersion().getMinor());
+    out.writeInt(status.getStatusCode());
+    out.writeUTF(status.getReasonPhrase() != null ? status.getReasonPhrase() : "");
+    out.writeUTF(response.getLocale() != null ? response.getLocale().toLanguageTag() : "");
+    out.writeUTF(response.getCharset().name());
+    Header[] headers = response.getAllHeaders();
+    out.writeInt(headers.length);
+    for (Header header : headers) {
+      out.writeUTF(header.getName());
+      out.writeUTF(header.getValue());
+    }
+    byte[] body = response.getBytes();
+    out.writeInt(body != null ? body.length : -1);
+    if (body != null) {
+      out.write(body);
+    }
+  }
+
+  /**
+   * @return the entry or null if it was stored for a different key with the same hash
+   */
+  private static CacheEntry read(DataInputStream in, String key) throws IOException {
+    if (in.readInt() != ENTRY_MAGIC) {
+      throw new IOException("Not a cache entry");
+    }
+    if (!key.equals(in.readUTF())) {
+      return null;
+    }
+    long responseTime = in.readLong();
+    long expiresAt = in.readLong();
+    ProtocolVersion version = new ProtocolVersion(in.readUTF(), in.readInt(), in.readInt());
+    StatusLine status = new BasicStatusLine(version, in.readInt(), in.readUTF());
+    String locale = in.readUTF();
+    Charset charset = Charset.forName(in.readUTF());
+    Header[] headers = new Header[in.readInt()];
+    for (int i = 0; i < headers.length; i++) {
+      headers[i] = new BasicHeader(in.readUTF(), in.readUTF());
+    }
+    int length = in.readInt();
+    byte[] body = null;
+    if (length >= 0) {
+      body = new byte[length];
+      in.readFully(body);
+    }
+    if (in.read() != -1) {
+      throw new EOFException("Trailing data in cache entry");
+    }
+    ExtendedResponse response =
+        new ExtendedResponse(
+            status,
+            locale.isEmpty() ? null : Locale.forLanguageTag(locale),
+            headers,
+            body,
+            charset);
+    return new CacheEntry(response, responseTime, expiresAt);
+  }
+
+  private static void moveOver(File source, File target) throws IOException {
+    try {
+      Files.move(
+          source.toPath(),
+          target.toPath(),
+          StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+    } catch (AtomicMoveNotSupportedException e) {
+      Files.move(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+  }
+}
@@ -0,0 +1,365 @@
+/*
+ * Copyright 2021 Global Biodiversity Information Facility (GBIF)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.utils.cache;
+
+import org.gbif.utils.ExtendedResponse;
+import org.gbif.utils.Validators;
+
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.http.Header;
+import org.apache.http.HeaderElement;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpStatus;
+import org.apache.http.ParseException;
+import org.apache.http.auth.UsernamePasswordCredentials;
+import org.apache.http.client.utils.DateUtils;
+import org.apache.http.util.Args;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A private HTTP cache for GET responses following the freshness rules of RFC 7234.
+ * <p/>
+ * Responses are fresh for their {@code Cache-Control: max-age} or until their {@code Expires} date, corrected by
+ * their {@code Age}. Responses without an explicit lifetime or marked {@code no-cache} are stored only if they carry
+ * an ETag or Last-Modified header, and are revalidated with a conditional request on every use. A 304 answer
+ * refreshes the stored entry. Responses marked {@code no-store} or varying on {@code *} are never stored.
+ * <p/>
+ * Requests carrying their own conditional, range or cache control headers bypass the cache.
+ */
+public class HttpCache {
+
+  private static final Logger LOG = LoggerFactory.getLogger(HttpCache.class);
+
+  /**
+   * Fetches the response from the server.
+   */
+  @FunctionalInterface
+  public interface Fetcher {
+
+    /**
+     * @param conditionalHeaders headers to add to the request to revalidate a stored entry, possibly empty
+     */
+    ExtendedResponse fetch(Map<String, String> conditionalHeaders)
+        throws IOException, URISyntaxException;
+  }
+
+  private static final List<Integer> CACHEABLE_STATUS =
+      Arrays.asList(
+          HttpStatus.SC_OK,
+          HttpStatus.SC_NON_AUTHORITATIVE_INFORMATION,
+          HttpStatus.SC_MULTIPLE_CHOICES,
+          HttpStatus.SC_MOVED_PERMANENTLY,
+          HttpStatus.SC_NOT_FOUND,
+          HttpStatus.SC_GONE);
+
+  private static final List<String> BYPASS_HEADERS =
+      Arrays.asList(
+          HttpHeaders.IF_MODIFIED_SINCE.toLowerCase(Locale.ROOT),
+          HttpHeaders.IF_NONE_MATCH.toLowerCase(Locale.ROOT),
+          HttpHeaders.IF_MATCH.toLowerCase(Locale.ROOT),
+          HttpHeaders.IF_UNMODIFIED_SINCE.toLowerCase(Locale.ROOT),
+          HttpHeaders.IF_RANGE.toLowerCase(Locale.ROOT),
+          HttpHeaders.RANGE.toLowerCase(Locale.ROOT),
+          HttpHeaders.CACHE_CONTROL.toLowerCase(Locale.ROOT),
+          HttpHeaders.PRAGMA.toLowerCase(Locale.ROOT));
+
+  // headers of a 304 which must not replace the stored ones, as they describe the (absent) body
+  private static final List<String> KEEP_HEADERS =
+      Arrays.asList(
+          HttpHeaders.CONTENT_LENGTH.toLowerCase(Locale.ROOT),
+          HttpHeaders.CONTENT_ENCODING.toLowerCase(Locale.ROOT),
+          HttpHeaders.CONTENT_RANGE.toLowerCase(Locale.ROOT),
+          HttpHeaders.TRANSFER_ENCODING.toLowerCase(Locale.ROOT));
+
+  private final CacheStorage storage;
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+  private final LongAdder revalidations = new LongAdder();
+
+  public HttpCache(CacheStorage storage) {
+    this.storage = Args.notNull(storage, "storage");
+  }
+
+  /**
+   * @param maxBytes maximum total size of the cached responses kept in memory
+   */
+  public static HttpCache inMemory(long maxBytes) {
+    return new HttpCache(new MemoryCacheStorage(maxBytes));
+  }
+
+  public CacheStorage getStorage() {
+    return storage;
+  }
+
+  /**
+   * @return true if a GET request with the given headers can be answered from the cache
+   */
+  public static boolean isCacheable(Map<String, String> requestHeaders) {
+    if (requestHeaders != null) {
+      for (String name : requestHeaders.keySet()) {
+        if (BYPASS_HEADERS.contains(name.toLowerCase(Locale.ROOT))) {
+          return false;
+        }
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Builds the cache key of a GET request. Requests with different headers or credentials are cached separately.
+   */
+  public static String key(
+      String url, Map<String, String> requestHeaders, UsernamePasswordCredentials credentials) {
+    StringBuilder key = new StringBuilder(url);
+    if (requestHeaders != null && !requestHeaders.isEmpty()) {
+      Map<String, String> sorted = new TreeMap<>();
+      requestHeaders.forEach((k, v) -> sorted.put(k.toLowerCase(Locale.ROOT), v));
+      sorted.forEach((k, v) -> key.append('\n').append(k).append(": ").append(v));
+    }
+    if (credentials != null) {
+      // never keep the password itself in the key
+      key.append("\nuser: ")
+          .append(credentials.getUserName())
+          .append(' ')
+          .append(String.valueOf(credentials.getPassword()).hashCode());
+    }
+    return key.toString();
+  }
+
+  /**
+   * Answers the request from the cache if there is a fresh entry for it, revalidates a stale entry or fetches and
+   * stores a new response.
+   */
+  public ExtendedResponse get(String key, Fetcher fetcher) throws IOException, URISyntaxException {
+    long requestTime = System.currentTimeMillis();
+    CacheEntry entry = storage.get(key);
+    if (entry != null && entry.isFresh(requestTime)) {
+      hits.increment();
+      return copy(entry.getResponse());
+    }
+
+    Map<String, String> conditional =
+        entry != null ? conditionalHeaders(entry.getValidators()) : Collections.emptyMap();
+    ExtendedResponse response = fetcher.fetch(conditional);
+    long responseTime = System.currentTimeMillis();
+
+    if (!conditional.isEmpty() && response.getStatusCode() == HttpStatus.SC_NOT_MODIFIED) {
+      LOG.debug("Cached response for {} revalidated", key);
+      revalidations.increment();
+      ExtendedResponse merged = merge(entry.getResponse(), response);
+      store(key, merged, requestTime, responseTime);
+      return copy(merged);
+    }
+
+    misses.increment();
+    if (isStorable(response)) {
+      store(key, response, requestTime, responseTime);
+      return copy(response);
+    } else if (entry != null) {
+      storage.remove(key);
+    }
+    return response;
+  }
+
+  private void store(String key, ExtendedResponse response, long requestTime, long responseTime) {
+    long expiresAt = expiresAt(response, requestTime, responseTime);
+    storage.put(key, new CacheEntry(response, responseTime, expiresAt));
+  }
+
+  /**
+   * @return the number of requests answered from a fresh entry without contacting the server
+   */
+  public long getHitCount() {
+    return hits.sum();
+  }
+
+  /**
+   * @return the number of requests answered by the server with a full response
+   */
+  public long getMissCount() {
+    return misses.sum();
+  }
+
+  /**
+   * @return the number of stale entries confirmed by the server with a 304 and served from the cache
+   */
+  public long getRevalidationCount() {
+    return revalidations.sum();
+  }
+
+  private static Map<String, String> conditionalHeaders(Validators validators) {
+    if (validators == null) {
+      return Collections.emptyMap();
+    }
+    Map<String, String> headers = new HashMap<>(2);
+    if (validators.getEtag() != null) {
+      headers.put(HttpHeaders.IF_NONE_MATCH, validators.getEtag());
+    }
+    if (validators.getLastModified() != null) {
+      headers.put(HttpHeaders.IF_MODIFIED_SINCE, validators.getLastModified());
+    }
+    return headers;
+  }
+
+  private static boolean isStorable(ExtendedResponse response) {
+    if (!CACHEABLE_STATUS.contains(response.getStatusCode())) {
+      return false;
+    }
+    for (Header vary : response.getHeaders(HttpHeaders.VARY)) {
+      if (vary.getValue().trim().equals("*")) {
+        return false;
+      }
+    }
+    if (hasDirective(response, "no-store")) {
+      return false;
+    }
+    return freshnessLifetime(response) > 0 || Validators.of(response) != null;
+  }
+
+  /**
+   * @return the time the response becomes stale in milliseconds since the epoch, or 0 if it must always be revalidated
+   */
+  static long expiresAt(ExtendedResponse response, long requestTime, long responseTime) {
+    if (hasDirective(response, "no-cache")) {
+      return 0;
+    }
+    long lifetime = freshnessLifetime(response);
+    if (lifetime <= 0) {
+      return 0;
+    }
+    // corrected initial age, RFC 7234 section 4.2.3
+    long age = Math.max(0, seconds(response.getFirstHeader("Age")));
+    Date date = date(response.getFirstHeader(HttpHeaders.DATE));
+    if (date != null) {
+      age = Math.max(age, (responseTime - date.getTime()) / 1000);
+    }
+    age += (responseTime - requestTime) / 1000;
+    return responseTime + (lifetime - age) * 1000;
+  }
+
+  /**
+   * @return the freshness lifetime in seconds given by max-age or Expires, or 0
+   */
+  private static long freshnessLifetime(ExtendedResponse response) {
+    for (Header header : response.getHeaders(HttpHeaders.CACHE_CONTROL)) {
+      for (HeaderElement element : elements(header)) {
+        if ("max-age".equalsIgnoreCase(element.getName())) {
+          try {
+            return Long.parseLong(element.getValue());
+          } catch (NumberFormatException e) {
+            // an invalid max-age means the response is stale
+            return 0;
+          }
+        }
+      }
+    }
+    Header expiresHeader = response.getFirstHeader(HttpHeaders.EXPIRES);
+    if (expiresHeader != null) {
+      Date expires = date(expiresHeader);
+      Date date = date(response.getFirstHeader(HttpHeaders.DATE));
+      if (expires == null || date == null) {
+        // invalid dates like "0" mean already expired
+        return 0;
+      }
+      return (expires.getTime() - date.getTime()) / 1000;
+    }
+    return 0;
+  }
+
+  private static boolean hasDirective(ExtendedResponse response, String directive) {
+    for (Header header : response.getHeaders(HttpHeaders.CACHE_CONTROL)) {
+      for (HeaderElement element : elements(header)) {
+        if (directive.equalsIgnoreCase(element.getName())) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  private static HeaderElement[] elements(Header header) {
+    try {
+      return header.getElements();
+    } catch (ParseException e) {
+      LOG.debug("Ignoring invalid {} header {}", header.getName(), header.getValue());
+      return new HeaderElement[0];
+    }
+  }
+
+  private static long seconds(Header header) {
+    if (header != null) {
+      try {
+        return Long.parseLong(header.getValue().trim());
+      } catch (NumberFormatException e) {
+        LOG.debug("Ignoring invalid {} header {}", header.getName(), header.getValue());
+      }
+    }
+    return 0;
+  }
+
+  private static Date date(Header header) {
+    return header != null ? DateUtils.parseDate(header.getValue()) : null;
+  }
+
+  /**
+   * Updates the stored response with the headers of the 304 answer, RFC 7234 section 4.3.4.
+   */
+  private static ExtendedResponse merge(ExtendedResponse stored, ExtendedResponse notModified) {
+    List<Header> headers = new ArrayList<>();
+    for (Header header : stored.getAllHeaders()) {
+      String name = header.getName().toLowerCase(Locale.ROOT);
+      if (KEEP_HEADERS.contains(name) || !notModified.containsHeader(name)) {
+        headers.add(header);
+      }
+    }
+    for (Header header : notModified.getAllHeaders()) {
+      if (!KEEP_HEADERS.contains(header.getName().toLowerCase(Locale.ROOT))) {
+        headers.add(header);
+      }
+    }
+    return new ExtendedResponse(
+        stored.getStatusLine(),
+        stored.getLocale(),
+        headers.toArray(new Header[0]),
+        stored.getBytes(),
+        stored.getCharset());
+  }
+
+  /**
+   * Entries are shared, so every caller gets its own instance it is free to modify.
+   */
+  private static ExtendedResponse copy(ExtendedResponse response) {
+    return new ExtendedResponse(
+        response.getStatusLine(),
+        response.getLocale(),
+        response.getAllHeaders(),
+        response.getBytes(),
+        response.getCharset());
+  }
+}
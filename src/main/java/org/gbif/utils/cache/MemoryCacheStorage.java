@@ -0,0 +1,101 @@
+/*
+ * Copyright 2021 Global Biodiversity Information Facility (GBIF)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.utils.cache;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.http.util.Args;
+
+/**
+ * A {@link CacheStorage} on the heap bounded by the total estimated size of its entries, evicting the least recently
+ * used entries first.
+ */
+public class MemoryCacheStorage implements CacheStorage {
+
+  private final long maxBytes;
+  private final long maxEntryBytes;
+
+  // access ordered, so iteration starts with the least recently used entry
+  private final LinkedHashMap<String, CacheEntry> entries = new LinkedHashMap<>(64, 0.75f, true);
+  private long bytes;
+  private long evictions;
+
+  /**
+   * @param maxBytes maximum total size of the entries, single entries may take up to a tenth of it
+   */
+  public MemoryCacheStorage(long maxBytes) {
+    this(maxBytes, maxBytes / 10);
+  }
+
+  /**
+   * @param maxBytes maximum total size of the entries
+   * @param maxEntryBytes maximum size of a single entry, larger responses are not cached
+   */
+  public MemoryCacheStorage(long maxBytes, long maxEntryBytes) {
+    Args.positive(maxBytes, "maxBytes");
+    Args.check(maxEntryBytes <= maxBytes, "maxEntryBytes must not exceed maxBytes");
+    this.maxBytes = maxBytes;
+    this.maxEntryBytes = maxEntryBytes;
+  }
+
+  @Override
+  public synchronized CacheEntry get(String key) {
+    return entries.get(key);
+  }
+
+  @Override
+  public synchronized void put(String key, CacheEntry entry) {
+    remove(key);
+    long weight = entry.weight();
+    if (weight > maxEntryBytes) {
+      return;
+    }
+    entries.put(key, entry);
+    bytes += weight;
+
+    Iterator<Map.Entry<String, CacheEntry>> iter = entries.entrySet().iterator();
+    while (bytes > maxBytes && iter.hasNext()) {
+      bytes -= iter.next().getValue().weight();
+      iter.remove();
+      evictions++;
+    }
+  }
+
+  @Override
+  public synchronized void remove(String key) {
+    CacheEntry old = entries.remove(key);
+    if (old != null) {
+      bytes -= old.weight();
+    }
+  }
+
+  public synchronized int getEntryCount() {
+    return entries.size();
+  }
+
+  /**
+   * @return the estimated total size of all entries
+   */
+  public synchronized long getBytes() {
+    return bytes;
+  }
+
+  public synchronized long getEvictionCount() {
+    return evictions;
+  }
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright 2021 Global Biodiversity Information Facility (GBIF)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.utils.cache;
+
+import org.apache.http.util.Args;
+
+/**
+ * Combines a small, fast storage like {@link MemoryCacheStorage} in front of a larger one like
+ * {@link DiskCacheStorage}. Entries are written to both, and entries found only in the second tier are copied into
+ * the first.
+ */
+public class TieredCacheStorage implements CacheStorage {
+
+  private final CacheStorage first;
+  private final CacheStorage second;
+
+  public TieredCacheStorage(CacheStorage first, CacheStorage second) {
+    this.first = Args.notNull(first, "first");
+    this.second = Args.notNull(second, "second");
+  }
+
+  @Override
+  public CacheEntry get(String key) {
+    CacheEntry entry = first.get(key);
+    if (entry == null) {
+      entry = second.get(key);
+      if (entry != null) {
+        first.put(key, entry);
+      }
+    }
+    return entry;
+  }
+
+  @Override
+  public void put(String key, CacheEntry entry) {
+    first.put(key, entry);
+    second.put(key, entry);
+  }
+
+  @Override
+  public void remove(String key) {
+    first.remove(key);
+    second.remove(key);
+  }
+
+  public CacheStorage getFirst() {
+    return first;
+  }
+
+  public CacheStorage getSecond() {
+    return second;
+  }
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright 2021 Global Biodiversity Information Facility (GBIF)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.utils.metrics;
+
+/**
+ * The names of the metrics reported to a {@link MetricsRegistry}.
+ */
+public final class HttpMetrics {
+
+  /**
+   * Histogram of the time spent waiting for a connection from the pool.
+   */
+  public static final String LEASE_WAIT = "http.client.lease.wait";
+
+  /**
+   * Histogram of the time to open a connection, including the TLS handshake.
+   */
+  public static final String CONNECT = "http.client.connect";
+
+  /**
+   * Histogram of the time from the request being sent until the response headers arrived.
+   */
+  public static final String TIME_TO_FIRST_BYTE = "http.client.ttfb";
+
+  /**
+   * Histogram of the time from the start of an exchange until its response body was consumed.
+   */
+  public static final String TOTAL = "http.client.total";
+
+  /**
+   * Counter of the bytes sent, including the request line and headers.
+   */
+  public static final String BYTES_OUT = "http.client.bytes.out";
+
+  /**
+   * Counter of the response body bytes received.
+   */
+  public static final String BYTES_IN = "http.client.bytes.in";
+
+  /**
+   * Prefix of the counters of responses per status code, like {@code http.client.status.200}.
+   */
+  public static final String STATUS = "http.client.status.";
+
+  /**
+   * Counter of exchanges failed with an exception, including pool lease timeouts.
+   */
+  public static final String ERRORS = "http.client.errors";
+
+  /**
+   * Gauge of the connections in use.
+   */
+  public static final String POOL_LEASED = "http.client.pool.leased";
+
+  /**
+   * Gauge of the idle connections kept in the pool.
+   */
+  public static final String POOL_AVAILABLE = "http.client.pool.available";
+
+  /**
+   * Gauge of the requests waiting for a connection.
+   */
+  public static final String POOL_PENDING = "http.client.pool.pending";
+
+  /**
+   * The route of the pool gauges summed over all routes.
+   */
+  public static final String ALL_ROUTES = "*";
+
+  private HttpMetrics() {}
+}
@@ -0,0 +1,45 @@
+/*
+ * Copyright 2021 Global Biodiversity Information Facility (GBIF)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.utils.metrics;
+
+import java.util.function.LongSupplier;
+
+/**
+ * Receives the measurements of an instrumented client, to be bridged to a metrics library like Micrometer or
+ * Dropwizard Metrics. The metric names are defined in {@link HttpMetrics}, every measurement is tagged with the route
+ * it was taken on, like {@code api.gbif.org:443}.
+ * <p/>
+ * Implementations are called on the request threads and must be thread safe and cheap.
+ */
+public interface MetricsRegistry {
+
+  /**
+   * Records a duration into the histogram of the metric.
+   *
+   * @param nanos the duration in nanoseconds
+   */
+  void recordTime(String name, String route, long nanos);
+
+  /**
+   * Adds to the counter of the metric.
+   */
+  void increment(String name, String route, long delta);
+
+  /**
+   * Registers a gauge read whenever the registry reports. Called once per metric and route.
+   */
+  void gauge(String name, String route, LongSupplier value);
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright 2021 Global Biodiversity Information Facility (GBIF)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.utils.metrics;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * A {@link MetricsRegistry} keeping the metrics in memory, with lock-free {@link Histogram}s and counters, for
+ * applications without a metrics library or for inspecting a client in tests.
+ */
+public class SimpleMetricsRegistry implements MetricsRegistry {
+
+  private final Map<String, Histogram> histograms = new ConcurrentHashMap<>();
+  private final Map<String, LongAdder> counters = new ConcurrentHashMap<>();
+  private final Map<String, LongSupplier> gauges = new ConcurrentHashMap<>();
+
+  @Override
+  public void recordTime(String name, String route, long nanos) {
+    histograms.computeIfAbsent(key(name, route), k -> new Histogram()).record(nanos);
+  }
+
+  @Override
+  public void increment(String name, String route, long delta) {
+    counters.computeIfAbsent(key(name, route), k -> new LongAdder()).add(delta);
+  }
+
+  @Override
+  public void gauge(String name, String route, LongSupplier value) {
+    gauges.put(key(name, route), value);
+  }
+
+  /**
+   * @return the histogram of the metric, or null if nothing was recorded
+   */
+  public Histogram getHistogram(String name, String route) {
+    return histograms.get(key(name, route));
+  }
+
+  /**
+   * @return the value of the counter, 0 if nothing was counted
+   */
+  public long getCount(String name, String route) {
+    LongAdder counter = counters.get(key(name, route));
+    return counter != null ? counter.sum() : 0;
+  }
+
+  /**
+   * @return the current value of the gauge, or -1 if it isn't registered
+   */
+  public long getGauge(String name, String route) {
+    LongSupplier gauge = gauges.get(key(name, route));
+    return gauge != null ? gauge.getAsLong() : -1;
+  }
+
+  private static String key(String name, String route) {
+    return name + '|' + route;
+  }
+}
@@ -0,0 +1,364 @@
+/*
+ * Copyright 2021 Global Biodiversity Information Facility (GBIF)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.varnish;
+
+import java.io.Closeable;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.http.util.Args;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Sends purges and bans from a small pool of worker threads, so a slow or unavailable Varnish never stalls the
+ * callers.
+ * <p/>
+ * Invalidations are queued in a bounded queue, and an invalidation identical to one still queued is not queued again.
+ * What happens when the queue is full is decided by the {@link OverflowPolicy}. The workers share the wrapped purger,
+ * which should therefore use a pooled client with at least as many connections as workers.
+ */
+public class AsyncVarnishPurger implements Purger, Closeable {
+
+  private static final Logger LOG = LoggerFactory.getLogger(AsyncVarnishPurger.class);
+
+  /**
+   * What to do with a new invalidation when the queue is full.
+   */
+  public enum OverflowPolicy {
+    /**
+     * The caller waits for space in the queue.
+     */
+    BLOCK,
+    /**
+     * The oldest queued invalidation is dropped.
+     */
+    DROP_OLDEST,
+    /**
+     * The queued invalidations are merged into as few BANs within the request header limit of Varnish as possible,
+     * which invalidate at least the same paths. Invalidations are merged only once, so if the queue is still full
+     * the caller waits for space as with {@link #BLOCK}.
+     */
+    COALESCE
+  }
+
+  private final Purger purger;
+  private final int capacity;
+  private final OverflowPolicy policy;
+  private final ExecutorService workers;
+
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition notEmpty = lock.newCondition();
+  private final Condition notFull = lock.newCondition();
+  private final Condition idle = lock.newCondition();
+  private final Deque<Invalidation> queue = new ArrayDeque<>();
+  private final Set<Invalidation> queued = new HashSet<>();
+  private int running;
+  private boolean closed;
+
+  private final AtomicLong completed = new AtomicLong();
+  private final AtomicLong dropped = new AtomicLong();
+  private final AtomicLong coalesced = new AtomicLong();
+
+  /**
+   * @param purger the purger executing the invalidations
+   * @param threads number of worker threads
+   * @param capacity maximum number of queued invalidations
+   */
+  public AsyncVarnishPurger(Purger purger, int threads, int capacity, OverflowPolicy policy) {
+    Args.notNull(purger, "purger");
+    Args.positive(threads, "threads");
+    Args.positive(capacity, "capacity");
+    Args.notNull(policy, "policy");
+    this.purger = purger;
+    this.capacity = capacity;
+    this.policy = policy;
+
+    AtomicInteger count = new AtomicInteger();
+    this.workers =
+        Executors.newFixedThreadPool(
+            threads,
+            r -> {
+              Thread t = new Thread(r, "varnish-purger-" + count.incrementAndGet());
+              t.setDaemon(true);
+              return t;
+            });
+    for (int i = 0; i < threads; i++) {
+      workers.execute(this::work);
+    }
+  }
+
+  /**
+   * Queues a PURGE of the path.
+   * @throws IllegalStateException if the purger is closed
+   */
+  @Override
+  public void purge(String path) {
+    Args.notNull(path, "path can not be null");
+    enqueue(new Invalidation(false, path));
+  }
+
+  /**
+   * Queues a BAN of the regex.
+   * @throws IllegalStateException if the purger is closed
+   */
+  @Override
+  public void ban(String regex) {
+    Args.notNull(regex, "regex can not be null");
+    enqueue(new Invalidation(true, regex));
+  }
+
+  private void enqueue(Invalidation invalidation) {
+    lock.lock();
+    try {
+      checkOpen();
+      if (queued.contains(invalidation)) {
+        coalesced.incrementAndGet();
+        return;
+      }
+      while (queue.size() >= capacity) {
+        if (policy == OverflowPolicy.BLOCK) {
+          notFull.awaitUninterruptibly();
+          checkOpen();
+        } else if (policy == OverflowPolicy.DROP_OLDEST) {
+          Invalidation oldest = queue.poll();
+          queued.remove(oldest);
+          dropped.incrementAndGet();
+          LOG.warn("Invalidation queue full, dropping {}", oldest);
+        } else if (!mergeQueue()) {
+          // everything queued was merged already
+          notFull.awaitUninterruptibly();
+          checkOpen();
+        }
+      }
+      queue.add(invalidation);
+      queued.add(invalidation);
+      notEmpty.signal();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Replaces the queued invalidations which weren't merged before with BANs OR'ing them, each within the request
+   * header limit of Varnish.
+   *
+   * @return false if merging wouldn't shrink the queue
+   */
+  private boolean mergeQueue() {
+    List<Invalidation> kept = new ArrayList<>();
+    List<String> paths = new ArrayList<>();
+    List<String> regexes = new ArrayList<>();
+    for (Invalidation invalidation : queue) {
+      if (invalidation.merged) {
+        kept.add(invalidation);
+      } else if (invalidation.ban) {
+        regexes.add(invalidation.value);
+      } else {
+        paths.add(invalidation.value);
+      }
+    }
+    List<String> bans = VarnishPurger.combine(paths, regexes, BanRegexBuilder.DEFAULT_MAX_BYTES);
+    if (kept.size() + bans.size() >= queue.size()) {
+      return false;
+    }
+
+    coalesced.addAndGet(paths.size() + regexes.size() - bans.size());
+    queue.clear();
+    queued.clear();
+    queue.addAll(kept);
+    queued.addAll(kept);
+    for (String ban : bans) {
+      Invalidation merged = new Invalidation(true, ban, true);
+      if (queued.add(merged)) {
+        queue.add(merged);
+      }
+    }
+    return true;
+  }
+
+  private void checkOpen() {
+    if (closed) {
+      throw new IllegalStateException("Purger is closed");
+    }
+  }
+
+  private void work() {
+    while (true) {
+      Invalidation invalidation;
+      lock.lock();
+      try {
+        while (queue.isEmpty()) {
+          if (closed) {
+            return;
+          }
+          notEmpty.awaitUninterruptibly();
+        }
+        invalidation = queue.poll();
+        queued.remove(invalidation);
+        running++;
+        notFull.signal();
+      } finally {
+        lock.unlock();
+      }
+
+      try {
+        if (invalidation.ban) {
+          purger.ban(invalidation.value);
+        } else {
+          purger.purge(invalidation.value);
+        }
+        completed.incrementAndGet();
+      } catch (RuntimeException e) {
+        LOG.error("Failed to send {}", invalidation, e);
+      } finally {
+        lock.lock();
+        try {
+          running--;
+          if (running == 0 && queue.isEmpty()) {
+            idle.signalAll();
+          }
+        } finally {
+          lock.unlock();
+        }
+      }
+    }
+  }
+
+  /**
+   * Waits until all queued invalidations have been sent.
+   */
+  public void flush() throws InterruptedException {
+    lock.lock();
+    try {
+      while (running > 0 || !queue.isEmpty()) {
+        idle.await();
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * @return the number of invalidations waiting to be sent
+   */
+  public int getQueueSize() {
+    lock.lock();
+    try {
+      return queue.size();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * @return the number of purges and bans handed to the wrapped purger
+   */
+  public long getCompletedCount() {
+    return completed.get();
+  }
+
+  /**
+   * @return the number of invalidations dropped because the queue was full
+   */
+  public long getDroppedCount() {
+    return dropped.get();
+  }
+
+  /**
+   * @return the number of invalidations merged with a queued one
+   */
+  public long getCoalescedCount() {
+    return coalesced.get();
+  }
+
+  /**
+   * Stops accepting invalidations, sends all queued ones and stops the workers.
+   */
+  @Override
+  public void close() {
+    lock.lock();
+    try {
+      closed = true;
+      notEmpty.signalAll();
+      // blocked callers fail rather than wait forever
+      notFull.signalAll();
+    } finally {
+      lock.unlock();
+    }
+    workers.shutdown();
+    try {
+      if (!workers.awaitTermination(1, TimeUnit.MINUTES)) {
+        LOG.warn("Timed out sending {} queued invalidations", getQueueSize());
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private static final class Invalidation {
+
+    private final boolean ban;
+    private final String value;
+    // merged from other invalidations on overflow
+    private final boolean merged;
+
+    private Invalidation(boolean ban, String value) {
+      this(ban, value, false);
+    }
+
+    private Invalidation(boolean ban, String value, boolean merged) {
+      this.ban = ban;
+      this.value = StringUtils.removeStart(value, "/");
+      this.merged = merged;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) {
+        return true;
+      }
+      if (!(o instanceof Invalidation)) {
+        return false;
+      }
+      Invalidation that = (Invalidation) o;
+      return ban == that.ban && value.equals(that.value);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(ban, value);
+    }
+
+    @Override
+    public String toString() {
+      return (ban ? "BAN " : "PURGE ") + value;
+    }
+  }
+}
@@ -0,0 +1,216 @@
+/*
+ * Copyright 2021 Global Biodiversity Information Facility (GBIF)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.varnish;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import org.apache.http.util.Args;
+
+/**
+ * Builds compact regular expressions matching any of many literal keys, as a smaller alternative to
+ * {@link VarnishPurger#anyKey} for large sets of dataset UUIDs or occurrence keys.
+ * <p/>
+ * Keys are put into a trie, so common prefixes are written only once. For example the keys 1234, 1235, 1236 and 1299
+ * become {@code 12(?:3[4-6]|99)} instead of {@code (1234|1235|1236|1299)}. The regex is shorter to send and faster for
+ * Varnish to evaluate, as a mismatch on a shared prefix rejects all keys below it at once.
+ * <p/>
+ * Sets whose regex would exceed a byte limit, like the maximum request header size of Varnish, are split into several
+ * regexes of sorted keys, so neighbouring keys sharing prefixes end up together.
+ */
+public final class BanRegexBuilder {
+
+  /**
+   * Default limit leaving room for the API path within the default 8KB request header limit of Varnish.
+   */
+  public static final int DEFAULT_MAX_BYTES = 7 * 1024;
+
+  private BanRegexBuilder() {}
+
+  /**
+   * @return a single regex matching exactly the given keys
+   */
+  public static String anyKey(Collection<?> keys) {
+    return render(trie(sorted(keys)));
+  }
+
+  /**
+   * Splits the keys into as few regexes as possible, each at most maxBytes long in UTF-8.
+   *
+   * @param maxBytes the maximum size of a single regex
+   * @return regexes together matching exactly the given keys
+   * @throws IllegalArgumentException if a single key exceeds the limit
+   */
+  public static List<String> anyKey(Collection<?> keys, int maxBytes) {
+    Args.positive(maxBytes, "maxBytes");
+    List<String> regexes = new ArrayList<>();
+    List<String> sorted = sorted(keys);
+    if (!sorted.isEmpty()) {
+      split(sorted, maxBytes, regexes);
+    }
+    return regexes;
+  }
+
+  /**
+   * OR's regexes into as few alternations as possible, each at most maxBytes long in UTF-8. Unlike keys the regexes
+   * are used as they are, and a single regex exceeding the limit is returned on its own.
+   *
+   * @param maxBytes the maximum size of a single alternation
+   * @return alternations together matching what the given regexes match
+   */
+  public static List<String> anyRegex(Collection<String> regexes, int maxBytes) {
+    Args.positive(maxBytes, "maxBytes");
+    List<String> alternations = new ArrayList<>();
+    Set<String> group = new LinkedHashSet<>();
+    // the size of the group without the parentheses
+    int groupBytes = 0;
+    for (String regex : new LinkedHashSet<>(regexes)) {
+      int bytes = regex.getBytes(StandardCharsets.UTF_8).length;
+      if (!group.isEmpty() && groupBytes + 1 + bytes + 2 > maxBytes) {
+        alternations.add(VarnishPurger.anyKey(group));
+        group.clear();
+        groupBytes = 0;
+      }
+      groupBytes += group.isEmpty() ? bytes : bytes + 1;
+      group.add(regex);
+    }
+    if (!group.isEmpty()) {
+      alternations.add(VarnishPurger.anyKey(group));
+    }
+    return alternations;
+  }
+
+  private static void split(List<String> keys, int maxBytes, List<String> regexes) {
+    String regex = render(trie(keys));
+    if (regex.getBytes(StandardCharsets.UTF_8).length <= maxBytes) {
+      regexes.add(regex);
+    } else if (keys.size() == 1) {
+      throw new IllegalArgumentException("Key exceeds " + maxBytes + " bytes: " + keys.get(0));
+    } else {
+      int middle = keys.size() / 2;
+      split(keys.subList(0, middle), maxBytes, regexes);
+      split(keys.subList(middle, keys.size()), maxBytes, regexes);
+    }
+  }
+
+  private static List<String> sorted(Collection<?> keys) {
+    TreeSet<String> sorted = new TreeSet<>();
+    keys.stream().filter(Objects::nonNull).map(Object::toString).forEach(sorted::add);
+    return new ArrayList<>(sorted);
+  }
+
+  private static final class Node {
+    private final TreeMap<Character, Node> children = new TreeMap<>();
+    private boolean terminal;
+
+    private boolean isLeaf() {
+      return children.isEmpty();
+    }
+  }
+
+  private static Node trie(List<String> keys) {
+    Node root = new Node();
+    for (String key : keys) {
+      Node node = root;
+      for (int i = 0; i < key.length(); i++) {
+        node = node.children.computeIfAbsent(key.charAt(i), c -> new Node());
+      }
+      node.terminal = true;
+    }
+    return root;
+  }
+
+  /**
+   * Alternatives are always grouped, so the regex can be embedded into a longer path.
+   *
+   * @return a regex matching the suffixes of the keys below the node
+   */
+  private static String render(Node node) {
+    if (node.isLeaf()) {
+      return "";
+    }
+
+    String body;
+    // whether the body is a single atom a quantifier can apply to
+    boolean single;
+    if (node.children.size() > 1 && allSimpleLeaves(node)) {
+      body = charClass(node.children.keySet());
+      single = true;
+    } else {
+      List<String> alternatives = new ArrayList<>(node.children.size());
+      for (Map.Entry<Character, Node> child : node.children.entrySet()) {
+        alternatives.add(escape(child.getKey()) + render(child.getValue()));
+      }
+      if (alternatives.size() == 1) {
+        body = alternatives.get(0);
+        single = node.children.firstEntry().getValue().isLeaf();
+      } else {
+        body = "(?:" + String.join("|", alternatives) + ")";
+        single = true;
+      }
+    }
+
+    if (node.terminal) {
+      // a key ends here, so the rest is optional
+      return (single ? body : "(?:" + body + ")") + "?";
+    }
+    return body;
+  }
+
+  private static boolean allSimpleLeaves(Node node) {
+    for (Map.Entry<Character, Node> child : node.children.entrySet()) {
+      if (!child.getValue().isLeaf() || !Character.isLetterOrDigit(child.getKey())) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * @return a character class of letters or digits, with runs of three or more collapsed into ranges
+   */
+  private static String charClass(Collection<Character> chars) {
+    StringBuilder sb = new StringBuilder("[");
+    List<Character> list = new ArrayList<>(chars);
+    for (int i = 0; i < list.size(); ) {
+      int j = i;
+      while (j + 1 < list.size() && list.get(j + 1) == list.get(j) + 1) {
+        j++;
+      }
+      if (j - i >= 2) {
+        sb.append(list.get(i)).append('-').append(list.get(j));
+      } else {
+        for (int k = i; k <= j; k++) {
+          sb.append(list.get(k));
+        }
+      }
+      i = j + 1;
+    }
+    return sb.append(']').toString();
+  }
+
+  private static String escape(char c) {
+    return VarnishPurger.literal(String.valueOf(c));
+  }
+}
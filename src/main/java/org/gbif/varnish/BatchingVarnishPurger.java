@@ -0,0 +1,214 @@
+/*
+ * Copyright 2021 Global Biodiversity Information Facility (GBIF)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.varnish;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.http.util.Args;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Collects purges and bans over a time window and sends them as a few combined BANs, which keeps both the number of
+ * requests and the length of the Varnish ban list down when many records change at once.
+ * <p/>
+ * Up to {@code maxBatchSize} distinct invalidations are combined: purged paths are compacted into exact BAN expressions
+ * with {@link BanRegexBuilder}, and OR'ed with the banned regexes into BANs of at most {@code maxBatchBytes}, so no
+ * BAN exceeds the request header limit of Varnish. Pending invalidations are sent in the background when the window
+ * elapses or the batch is full, and on {@link #flush()} and {@link #close()}.
+ */
+public class BatchingVarnishPurger implements Purger, Closeable {
+
+  private static final Logger LOG = LoggerFactory.getLogger(BatchingVarnishPurger.class);
+
+  private final Purger purger;
+  private final int maxBatchSize;
+  private final int maxBatchBytes;
+  private final ScheduledExecutorService scheduler;
+
+  // purged paths and banned regexes, guarded by this
+  private Set<String> paths = new LinkedHashSet<>();
+  private Set<String> regexes = new LinkedHashSet<>();
+  private boolean closed;
+  private final AtomicLong received = new AtomicLong();
+  private final AtomicLong sent = new AtomicLong();
+
+  /**
+   * @param purger the purger sending the combined BANs
+   * @param window how long invalidations are collected before they are sent
+   * @param maxBatchSize maximum number of invalidations combined, a full batch is sent immediately
+   */
+  public BatchingVarnishPurger(Purger purger, long window, TimeUnit unit, int maxBatchSize) {
+    this(purger, window, unit, maxBatchSize, BanRegexBuilder.DEFAULT_MAX_BYTES);
+  }
+
+  /**
+   * @param purger the purger sending the combined BANs
+   * @param window how long invalidations are collected before they are sent
+   * @param maxBatchSize maximum number of invalidations combined, a full batch is sent immediately
+   * @param maxBatchBytes maximum size of a combined BAN expression, leaving room for the API path within the request
+   * header limit of Varnish
+   */
+  public BatchingVarnishPurger(
+      Purger purger, long window, TimeUnit unit, int maxBatchSize, int maxBatchBytes) {
+    Args.notNull(purger, "purger");
+    Args.positive(window, "window");
+    Args.positive(maxBatchSize, "maxBatchSize");
+    Args.positive(maxBatchBytes, "maxBatchBytes");
+    this.purger = purger;
+    this.maxBatchSize = maxBatchSize;
+    this.maxBatchBytes = maxBatchBytes;
+    this.scheduler =
+        Executors.newSingleThreadScheduledExecutor(
+            r -> {
+              Thread t = new Thread(r, "varnish-batch");
+              t.setDaemon(true);
+              return t;
+            });
+    scheduler.scheduleWithFixedDelay(this::flushQuietly, window, window, unit);
+  }
+
+  /**
+   * Queues an exact invalidation of the path.
+   * @throws IllegalStateException if the purger is closed
+   */
+  @Override
+  public void purge(String path) {
+    Args.notNull(path, "path can not be null");
+    add(false, StringUtils.removeStart(path, "/"));
+  }
+
+  /**
+   * Queues an invalidation of all paths matching the regex.
+   * @throws IllegalStateException if the purger is closed
+   */
+  @Override
+  public void ban(String regex) {
+    Args.notNull(regex, "regex can not be null");
+    add(true, StringUtils.removeStart(regex, "/"));
+  }
+
+  private synchronized void add(boolean ban, String value) {
+    if (closed) {
+      throw new IllegalStateException("Purger is closed");
+    }
+    // the sets are swapped by flush, so they are only picked under the lock
+    (ban ? regexes : paths).add(value);
+    received.incrementAndGet();
+    if (paths.size() + regexes.size() >= maxBatchSize) {
+      // close marks the purger closed before shutting the scheduler down
+      scheduler.execute(this::flushQuietly);
+    }
+  }
+
+  /**
+   * Sends all pending invalidations now.
+   */
+  public void flush() {
+    Set<String> batchPaths;
+    Set<String> batchRegexes;
+    synchronized (this) {
+      if (paths.isEmpty() && regexes.isEmpty()) {
+        return;
+      }
+      batchPaths = paths;
+      batchRegexes = regexes;
+      paths = new LinkedHashSet<>();
+      regexes = new LinkedHashSet<>();
+    }
+
+    List<String> groupPaths = new ArrayList<>();
+    List<String> groupRegexes = new ArrayList<>();
+    for (String path : batchPaths) {
+      groupPaths.add(path);
+      if (groupPaths.size() == maxBatchSize) {
+        send(groupPaths, groupRegexes);
+      }
+    }
+    for (String regex : batchRegexes) {
+      groupRegexes.add(regex);
+      if (groupPaths.size() + groupRegexes.size() == maxBatchSize) {
+        send(groupPaths, groupRegexes);
+      }
+    }
+    if (!groupPaths.isEmpty() || !groupRegexes.isEmpty()) {
+      send(groupPaths, groupRegexes);
+    }
+  }
+
+  private void send(List<String> groupPaths, List<String> groupRegexes) {
+    List<String> bans = VarnishPurger.combine(groupPaths, groupRegexes, maxBatchBytes);
+    LOG.debug(
+        "Sending {} BANs combining {} invalidations",
+        bans.size(),
+        groupPaths.size() + groupRegexes.size());
+    groupPaths.clear();
+    groupRegexes.clear();
+    for (String ban : bans) {
+      purger.ban(ban);
+      sent.incrementAndGet();
+    }
+  }
+
+  private void flushQuietly() {
+    try {
+      flush();
+    } catch (RuntimeException e) {
+      // keep the scheduled flushes running
+      LOG.error("Failed to send batched invalidations", e);
+    }
+  }
+
+  /**
+   * @return the number of purges and bans received
+   */
+  public long getReceivedCount() {
+    return received.get();
+  }
+
+  /**
+   * @return the number of combined BANs sent
+   */
+  public long getSentCount() {
+    return sent.get();
+  }
+
+  /**
+   * Stops accepting invalidations, stops the background flushes and sends all pending invalidations.
+   */
+  @Override
+  public void close() {
+    synchronized (this) {
+      closed = true;
+    }
+    scheduler.shutdown();
+    try {
+      scheduler.awaitTermination(1, TimeUnit.MINUTES);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    flush();
+  }
+}
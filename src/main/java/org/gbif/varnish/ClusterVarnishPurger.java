@@ -0,0 +1,305 @@
+/*
+ * Copyright 2021 Global Biodiversity Information Facility (GBIF)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.varnish;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.http.HttpHeaders;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.util.Args;
+import org.apache.http.util.EntityUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Sends every purge and ban to all Varnish nodes of a cluster concurrently, so an invalidation reaches every cache
+ * behind the load balancer and takes as long as the slowest node rather than the sum of all.
+ * <p/>
+ * Requests go straight to the node endpoints but carry the Host header of the logical API base URL, which Varnish
+ * uses to find the cached objects.
+ */
+public class ClusterVarnishPurger implements Purger, Closeable {
+
+  private static final Logger LOG = LoggerFactory.getLogger(ClusterVarnishPurger.class);
+
+  /**
+   * The outcome of an invalidation on a single node.
+   */
+  public static class NodeResult {
+
+    private final URI node;
+    private final int statusCode;
+    private final long latency;
+    private final IOException exception;
+
+    NodeResult(URI node, int statusCode, long latency, IOException exception) {
+      this.node = node;
+      this.statusCode = statusCode;
+      this.latency = latency;
+      this.exception = exception;
+    }
+
+    public URI getNode() {
+      return node;
+    }
+
+    /**
+     * @return the status code answered by the node, or -1 if the request failed
+     */
+    public int getStatusCode() {
+      return statusCode;
+    }
+
+    /**
+     * @return the time the request took in milliseconds
+     */
+    public long getLatency() {
+      return latency;
+    }
+
+    /**
+     * @return the exception of a failed request, or null
+     */
+    public IOException getException() {
+      return exception;
+    }
+
+    public boolean isSuccess() {
+      return statusCode >= 200 && statusCode < 300;
+    }
+
+    @Override
+    public String toString() {
+      return node
+          + " "
+          + (exception != null ? exception.toString() : String.valueOf(statusCode))
+          + " in "
+          + latency
+          + "ms";
+    }
+  }
+
+  private final CloseableHttpClient client;
+  private final List<URI> nodes;
+  private final String host;
+  private final String apiPath;
+  private final ExecutorService executor;
+  private final boolean ownExecutor;
+
+  /**
+   * @param client a pooled client allowing at least one connection per node
+   * @param apiBaseUrl the public API base URL the cached objects are stored under
+   * @param nodes base URLs of the Varnish nodes, like http://varnish1:6081
+   */
+  public ClusterVarnishPurger(CloseableHttpClient client, URI apiBaseUrl, List<URI> nodes) {
+    this(client, apiBaseUrl, nodes, newExecutor(nodes.size()), true);
+  }
+
+  /**
+   * @param executor runs the requests to the nodes, it is not shut down on close
+   */
+  public ClusterVarnishPurger(
+      CloseableHttpClient client, URI apiBaseUrl, List<URI> nodes, ExecutorService executor) {
+    this(client, apiBaseUrl, nodes, executor, false);
+  }
+
+  private ClusterVarnishPurger(
+      CloseableHttpClient client,
+      URI apiBaseUrl,
+      List<URI> nodes,
+      ExecutorService executor,
+      boolean ownExecutor) {
+    Args.check(apiBaseUrl.isAbsolute(), "apiBaseUrl must be absolute");
+    Args.notEmpty(nodes, "nodes");
+    for (URI node : nodes) {
+      Args.check(node.isAbsolute(), "node URLs must be absolute");
+    }
+    this.client = client;
+    this.nodes = Collections.unmodifiableList(new ArrayList<>(nodes));
+    this.host =
+        apiBaseUrl.getPort() == -1
+            ? apiBaseUrl.getHost()
+            : apiBaseUrl.getHost() + ":" + apiBaseUrl.getPort();
+    this.apiPath = StringUtils.removeEnd(apiBaseUrl.getPath(), "/");
+    this.executor = executor;
+    this.ownExecutor = ownExecutor;
+  }
+
+  private static ExecutorService newExecutor(int threads) {
+    AtomicInteger count = new AtomicInteger();
+    return Executors.newFixedThreadPool(
+        threads,
+        r -> {
+          Thread t = new Thread(r, "varnish-cluster-" + count.incrementAndGet());
+          t.setDaemon(true);
+          return t;
+        });
+  }
+
+  public List<URI> getNodes() {
+    return nodes;
+  }
+
+  /**
+   * Sends a PURGE for the path to all nodes, logging nodes which failed.
+   */
+  @Override
+  public void purge(String path) {
+    tryPurge(path);
+  }
+
+  /**
+   * Sends a BAN for the regex to all nodes, logging nodes which failed.
+   */
+  @Override
+  public void ban(String regex) {
+    tryBan(regex);
+  }
+
+  /**
+   * @return true if all nodes acknowledged the purge
+   */
+  @Override
+  public boolean tryPurge(String path) {
+    return log("purge " + path, purgeNodes(path));
+  }
+
+  /**
+   * @return true if all nodes acknowledged the ban
+   */
+  @Override
+  public boolean tryBan(String regex) {
+    return log("ban " + regex, banNodes(regex));
+  }
+
+  /**
+   * Sends a PURGE for the path to all nodes concurrently.
+   * @param path relative to the API base URL
+   * @return the outcome per node, in the order of the nodes
+   */
+  public List<NodeResult> purgeNodes(String path) {
+    Args.notNull(path, "path can not be null");
+    String target = apiPath + "/" + StringUtils.removeStart(path, "/");
+    return sendAll(node -> new HttpPurge(node.resolve(target)));
+  }
+
+  /**
+   * Sends a BAN for the regex to all nodes concurrently.
+   * @param regex regex representing the path(s) relative to the API base URL
+   * @return the outcome per node, in the order of the nodes
+   */
+  public List<NodeResult> banNodes(String regex) {
+    Args.notNull(regex, "regex can not be null");
+    String banRegex = apiPath + "/" + StringUtils.removeStart(regex, "/");
+    return sendAll(node -> new HttpBan(node.resolve(apiPath + "/"), banRegex));
+  }
+
+  /**
+   * Sends PURGE requests for the surrogate keys to all nodes concurrently, batching as many keys per request as fit
+   * the Varnish request header limit.
+   * @return true if all nodes acknowledged all requests
+   * @see VarnishPurger#purgeKeys(Collection)
+   */
+  public boolean purgeKeys(Collection<?> keys) {
+    boolean success = true;
+    for (String batch : VarnishPurger.keyBatches(keys, VarnishPurger.MAX_KEY_HEADER_BYTES)) {
+      List<NodeResult> results =
+          sendAll(node -> new HttpXkeyPurge(node.resolve(apiPath + "/"), batch));
+      success &= log("purge keys " + batch, results);
+    }
+    return success;
+  }
+
+  private List<NodeResult> sendAll(Function<URI, HttpRequestBase> requests) {
+    List<Future<NodeResult>> futures = new ArrayList<>(nodes.size());
+    for (URI node : nodes) {
+      HttpRequestBase request = requests.apply(node);
+      request.setHeader(HttpHeaders.HOST, host);
+      futures.add(executor.submit(() -> send(node, request)));
+    }
+
+    List<NodeResult> results = new ArrayList<>(nodes.size());
+    for (int i = 0; i < futures.size(); i++) {
+      try {
+        results.add(futures.get(i).get());
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        results.add(new NodeResult(nodes.get(i), -1, 0, new InterruptedIOException("Interrupted")));
+      } catch (ExecutionException e) {
+        results.add(new NodeResult(nodes.get(i), -1, 0, new IOException(e.getCause())));
+      }
+    }
+    return results;
+  }
+
+  private NodeResult send(URI node, HttpRequestBase request) {
+    long start = System.nanoTime();
+    try (CloseableHttpResponse resp = client.execute(request)) {
+      // keep the connection reusable
+      EntityUtils.consumeQuietly(resp.getEntity());
+      return new NodeResult(node, resp.getStatusLine().getStatusCode(), elapsed(start), null);
+    } catch (IOException e) {
+      return new NodeResult(node, -1, elapsed(start), e);
+    }
+  }
+
+  private static long elapsed(long start) {
+    return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+  }
+
+  /**
+   * @return true if all nodes succeeded
+   */
+  private static boolean log(String invalidation, List<NodeResult> results) {
+    boolean success = true;
+    for (NodeResult result : results) {
+      if (result.isSuccess()) {
+        LOG.debug("Sent {} to {}", invalidation, result);
+      } else {
+        LOG.error("Failed to {} on {}", invalidation, result, result.getException());
+        success = false;
+      }
+    }
+    return success;
+  }
+
+  /**
+   * Shuts down the executor if it was created by this purger.
+   */
+  @Override
+  public void close() {
+    if (ownExecutor) {
+      executor.shutdown();
+    }
+  }
+}
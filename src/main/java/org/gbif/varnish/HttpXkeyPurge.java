@@ -0,0 +1,44 @@
+/*
+ * Copyright 2021 Global Biodiversity Information Facility (GBIF)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.varnish;
+
+import java.net.URI;
+
+import org.apache.http.annotation.Contract;
+import org.apache.http.client.methods.HttpRequestBase;
+
+/**
+ * A PURGE carrying surrogate keys, used with the Varnish xkey vmod to invalidate all objects tagged with any of the
+ * keys. The VCL passes the space separated keys of the header to {@code xkey.purge()}, which only touches the tagged
+ * objects instead of testing a ban against every cached object.
+ */
+@Contract
+public class HttpXkeyPurge extends HttpRequestBase {
+
+  public static final String METHOD_NAME = "PURGE";
+  public static final String XKEY_HEADER = "xkey";
+
+  public HttpXkeyPurge(URI uri, String keys) {
+    super();
+    setURI(uri);
+    setHeader(XKEY_HEADER, keys);
+  }
+
+  @Override
+  public String getMethod() {
+    return METHOD_NAME;
+  }
+}
@@ -0,0 +1,514 @@
+/*
+ * Copyright 2021 Global Biodiversity Information Facility (GBIF)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.varnish;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.http.util.Args;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Records every purge and ban in an append-only journal file before sending it, and keeps retrying it with
+ * exponential backoff until Varnish acknowledges it, so invalidations survive Varnish outages and JVM restarts.
+ * <p/>
+ * Callers only append to an in-memory buffer. A background thread writes the buffer to the journal and syncs it to
+ * disk in batches, then sends the due invalidations through the wrapped purger one at a time and journals their
+ * acknowledgements. Invalidations not yet acknowledged are replayed from the journal on the next start. Once enough
+ * entries are acknowledged the journal is rewritten with only the pending ones.
+ * <p/>
+ * The wrapped purger must report acknowledgements through {@link Purger#tryPurge} and {@link Purger#tryBan}, like
+ * {@link VarnishPurger} and {@link ClusterVarnishPurger} do.
+ */
+public class JournaledVarnishPurger implements Purger, Closeable {
+
+  private static final Logger LOG = LoggerFactory.getLogger(JournaledVarnishPurger.class);
+
+  private static final char ADD = '+';
+  private static final char ACK = '-';
+  private static final char PURGE = 'P';
+  private static final char BAN = 'B';
+  private static final int MIN_COMPACTION = 1024;
+
+  private final Purger purger;
+  private final File journal;
+  private final long syncInterval;
+  private final long minBackoff;
+  private final long maxBackoff;
+
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition wakeUp = lock.newCondition();
+  private final Condition stop = lock.newCondition();
+  private final Map<Long, Entry> pending = new LinkedHashMap<>();
+  private final StringBuilder buffer = new StringBuilder();
+  private FileChannel channel;
+  private long nextSeq;
+  // entries below this sequence number are on disk and may be sent
+  private long durableSeq;
+  private long acknowledgedSinceCompaction;
+  private boolean closed;
+  // only used by the worker thread, and by close once it stopped
+  private boolean broken;
+
+  private final AtomicLong acknowledged = new AtomicLong();
+  private final AtomicLong retries = new AtomicLong();
+  private final Thread worker;
+
+  /**
+   * Uses a sync interval of 50ms and backs off from 1 second up to 5 minutes.
+   *
+   * @param purger the purger sending the invalidations
+   * @param journal the journal file, created if it doesn't exist and replayed if it does
+   */
+  public JournaledVarnishPurger(Purger purger, File journal) throws IOException {
+    this(purger, journal, 50, 1000, TimeUnit.MINUTES.toMillis(5));
+  }
+
+  /**
+   * @param purger the purger sending the invalidations
+   * @param journal the journal file, created if it doesn't exist and replayed if it does
+   * @param syncInterval maximum time in milliseconds new invalidations are buffered before they are synced to disk
+   * @param minBackoff delay in milliseconds before the first retry of a failed invalidation
+   * @param maxBackoff maximum delay in milliseconds between retries
+   */
+  public JournaledVarnishPurger(
+      Purger purger, File journal, long syncInterval, long minBackoff, long maxBackoff)
+      throws IOException {
+    Args.notNull(purger, "purger");
+    Args.positive(syncInterval, "syncInterval");
+    Args.positive(minBackoff, "minBackoff");
+    Args.check(maxBackoff >= minBackoff, "maxBackoff must not be smaller than minBackoff");
+    this.purger = purger;
+    this.journal = journal;
+    this.syncInterval = syncInterval;
+    this.minBackoff = minBackoff;
+    this.maxBackoff = maxBackoff;
+
+    FileUtils.forceMkdir(journal.getAbsoluteFile().getParentFile());
+    if (journal.exists()) {
+      replay();
+    }
+    // drops acknowledged entries and any torn last line
+    compact();
+    if (!pending.isEmpty()) {
+      LOG.info("Replaying {} pending invalidations from {}", pending.size(), journal);
+    }
+
+    worker = new Thread(this::work, "varnish-journal");
+    worker.setDaemon(true);
+    worker.start();
+  }
+
+  /**
+   * Journals a PURGE of the path, to be sent in the background.
+   * @throws IllegalStateException if the purger is closed
+   */
+  @Override
+  public void purge(String path) {
+    Args.notNull(path, "path can not be null");
+    add(PURGE, path);
+  }
+
+  /**
+   * Journals a BAN of the regex, to be sent in the background.
+   * @throws IllegalStateException if the purger is closed
+   */
+  @Override
+  public void ban(String regex) {
+    Args.notNull(regex, "regex can not be null");
+    add(BAN, regex);
+  }
+
+  private void add(char type, String value) {
+    lock.lock();
+    try {
+      if (closed) {
+        throw new IllegalStateException("Purger is closed");
+      }
+      long seq = nextSeq++;
+      pending.put(seq, new Entry(seq, type, value));
+      buffer.append(ADD).append(seq).append(' ').append(type).append(escape(value)).append('\n');
+      wakeUp.signal();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * @return the number of invalidations not yet acknowledged
+   */
+  public int getPendingCount() {
+    lock.lock();
+    try {
+      return pending.size();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * @return the number of invalidations acknowledged since this purger was created
+   */
+  public long getAcknowledgedCount() {
+    return acknowledged.get();
+  }
+
+  /**
+   * @return the number of failed attempts to send an invalidation
+   */
+  public long getRetryCount() {
+    return retries.get();
+  }
+
+  /**
+   * Stops sending, syncs the journal and closes it. Pending invalidations are sent after the next start.
+   */
+  @Override
+  public void close() throws IOException {
+    lock.lock();
+    try {
+      closed = true;
+      wakeUp.signal();
+      stop.signal();
+    } finally {
+      lock.unlock();
+    }
+    try {
+      worker.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    if (broken) {
+      compact();
+    } else {
+      sync();
+    }
+    channel.close();
+  }
+
+  private void work() {
+    while (true) {
+      List<Entry> due;
+      try {
+        due = awaitDue();
+      } catch (InterruptedException e) {
+        return;
+      }
+      if (due == null) {
+        return;
+      }
+      for (Entry entry : due) {
+        if (isClosed()) {
+          return;
+        }
+        send(entry);
+      }
+    }
+  }
+
+  /**
+   * Syncs the journal and waits until invalidations are due, as they must be on disk before they are sent.
+   *
+   * @return the due invalidations, or null once closed
+   */
+  private List<Entry> awaitDue() throws InterruptedException {
+    while (true) {
+      // written without holding the lock, so callers never wait for the disk
+      boolean written = writeJournal();
+      lock.lock();
+      try {
+        if (closed) {
+          return null;
+        }
+        if (!written) {
+          stop.await(minBackoff, TimeUnit.MILLISECONDS);
+          continue;
+        }
+
+        long now = System.currentTimeMillis();
+        long next = Long.MAX_VALUE;
+        List<Entry> due = new ArrayList<>();
+        for (Entry entry : pending.values()) {
+          if (entry.seq >= durableSeq) {
+            // added while the journal was written
+            next = now;
+          } else if (entry.nextAttempt <= now) {
+            due.add(entry);
+          } else {
+            next = Math.min(next, entry.nextAttempt);
+          }
+        }
+        if (!due.isEmpty()) {
+          return due;
+        }
+
+        wakeUp.await(
+            next == Long.MAX_VALUE ? TimeUnit.MINUTES.toMillis(1) : next - now,
+            TimeUnit.MILLISECONDS);
+        if (buffer.length() > 0) {
+          // collect more invalidations to sync them in one batch
+          stop.await(syncInterval, TimeUnit.MILLISECONDS);
+        }
+      } finally {
+        lock.unlock();
+      }
+    }
+  }
+
+  /**
+   * Syncs the buffered records, or rewrites the journal after a failed write.
+   *
+   * @return false if the journal couldn't be written
+   */
+  private boolean writeJournal() {
+    try {
+      if (broken) {
+        compact();
+        broken = false;
+      } else {
+        sync();
+      }
+      return true;
+    } catch (IOException e) {
+      LOG.error("Failed to write invalidation journal {}", journal, e);
+      // a partial append can't be repaired, so the journal is rewritten on the next attempt
+      broken = true;
+      return false;
+    }
+  }
+
+  private void send(Entry entry) {
+    boolean success;
+    try {
+      success = entry.type == PURGE ? purger.tryPurge(entry.value) : purger.tryBan(entry.value);
+    } catch (RuntimeException e) {
+      LOG.error("Failed to send {}", entry, e);
+      success = false;
+    }
+
+    boolean compaction = false;
+    lock.lock();
+    try {
+      if (success) {
+        pending.remove(entry.seq);
+        buffer.append(ACK).append(entry.seq).append('\n');
+        acknowledged.incrementAndGet();
+        acknowledgedSinceCompaction++;
+        compaction = acknowledgedSinceCompaction >= Math.max(MIN_COMPACTION, pending.size());
+      } else {
+        retries.incrementAndGet();
+        entry.attempts++;
+        long backoff = Math.min(maxBackoff, minBackoff << Math.min(entry.attempts - 1, 30));
+        // jitter spreads the retries of many entries failing together
+        backoff = backoff / 2 + ThreadLocalRandom.current().nextLong(backoff / 2 + 1);
+        entry.nextAttempt = System.currentTimeMillis() + backoff;
+        LOG.debug("Retrying {} in {}ms", entry, backoff);
+      }
+    } finally {
+      lock.unlock();
+    }
+
+    if (compaction) {
+      try {
+        compact();
+      } catch (IOException e) {
+        LOG.error("Failed to compact invalidation journal {}", journal, e);
+        broken = true;
+      }
+    }
+  }
+
+  private boolean isClosed() {
+    lock.lock();
+    try {
+      return closed;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Appends the buffered records to the journal and forces them to disk. Records lost to a failed write are restored
+   * by the compaction following it.
+   */
+  private void sync() throws IOException {
+    String records;
+    long upTo;
+    lock.lock();
+    try {
+      if (buffer.length() == 0) {
+        return;
+      }
+      records = buffer.toString();
+      buffer.setLength(0);
+      upTo = nextSeq;
+    } finally {
+      lock.unlock();
+    }
+    ByteBuffer bytes = StandardCharsets.UTF_8.encode(records);
+    while (bytes.hasRemaining()) {
+      channel.write(bytes);
+    }
+    channel.force(false);
+    lock.lock();
+    try {
+      durableSeq = upTo;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Rewrites the journal with the pending entries only, replacing it atomically. Invalidations added meanwhile stay
+   * buffered and are synced into the new journal.
+   */
+  private void compact() throws IOException {
+    StringBuilder sb = new StringBuilder();
+    long upTo;
+    lock.lock();
+    try {
+      upTo = nextSeq;
+      for (Entry entry : pending.values()) {
+        sb.append(ADD).append(entry.seq).append(' ').append(entry.type);
+        sb.append(escape(entry.value)).append('\n');
+      }
+      // the buffered records are part of the compacted journal
+      buffer.setLength(0);
+      acknowledgedSinceCompaction = 0;
+    } finally {
+      lock.unlock();
+    }
+    File tmp = new File(journal.getAbsoluteFile().getParentFile(), journal.getName() + ".tmp");
+    try (RandomAccessFile file = new RandomAccessFile(tmp, "rw")) {
+      file.setLength(0);
+      ByteBuffer bytes = StandardCharsets.UTF_8.encode(sb.toString());
+      while (bytes.hasRemaining()) {
+        file.getChannel().write(bytes);
+      }
+      file.getChannel().force(true);
+    }
+    if (channel != null) {
+      channel.close();
+    }
+    try {
+      Files.move(
+          tmp.toPath(),
+          journal.toPath(),
+          StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+    } catch (AtomicMoveNotSupportedException e) {
+      Files.move(tmp.toPath(), journal.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+    FileChannel compacted = FileChannel.open(journal.toPath(), StandardOpenOption.APPEND);
+    lock.lock();
+    try {
+      channel = compacted;
+      durableSeq = upTo;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private void replay() throws IOException {
+    String content = new String(Files.readAllBytes(journal.toPath()), StandardCharsets.UTF_8);
+    int start = 0;
+    int end;
+    // a crash while appending leaves a last line without its newline, which is ignored
+    while ((end = content.indexOf('\n', start)) >= 0) {
+      String line = content.substring(start, end);
+      start = end + 1;
+      try {
+        if (line.charAt(0) == ADD) {
+          int space = line.indexOf(' ');
+          long seq = Long.parseLong(line.substring(1, space));
+          char type = line.charAt(space + 1);
+          if (type != PURGE && type != BAN) {
+            throw new IllegalArgumentException("Unknown type " + type);
+          }
+          pending.put(seq, new Entry(seq, type, unescape(line.substring(space + 2))));
+          nextSeq = Math.max(nextSeq, seq + 1);
+        } else if (line.charAt(0) == ACK) {
+          pending.remove(Long.parseLong(line.substring(1)));
+        } else {
+          throw new IllegalArgumentException("Unknown record");
+        }
+      } catch (RuntimeException e) {
+        LOG.warn("Skipping invalid journal line [{}] in {}", line, journal);
+      }
+    }
+    if (start < content.length()) {
+      LOG.warn("Skipping incomplete last journal line in {}", journal);
+    }
+  }
+
+  private static String escape(String value) {
+    return value.replace("\\", "\\\\").replace("\n", "\\n").replace("\r", "\\r");
+  }
+
+  private static String unescape(String value) {
+    StringBuilder sb = new StringBuilder(value.length());
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      if (c == '\\' && i + 1 < value.length()) {
+        char next = value.charAt(++i);
+        sb.append(next == 'n' ? '\n' : next == 'r' ? '\r' : next);
+      } else {
+        sb.append(c);
+      }
+    }
+    return sb.toString();
+  }
+
+  private static final class Entry {
+
+    private final long seq;
+    private final char type;
+    private final String value;
+    private int attempts;
+    private long nextAttempt;
+
+    private Entry(long seq, char type, String value) {
+      this.seq = seq;
+      this.type = type;
+      this.value = value;
+    }
+
+    @Override
+    public String toString() {
+      return (type == BAN ? "BAN " : "PURGE ") + value;
+    }
+  }
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright 2021 Global Biodiversity Information Facility (GBIF)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.varnish;
+
+import java.util.Collection;
+
+/**
+ * Invalidates cached API responses, either by exact path or by regular expression.
+ * <p/>
+ * Implementations can be stacked, for example to batch invalidations before sending them to several Varnish nodes.
+ */
+public interface Purger {
+
+  /**
+   * Invalidates a single resource.
+   * @param path relative to the API base URL
+   */
+  void purge(String path);
+
+  /**
+   * Invalidates all resources matching the regex.
+   * @param regex regex representing the path(s) relative to the API base URL
+   */
+  void ban(String regex);
+
+  /**
+   * Invalidates a single resource, reporting whether the invalidation was acknowledged.
+   * Purgers which can't tell, like the queueing ones, report true once the purge is accepted.
+   * @param path relative to the API base URL
+   * @return true if the invalidation was acknowledged
+   */
+  default boolean tryPurge(String path) {
+    purge(path);
+    return true;
+  }
+
+  /**
+   * Invalidates all resources matching the regex, reporting whether the invalidation was acknowledged.
+   * Purgers which can't tell, like the queueing ones, report true once the ban is accepted.
+   * @param regex regex representing the path(s) relative to the API base URL
+   * @return true if the invalidation was acknowledged
+   */
+  default boolean tryBan(String regex) {
+    ban(regex);
+    return true;
+  }
+
+  /**
+   * Invalidates all resources matching the prefix, any of the keys and the suffix, for example
+   * {@code banKeys("occurrence/", keys, "/.*")}. The keys are combined with {@link BanRegexBuilder} into as few bans
+   * as fit the Varnish request header limit.
+   * @param prefix regex before the key, relative to the API base URL
+   * @param keys literal keys
+   * @param suffix regex after the key
+   */
+  default void banKeys(String prefix, Collection<?> keys, String suffix) {
+    int maxBytes = BanRegexBuilder.DEFAULT_MAX_BYTES - prefix.length() - suffix.length();
+    for (String regex : BanRegexBuilder.anyKey(keys, maxBytes)) {
+      ban(prefix + regex + suffix);
+    }
+  }
+}
@@ -17,6 +17,11 @@ package org.gbif.varnish;
 
 import java.io.IOException;
 import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Objects;
 import java.util.Set;
 import java.util.stream.Collectors;
@@ -25,6 +30,7 @@ import org.apache.commons.lang3.StringUtils;
 import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.util.Args;
+import org.apache.http.util.EntityUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -32,11 +38,17 @@ import org.slf4j.LoggerFactory;
  * Varnish provides two main ways of invalidating its cache: PURGE and BAN.
  * PURGE truly frees the cache, but only works on individual resource URLs while BANs work with regular expressions
  * and can banRegex entire subresources from being served. BANs do not remove the object from the Varnish memory though.
+ * With the xkey vmod, objects tagged with surrogate keys can also be purged by key, which is much cheaper than a BAN.
  *
  * @see <a href="https://www.varnish-software.com/static/book/Cache_invalidation.html">Varnish Book</h>
  */
-public class VarnishPurger {
+public class VarnishPurger implements Purger {
   private static final Logger LOG = LoggerFactory.getLogger(VarnishPurger.class);
+
+  /**
+   * Maximum length of the surrogate keys sent in one request, within the default 8KB request header limit of Varnish.
+   */
+  static final int MAX_KEY_HEADER_BYTES = 7 * 1024;
   private final CloseableHttpClient client;
 
   private final URI apiBaseUrl;
@@ -71,6 +83,39 @@ public class VarnishPurger {
         .collect(Collectors.joining("|", "(", ")"));
   }
 
+  /**
+   * Escapes the regular expression metacharacters of a literal path, so it can be banned exactly.
+   * For example occurrence/search?q=a+b becomes: occurrence/search\?q=a\+b
+   */
+  public static String literal(String path) {
+    StringBuilder sb = new StringBuilder(path.length() + 8);
+    for (int i = 0; i < path.length(); i++) {
+      char c = path.charAt(i);
+      if ("\\^$.|?*+()[]{}".indexOf(c) >= 0) {
+        sb.append('\\');
+      }
+      sb.append(c);
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Combines exact invalidations of paths and BAN regexes into as few BAN regexes as possible, each at most maxBytes
+   * long. The paths are compacted with {@link BanRegexBuilder#anyKey(Collection, int)}.
+   *
+   * @return BAN regexes relative to the API base URL
+   */
+  static List<String> combine(Collection<String> paths, Collection<String> regexes, int maxBytes) {
+    List<String> expressions = new ArrayList<>();
+    List<String> keys =
+        paths.stream().map(p -> StringUtils.removeStart(p, "/")).collect(Collectors.toList());
+    for (String regex : BanRegexBuilder.anyKey(keys, maxBytes - 1)) {
+      expressions.add(regex + "$");
+    }
+    expressions.addAll(regexes);
+    return BanRegexBuilder.anyRegex(expressions, maxBytes);
+  }
+
   public static String path(String... parts) {
     return String.join("/", parts);
   }
@@ -79,14 +124,25 @@ public class VarnishPurger {
    * Send a PURGE request to Varnish for a specific path.
    * @param path relative to the API base URL (apiBaseUrl)
    */
+  @Override
   public void purge(String path) {
+    tryPurge(path);
+  }
+
+  /**
+   * Send a PURGE request to Varnish for a specific path.
+   * @param path relative to the API base URL (apiBaseUrl)
+   * @return true if Varnish answered with a success status
+   */
+  @Override
+  public boolean tryPurge(String path) {
     Args.notNull(path, "path can not be null");
     URI uri = URI.create(String.format("%s/%s", apiBaseUrlStr, StringUtils.removeStart(path, "/")));
-    try {
-      CloseableHttpResponse resp = client.execute(new HttpPurge(uri));
-      resp.close();
+    try (CloseableHttpResponse resp = client.execute(new HttpPurge(uri))) {
+      return acknowledged(resp, "purge", uri);
     } catch (IOException e) {
       LOG.error("Failed to purge {}", uri, e);
+      return false;
     }
   }
 
@@ -94,14 +150,94 @@ public class VarnishPurger {
    * Send a BAN request to Varnish using a regex.
    * @param regex regex representing the path(s) relative to the API base URL (apiBaseUrl)
    */
+  @Override
   public void ban(String regex) {
+    tryBan(regex);
+  }
+
+  /**
+   * Send a BAN request to Varnish using a regex.
+   * @param regex regex representing the path(s) relative to the API base URL (apiBaseUrl)
+   * @return true if Varnish answered with a success status
+   */
+  @Override
+  public boolean tryBan(String regex) {
     Args.notNull(regex, "regex can not be null");
     regex = String.format("%s/%s", apiPath, StringUtils.removeStart(regex, "/"));
-    try {
-      CloseableHttpResponse resp = client.execute(new HttpBan(apiBaseUrl, regex));
-      resp.close();
+    try (CloseableHttpResponse resp = client.execute(new HttpBan(apiBaseUrl, regex))) {
+      return acknowledged(resp, "ban", regex);
     } catch (IOException e) {
       LOG.error("Failed to ban {}", regex, e);
+      return false;
+    }
+  }
+
+  /**
+   * Send PURGE requests to Varnish invalidating all objects tagged with any of the surrogate keys, using the xkey vmod.
+   * Keys are sent space separated, as many per request as fit the Varnish request header limit.
+   * @param keys surrogate keys, which must not contain whitespace
+   * @return true if Varnish answered all requests with a success status
+   */
+  public boolean purgeKeys(Collection<?> keys) {
+    boolean success = true;
+    for (String batch : keyBatches(keys, MAX_KEY_HEADER_BYTES)) {
+      try (CloseableHttpResponse resp = client.execute(new HttpXkeyPurge(apiBaseUrl, batch))) {
+        success &= acknowledged(resp, "purge keys", batch);
+      } catch (IOException e) {
+        LOG.error("Failed to purge keys {}", batch, e);
+        success = false;
+      }
+    }
+    return success;
+  }
+
+  /**
+   * Send a PURGE request to Varnish invalidating all objects tagged with the surrogate key.
+   * @return true if Varnish answered with a success status
+   */
+  public boolean purgeKey(String key) {
+    return purgeKeys(Collections.singleton(key));
+  }
+
+  /**
+   * Joins the keys with spaces into as few values as possible of at most maxBytes each.
+   */
+  static List<String> keyBatches(Collection<?> keys, int maxBytes) {
+    List<String> batches = new ArrayList<>();
+    StringBuilder batch = new StringBuilder();
+    Set<String> unique =
+        keys.stream()
+            .filter(Objects::nonNull)
+            .map(Object::toString)
+            .collect(Collectors.toCollection(LinkedHashSet::new));
+    for (String key : unique) {
+      Args.check(
+          !key.isEmpty() && key.chars().noneMatch(Character::isWhitespace),
+          "surrogate keys must not be empty or contain whitespace");
+      Args.check(key.length() <= maxBytes, "surrogate key too long");
+      if (batch.length() > 0 && batch.length() + 1 + key.length() > maxBytes) {
+        batches.add(batch.toString());
+        batch.setLength(0);
+      }
+      if (batch.length() > 0) {
+        batch.append(' ');
+      }
+      batch.append(key);
+    }
+    if (batch.length() > 0) {
+      batches.add(batch.toString());
+    }
+    return batches;
+  }
+
+  private static boolean acknowledged(CloseableHttpResponse resp, String action, Object target) {
+    int status = resp.getStatusLine().getStatusCode();
+    // keep the connection reusable
+    EntityUtils.consumeQuietly(resp.getEntity());
+    if (status < 200 || status >= 300) {
+      LOG.error("Failed to {} {}: {}", action, target, status);
+      return false;
     }
+    return true;
   }
 }
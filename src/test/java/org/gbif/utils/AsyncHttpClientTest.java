@@ -0,0 +1,194 @@
+/*
+ * Copyright 2021 Global Biodiversity Information Facility (GBIF)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.utils;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.http.StatusLine;
+import org.apache.http.entity.InputStreamEntity;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.bootstrap.HttpServer;
+import org.apache.http.impl.bootstrap.ServerBootstrap;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests the non-blocking client against a local HTTP server.
+ */
+public class AsyncHttpClientTest {
+
+  private static HttpServer server;
+  private static AsyncHttpClient client;
+  private static String baseUrl;
+
+  @BeforeAll
+  public static void start() throws Exception {
+    server =
+        ServerBootstrap.bootstrap()
+            .setListenerPort(0)
+            .registerHandler(
+                "/hello/*",
+                (request, response, context) ->
+                    response.setEntity(
+                        new StringEntity(
+                            request.getRequestLine().getUri(), StandardCharsets.UTF_8)))
+            .registerHandler(
+                "/missing", (request, response, context) -> response.setStatusCode(404))
+            .registerHandler(
+                "/truncated",
+                (request, response, context) ->
+                    // promises more content than it sends
+                    response.setEntity(
+                        new InputStreamEntity(
+                            new SequenceInputStream(
+                                new ByteArrayInputStream(new byte[10]),
+                                new InputStream() {
+                                  @Override
+                                  public int read() throws IOException {
+                                    throw new IOException("Connection lost");
+                                  }
+                                }),
+                            1000)))
+            .create();
+    server.start();
+    baseUrl = "http://localhost:" + server.getLocalPort();
+    client = HttpUtil.newAsyncClient(10_000, 10, 2);
+  }
+
+  @AfterAll
+  public static void stop() throws Exception {
+    client.close();
+    server.shutdown(1, TimeUnit.SECONDS);
+  }
+
+  @Test
+  public void testConcurrentGets() {
+    List<CompletableFuture<ExtendedResponse>> futures = new ArrayList<>();
+    for (int i = 0; i < 50; i++) {
+      futures.add(client.get(baseUrl + "/hello/" + i));
+    }
+    for (int i = 0; i < 50; i++) {
+      ExtendedResponse resp = futures.get(i).join();
+      assertEquals(200, resp.getStatusCode());
+      assertEquals("/hello/" + i, resp.getContent());
+    }
+  }
+
+  @Test
+  public void testDownload() throws Exception {
+    File tmp = File.createTempFile("httputils", "async");
+    tmp.deleteOnExit();
+
+    StatusLine status = client.download(baseUrl + "/hello/file", tmp).join();
+    assertTrue(HttpUtil.success(status));
+    assertEquals("/hello/file", FileUtils.readFileToString(tmp, StandardCharsets.UTF_8));
+
+    // failed downloads leave the file untouched
+    status = client.download(baseUrl + "/missing", tmp).join();
+    assertFalse(HttpUtil.success(status));
+    assertEquals(404, status.getStatusCode());
+    assertEquals("/hello/file", FileUtils.readFileToString(tmp, StandardCharsets.UTF_8));
+  }
+
+  @Test
+  public void testInvalidUrlFailsFuture() throws Exception {
+    // a valid URL, but not a valid URI
+    URL invalid = new URL(baseUrl + "/hello/a b");
+    File target = new File(FileUtils.getTempDirectory(), "httputils-invalid-url");
+    CompletableFuture<StatusLine> future = client.downloadIfModifiedSince(invalid, null, target);
+    CompletionException e = assertThrows(CompletionException.class, future::join);
+    assertTrue(e.getCause() instanceof IllegalArgumentException);
+    assertFalse(target.exists());
+    assertThrows(CompletionException.class, client.downloadIfChanged(invalid, new Date())::join);
+  }
+
+  @Test
+  public void testFailedDownloadKeepsTarget() throws Exception {
+    File dir = Files.createTempDirectory("httputils").toFile();
+    try {
+      File target = new File(dir, "target.txt");
+      FileUtils.writeStringToFile(target, "previous", StandardCharsets.UTF_8);
+
+      CompletableFuture<StatusLine> future = client.download(baseUrl + "/truncated", target);
+      assertThrows(CompletionException.class, future::join);
+      assertEquals("previous", FileUtils.readFileToString(target, StandardCharsets.UTF_8));
+      assertArrayEquals(new String[] {"target.txt"}, dir.list());
+    } finally {
+      FileUtils.deleteDirectory(dir);
+    }
+  }
+
+  @Test
+  public void testRateLimits() throws Exception {
+    try (AsyncHttpClient limited = HttpUtil.newAsyncClient(10_000, 10, 2)) {
+      limited.setRateLimits(RateLimits.custom().setRate("localhost", 10, 1).build());
+
+      // the requests are scheduled without blocking the caller
+      long start = System.currentTimeMillis();
+      List<CompletableFuture<String>> futures = new ArrayList<>();
+      for (int i = 0; i < 5; i++) {
+        futures.add(limited.download(new URL(baseUrl + "/hello/" + i)));
+      }
+      assertTrue(System.currentTimeMillis() - start < 100);
+      for (int i = 0; i < 5; i++) {
+        assertEquals("/hello/" + i, futures.get(i).join());
+      }
+      assertTrue(System.currentTimeMillis() - start >= 350);
+      assertEquals(4, limited.getRateLimits().get("localhost").getDelayedCount());
+    }
+  }
+
+  @Test
+  public void testRateLimitedExchangeFails() {
+    RateLimits limits = RateLimits.custom().setRate("localhost", 10, 1).build();
+    assertEquals(
+        "first",
+        limits.schedule("localhost", () -> CompletableFuture.completedFuture("first")).join());
+
+    // the delayed exchange throws, like an async client closed in the meantime
+    CompletableFuture<String> delayed =
+        limits.schedule(
+            "localhost",
+            () -> {
+              throw new IllegalStateException("I/O reactor status: STOPPED");
+            });
+    ExecutionException e =
+        assertThrows(ExecutionException.class, () -> delayed.get(5, TimeUnit.SECONDS));
+    assertTrue(e.getCause() instanceof IllegalStateException);
+  }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright 2021 Global Biodiversity Information Facility (GBIF)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.utils;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.entity.BasicHttpEntity;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.message.BasicHttpResponse;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class ExtendedResponseTest {
+
+  @Test
+  public void testHeadersAndLazyContent() throws Exception {
+    HttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, 200, "OK");
+    response.addHeader("Content-Type", "text/plain; charset=ISO-8859-1");
+    response.addHeader("X-Key", "1");
+    response.addHeader("x-key", "2");
+    response.setEntity(new StringEntity("B\u00fcrger", StandardCharsets.ISO_8859_1));
+
+    ExtendedResponse resp = ExtendedResponse.read(response, StandardCharsets.UTF_8);
+
+    assertEquals(200, resp.getStatusCode());
+    assertTrue(resp.containsHeader("CONTENT-TYPE"));
+    assertFalse(resp.containsHeader("ETag"));
+    assertNull(resp.getFirstHeader("ETag"));
+    assertEquals("1", resp.getFirstHeader("x-KEY").getValue());
+    assertEquals("2", resp.getLastHeader("X-Key").getValue());
+    assertEquals(2, resp.getHeaders("x-key").length);
+    assertEquals(3, resp.getAllHeaders().length);
+
+    assertEquals(StandardCharsets.ISO_8859_1, resp.getCharset());
+    assertArrayEquals("B\u00fcrger".getBytes(StandardCharsets.ISO_8859_1), resp.getBytes());
+    assertEquals("B\u00fcrger", resp.getContent());
+  }
+
+  @Test
+  public void testWrongContentLength() throws Exception {
+    byte[] body = "{\"key\": 1}".getBytes(StandardCharsets.UTF_8);
+    for (long length : new long[] {-1, 3, body.length, 100}) {
+      HttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, 200, "OK");
+      BasicHttpEntity entity = new BasicHttpEntity();
+      entity.setContent(new ByteArrayInputStream(body));
+      entity.setContentLength(length);
+      response.setEntity(entity);
+
+      ExtendedResponse resp = ExtendedResponse.read(response, StandardCharsets.UTF_8);
+      assertArrayEquals(body, resp.getBytes());
+      assertEquals("{\"key\": 1}", resp.getContent());
+    }
+  }
+
+  @Test
+  public void testMimeTypeCharset() throws Exception {
+    HttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, 200, "OK");
+    response.setEntity(
+        new ByteArrayEntity(
+            "{\"name\": \"B\u00fcrger\"}".getBytes(StandardCharsets.UTF_8),
+            ContentType.create("application/json")));
+
+    // JSON implies UTF-8 even without a declared charset
+    ExtendedResponse resp = ExtendedResponse.read(response, StandardCharsets.ISO_8859_1);
+    assertEquals(StandardCharsets.UTF_8, resp.getCharset());
+    assertEquals("{\"name\": \"B\u00fcrger\"}", resp.getContent());
+  }
+}
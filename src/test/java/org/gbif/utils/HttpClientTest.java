@@ -15,22 +15,191 @@
  */
 package org.gbif.utils;
 
+import org.gbif.utils.cache.HttpCache;
+import org.gbif.utils.metrics.Histogram;
+import org.gbif.utils.metrics.HttpMetrics;
+import org.gbif.utils.metrics.SimpleMetricsRegistry;
+
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
 import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import org.apache.commons.io.FileUtils;
+import org.apache.http.Header;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.HttpVersion;
 import org.apache.http.StatusLine;
 import org.apache.http.client.utils.DateUtils;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.bootstrap.HttpServer;
+import org.apache.http.impl.bootstrap.ServerBootstrap;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.message.BasicStatusLine;
+import org.apache.http.protocol.HttpContext;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.Disabled;
 import org.junit.jupiter.api.Test;
 
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
 public class HttpClientTest {
 
+  private static final byte[] PAYLOAD = new byte[1024 * 1024];
+  private static final byte[] LARGE_PAYLOAD = new byte[20 * 1024 * 1024];
+  private static final String ETAG = "\"large-v1\"";
+  private static final AtomicInteger RANGE_REQUESTS = new AtomicInteger();
+  private static final AtomicInteger FRESH_REQUESTS = new AtomicInteger();
+  private static final AtomicInteger SLOW_REQUESTS = new AtomicInteger();
+  private static final AtomicInteger FLAKY_REQUESTS = new AtomicInteger();
+  private static final AtomicInteger STALLING_REQUESTS = new AtomicInteger();
+
+  /**
+   * Local server for tests not depending on remote hosts.
+   */
+  private static HttpServer server;
+
+  private static String baseUrl;
+
+  @BeforeAll
+  public static void startServer() throws IOException {
+    for (int i = 0; i < PAYLOAD.length; i++) {
+      PAYLOAD[i] = (byte) i;
+    }
+    new Random(42).nextBytes(LARGE_PAYLOAD);
+    server =
+        ServerBootstrap.bootstrap()
+            .setListenerPort(0)
+            .registerHandler(
+                "/payload",
+                (request, response, context) -> response.setEntity(new ByteArrayEntity(PAYLOAD)))
+            .registerHandler("/ranged", HttpClientTest::handleRanges)
+            .registerHandler(
+                "/etag",
+                (request, response, context) -> {
+                  // no Last-Modified, only an ETag
+                  Header ifNoneMatch = request.getFirstHeader(HttpHeaders.IF_NONE_MATCH);
+                  if (ifNoneMatch != null && ETAG.equals(ifNoneMatch.getValue())) {
+                    response.setStatusCode(HttpStatus.SC_NOT_MODIFIED);
+                  } else {
+                    response.setHeader(HttpHeaders.ETAG, ETAG);
+                    response.setEntity(new ByteArrayEntity(PAYLOAD));
+                  }
+                })
+            .registerHandler(
+                "/fresh",
+                (request, response, context) -> {
+                  FRESH_REQUESTS.incrementAndGet();
+                  response.setHeader(HttpHeaders.CACHE_CONTROL, "public, max-age=60");
+                  response.setEntity(new StringEntity("fresh", StandardCharsets.UTF_8));
+                })
+            .registerHandler(
+                "/slow",
+                (request, response, context) -> {
+                  SLOW_REQUESTS.incrementAndGet();
+                  try {
+                    Thread.sleep(500);
+                  } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                  }
+                  response.setEntity(new StringEntity("slow", StandardCharsets.UTF_8));
+                })
+            .registerHandler(
+                "/flaky",
+                (request, response, context) -> {
+                  // fails two out of three requests
+                  if (FLAKY_REQUESTS.incrementAndGet() % 3 != 0) {
+                    response.setStatusCode(HttpStatus.SC_SERVICE_UNAVAILABLE);
+                    response.setHeader(HttpHeaders.RETRY_AFTER, "0");
+                    response.setEntity(new StringEntity("busy", StandardCharsets.UTF_8));
+                  } else {
+                    response.setEntity(new StringEntity("ok", StandardCharsets.UTF_8));
+                  }
+                })
+            .registerHandler(
+                "/stalling",
+                (request, response, context) -> {
+                  // only the first request stalls
+                  if (STALLING_REQUESTS.incrementAndGet() == 1) {
+                    try {
+                      Thread.sleep(2_000);
+                    } catch (InterruptedException e) {
+                      Thread.currentThread().interrupt();
+                    }
+                  }
+                  response.setEntity(new StringEntity("done", StandardCharsets.UTF_8));
+                })
+            .registerHandler(
+                "/broken",
+                (request, response, context) ->
+                    response.setStatusCode(HttpStatus.SC_INTERNAL_SERVER_ERROR))
+            .registerHandler(
+                "/unranged",
+                (request, response, context) ->
+                    response.setEntity(new ByteArrayEntity(LARGE_PAYLOAD)))
+            .create();
+    server.start();
+    baseUrl = "http://localhost:" + server.getLocalPort();
+  }
+
+  @AfterAll
+  public static void stopServer() {
+    server.shutdown(1, TimeUnit.SECONDS);
+  }
+
+  /**
+   * Serves the large payload honoring single byte range requests.
+   */
+  private static void handleRanges(
+      HttpRequest request, HttpResponse response, HttpContext context) {
+    response.setHeader(HttpHeaders.ACCEPT_RANGES, "bytes");
+    response.setHeader(HttpHeaders.ETAG, ETAG);
+    Header range = request.getFirstHeader(HttpHeaders.RANGE);
+    Header ifRange = request.getFirstHeader(HttpHeaders.IF_RANGE);
+    if (range == null || (ifRange != null && !ETAG.equals(ifRange.getValue()))) {
+      response.setEntity(new ByteArrayEntity(LARGE_PAYLOAD));
+      return;
+    }
+    RANGE_REQUESTS.incrementAndGet();
+    String[] bounds = range.getValue().substring("bytes=".length()).split("-");
+    int start = Integer.parseInt(bounds[0]);
+    int end = bounds.length > 1 ? Integer.parseInt(bounds[1]) : LARGE_PAYLOAD.length - 1;
+    response.setStatusCode(HttpStatus.SC_PARTIAL_CONTENT);
+    response.setHeader(
+        HttpHeaders.CONTENT_RANGE, "bytes " + start + "-" + end + "/" + LARGE_PAYLOAD.length);
+    response.setEntity(new ByteArrayEntity(LARGE_PAYLOAD, start, end - start + 1));
+  }
+
   @Test
   public void testClientRedirect() throws IOException {
     HttpClient httpClient = HttpUtil.newSinglethreadedClient(10_000);
@@ -100,4 +269,599 @@ public class HttpClientTest {
     httpClient.get("http://rs.gbif.org/vocabulary/gbif/rank.xml");
     httpClient.get("https://rs.gbif.org/vocabulary/gbif/rank.xml");
   }
+
+  @Test
+  public void testStreamingGet() throws Exception {
+    HttpClient httpClient = HttpUtil.newMultithreadedClient(10_000, 10, 1);
+
+    long read =
+        httpClient.get(
+            baseUrl + "/payload",
+            response -> {
+              long total = 0;
+              byte[] buffer = new byte[4096];
+              try (InputStream in = response.getEntity().getContent()) {
+                int n;
+                while ((n = in.read(buffer)) != -1) {
+                  total += n;
+                }
+              }
+              return total;
+            });
+    assertEquals(PAYLOAD.length, read);
+
+    // a single pooled connection is reused, so an unreleased response would block here
+    for (int i = 0; i < 3; i++) {
+      try (StreamingResponse response = httpClient.getStream(baseUrl + "/payload")) {
+        assertEquals(200, response.getStatusCode());
+        assertEquals(PAYLOAD.length, response.getContentLength());
+        InputStream in = response.getInputStream();
+        assertEquals(PAYLOAD[0], (byte) in.read());
+        assertEquals(PAYLOAD[1], (byte) in.read());
+      }
+    }
+  }
+
+  @Test
+  public void testSegmentedDownload() throws Exception {
+    HttpClient httpClient = HttpUtil.newMultithreadedClient(10_000, 10, 4);
+    File tmp = File.createTempFile("httputils", "segmented");
+    tmp.deleteOnExit();
+
+    RANGE_REQUESTS.set(0);
+    StatusLine status = httpClient.downloadSegmented(new URL(baseUrl + "/ranged"), tmp, 4);
+    assertTrue(HttpUtil.success(status));
+    assertEquals(2, RANGE_REQUESTS.get());
+    assertArrayEquals(LARGE_PAYLOAD, FileUtils.readFileToByteArray(tmp));
+
+    // falls back to a single stream without range support
+    status = httpClient.downloadSegmented(new URL(baseUrl + "/unranged"), tmp, 4);
+    assertTrue(HttpUtil.success(status));
+    assertArrayEquals(LARGE_PAYLOAD, FileUtils.readFileToByteArray(tmp));
+  }
+
+  @Test
+  public void testResumableDownload() throws Exception {
+    HttpClient httpClient = HttpUtil.newMultithreadedClient(10_000, 10, 4);
+    httpClient.setResumableDownloads(true);
+    File dir = Files.createTempDirectory("httputils").toFile();
+    File target = new File(dir, "large.bin");
+    File part = new File(dir, "large.bin.part");
+    File meta = new File(dir, "large.bin.part.meta");
+    URL url = new URL(baseUrl + "/ranged");
+
+    for (String etag : new String[] {ETAG, "\"large-v0\""}) {
+      // leave a partial download behind, as if the previous attempt was interrupted
+      FileUtils.writeByteArrayToFile(part, Arrays.copyOf(LARGE_PAYLOAD, 5_000_000));
+      FileUtils.writeStringToFile(
+          meta,
+          "url=" + url + "\netag=" + etag.replace("\"", "\\\"") + "\nreceived=5000000\n",
+          StandardCharsets.UTF_8);
+
+      RANGE_REQUESTS.set(0);
+      StatusLine status = httpClient.download(url, target);
+      assertTrue(HttpUtil.success(status));
+      // only a still valid partial download is resumed
+      assertEquals(ETAG.equals(etag) ? 1 : 0, RANGE_REQUESTS.get());
+      assertArrayEquals(LARGE_PAYLOAD, FileUtils.readFileToByteArray(target));
+      assertFalse(part.exists());
+      assertFalse(meta.exists());
+    }
+    FileUtils.deleteDirectory(dir);
+  }
+
+  @Test
+  public void testDownloadReplacesFile() throws Exception {
+    HttpClient httpClient = HttpUtil.newMultithreadedClient(10_000, 10, 4);
+    httpClient.setSyncDownloads(true);
+    File dir = Files.createTempDirectory("httputils").toFile();
+    File target = new File(dir, "payload.bin");
+    FileUtils.writeStringToFile(target, "old", StandardCharsets.UTF_8);
+
+    StatusLine status = httpClient.download(new URL(baseUrl + "/missing"), target);
+    assertFalse(HttpUtil.success(status));
+    assertEquals("old", FileUtils.readFileToString(target, StandardCharsets.UTF_8));
+
+    status = httpClient.download(new URL(baseUrl + "/payload"), target);
+    assertTrue(HttpUtil.success(status));
+    assertArrayEquals(PAYLOAD, FileUtils.readFileToByteArray(target));
+    // no temporary files are left behind
+    assertArrayEquals(new String[] {"payload.bin"}, dir.list());
+    FileUtils.deleteDirectory(dir);
+  }
+
+  @Test
+  public void testValidatorStore() throws Exception {
+    HttpClient httpClient = HttpUtil.newMultithreadedClient(10_000, 10, 4);
+    File dir = Files.createTempDirectory("httputils").toFile();
+    httpClient.setValidatorStore(new FileValidatorStore(new File(dir, "validators")));
+    File target = new File(dir, "payload.bin");
+    URL url = new URL(baseUrl + "/etag");
+
+    assertTrue(httpClient.downloadIfChanged(url, target));
+    assertArrayEquals(PAYLOAD, FileUtils.readFileToByteArray(target));
+    assertFalse(httpClient.downloadIfChanged(url, target));
+
+    // the validators only apply while the file exists
+    assertTrue(target.delete());
+    assertTrue(httpClient.downloadIfChanged(url, target));
+
+    Date longAgo = DateUtils.parseDate("Wed, 03 Aug 2009 22:37:31 GMT");
+    assertNotNull(httpClient.downloadIfChanged(url, longAgo));
+    assertNull(httpClient.downloadIfChanged(url, longAgo));
+    FileUtils.deleteDirectory(dir);
+  }
+
+  @Test
+  public void testResponseCache() throws Exception {
+    HttpClient httpClient =
+        HttpUtil.newCachingMultithreadedClient(10_000, 10, 5, 20L * 1024 * 1024);
+    HttpCache cache = httpClient.getResponseCache();
+
+    int requests = FRESH_REQUESTS.get();
+    assertEquals("fresh", httpClient.get(baseUrl + "/fresh").getContent());
+    assertEquals("fresh", httpClient.get(baseUrl + "/fresh").getContent());
+    assertEquals(requests + 1, FRESH_REQUESTS.get());
+    assertEquals(1, cache.getHitCount());
+
+    // no explicit lifetime, so the ETag is revalidated on every use
+    assertArrayEquals(PAYLOAD, httpClient.get(baseUrl + "/etag").getBytes());
+    ExtendedResponse revalidated = httpClient.get(baseUrl + "/etag");
+    assertEquals(HttpStatus.SC_OK, revalidated.getStatusCode());
+    assertArrayEquals(PAYLOAD, revalidated.getBytes());
+    assertEquals(1, cache.getRevalidationCount());
+    assertEquals(2, cache.getMissCount());
+
+    // requests with their own conditional headers bypass the cache
+    Map<String, String> headers = Collections.singletonMap(HttpHeaders.IF_NONE_MATCH, ETAG);
+    ExtendedResponse bypassed = httpClient.get(baseUrl + "/etag", headers, null);
+    assertEquals(HttpStatus.SC_NOT_MODIFIED, bypassed.getStatusCode());
+  }
+
+  @Test
+  public void testCoalescedGets() throws Exception {
+    HttpClient httpClient = HttpUtil.newMultithreadedClient(10_000, 20, 20);
+    httpClient.setCoalesceRequests(true);
+
+    int requests = SLOW_REQUESTS.get();
+    ExecutorService executor = Executors.newFixedThreadPool(8);
+    try {
+      CountDownLatch start = new CountDownLatch(1);
+      List<Future<ExtendedResponse>> futures = new ArrayList<>();
+      for (int i = 0; i < 8; i++) {
+        futures.add(
+            executor.submit(
+                () -> {
+                  start.await();
+                  return httpClient.get(baseUrl + "/slow");
+                }));
+      }
+      start.countDown();
+      for (Future<ExtendedResponse> future : futures) {
+        assertEquals("slow", future.get().getContent());
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+    assertEquals(requests + 1, SLOW_REQUESTS.get());
+    assertEquals(7, httpClient.getCoalescedRequestCount());
+  }
+
+  @Test
+  public void testMetrics() throws Exception {
+    SimpleMetricsRegistry metrics = new SimpleMetricsRegistry();
+    HttpClient httpClient = HttpUtil.newMultithreadedClient(10_000, 10, 5, metrics);
+    String route = "localhost:" + server.getLocalPort();
+
+    assertArrayEquals(PAYLOAD, httpClient.get(baseUrl + "/payload").getBytes());
+    assertEquals(
+        HttpStatus.SC_NOT_MODIFIED,
+        httpClient
+            .get(baseUrl + "/etag", Collections.singletonMap(HttpHeaders.IF_NONE_MATCH, ETAG), null)
+            .getStatusCode());
+
+    assertEquals(1, metrics.getCount(HttpMetrics.STATUS + 200, route));
+    assertEquals(1, metrics.getCount(HttpMetrics.STATUS + 304, route));
+    assertEquals(PAYLOAD.length, metrics.getCount(HttpMetrics.BYTES_IN, route));
+    assertTrue(metrics.getCount(HttpMetrics.BYTES_OUT, route) > 0);
+    assertEquals(0, metrics.getCount(HttpMetrics.ERRORS, route));
+    assertEquals(2, metrics.getHistogram(HttpMetrics.LEASE_WAIT, route).getCount());
+    assertEquals(1, metrics.getHistogram(HttpMetrics.CONNECT, route).getCount());
+    assertEquals(2, metrics.getHistogram(HttpMetrics.TIME_TO_FIRST_BYTE, route).getCount());
+    Histogram total = metrics.getHistogram(HttpMetrics.TOTAL, route);
+    assertEquals(2, total.getCount());
+    assertTrue(total.getPercentile(0.5) <= total.getMax());
+
+    // the connection was kept alive
+    assertEquals(0, metrics.getGauge(HttpMetrics.POOL_LEASED, route));
+    assertEquals(1, metrics.getGauge(HttpMetrics.POOL_AVAILABLE, route));
+    assertEquals(1, metrics.getGauge(HttpMetrics.POOL_AVAILABLE, HttpMetrics.ALL_ROUTES));
+  }
+
+  @Test
+  public void testEventListener() throws Exception {
+    List<String> events = Collections.synchronizedList(new ArrayList<>());
+    HttpEventListener listener =
+        new HttpEventListener() {
+          @Override
+          public void started(HttpExchange exchange) {
+            events.add("started " + exchange.getMethod() + " " + exchange.getUri());
+          }
+
+          @Override
+          public void leaseAcquired(HttpExchange exchange, long nanoTime) {
+            events.add("leased");
+          }
+
+          @Override
+          public void dnsResolved(HttpExchange exchange, InetAddress[] addresses, long nanoTime) {
+            events.add("resolved");
+          }
+
+          @Override
+          public void connected(HttpExchange exchange, InetSocketAddress remote, long nanoTime) {
+            events.add("connected");
+          }
+
+          @Override
+          public void requestSent(HttpExchange exchange, long bytes, long nanoTime) {
+            events.add("sent");
+          }
+
+          @Override
+          public void firstByte(HttpExchange exchange, int status, long nanoTime) {
+            events.add("status " + status);
+          }
+
+          @Override
+          public void bodyComplete(HttpExchange exchange, long bytes, long nanoTime) {
+            assertTrue(nanoTime >= exchange.getFirstByteNanos());
+            assertTrue(exchange.getFirstByteNanos() >= exchange.getRequestSentNanos());
+            events.add("complete " + bytes);
+          }
+
+          @Override
+          public void failed(HttpExchange exchange, Exception e, long nanoTime) {
+            events.add("failed");
+          }
+        };
+    HttpClient httpClient = HttpUtil.newMultithreadedClient(10_000, 10, 5, null, listener);
+
+    httpClient.get(baseUrl + "/fresh");
+    assertEquals(
+        Arrays.asList(
+            "started GET /fresh", "leased", "resolved", "connected", "sent", "status 200",
+            "complete 5"),
+        events);
+
+    // the pooled connection is reused
+    events.clear();
+    httpClient.get(baseUrl + "/payload");
+    assertEquals(
+        Arrays.asList(
+            "started GET /payload", "leased", "sent", "status 200", "complete " + PAYLOAD.length),
+        events);
+
+    int closedPort;
+    try (ServerSocket socket = new ServerSocket(0)) {
+      closedPort = socket.getLocalPort();
+    }
+    events.clear();
+    try {
+      httpClient.get("http://localhost:" + closedPort + "/");
+    } catch (IOException e) {
+      // expected
+    }
+    assertEquals("failed", events.get(events.size() - 1));
+    assertFalse(events.contains("sent"));
+  }
+
+  @Test
+  public void testCappedKeepAlive() throws Exception {
+    CappedKeepAliveStrategy strategy = new CappedKeepAliveStrategy(5_000);
+    HttpResponse response =
+        new BasicHttpResponse(new BasicStatusLine(HttpVersion.HTTP_1_1, HttpStatus.SC_OK, "OK"));
+    assertEquals(5_000, strategy.getKeepAliveDuration(response, null));
+    response.setHeader("Keep-Alive", "timeout=2, max=100");
+    assertEquals(2_000, strategy.getKeepAliveDuration(response, null));
+    response.setHeader("Keep-Alive", "timeout=600");
+    assertEquals(5_000, strategy.getKeepAliveDuration(response, null));
+
+    HttpClient httpClient =
+        HttpUtil.newMultithreadedClient(
+            10_000,
+            10,
+            5,
+            ConnectionReuse.DEFAULT
+                .withIdleEviction(100, TimeUnit.MILLISECONDS)
+                .withTimeToLive(1, TimeUnit.MINUTES)
+                .withMaxKeepAlive(5, TimeUnit.SECONDS));
+    assertEquals("fresh", httpClient.get(baseUrl + "/fresh").getContent());
+    assertEquals("fresh", httpClient.get(baseUrl + "/fresh").getContent());
+  }
+
+  @Test
+  public void testBuilder() throws Exception {
+    HttpClient httpClient =
+        HttpClient.builder()
+            .setConnectTimeout(5_000)
+            .setSocketTimeout(10_000)
+            .setConnectionRequestTimeout(1_000)
+            .setMaxConnections(20)
+            .setMaxPerRoute(2)
+            .setMaxPerRoute(baseUrl, 10)
+            .setTcpNoDelay(true)
+            .setSoKeepAlive(true)
+            .setReceiveBufferSize(64 * 1024)
+            .setUserAgent("builder-test")
+            .addInterceptorFirst(
+                (request, context) -> request.setHeader(HttpHeaders.IF_NONE_MATCH, ETAG))
+            .build();
+    assertEquals(HttpStatus.SC_NOT_MODIFIED, httpClient.get(baseUrl + "/etag").getStatusCode());
+
+    // ten concurrent requests to the local host don't wait for connections
+    ExecutorService executor = Executors.newFixedThreadPool(10);
+    try {
+      CountDownLatch start = new CountDownLatch(1);
+      List<Future<ExtendedResponse>> futures = new ArrayList<>();
+      for (int i = 0; i < 10; i++) {
+        futures.add(
+            executor.submit(
+                () -> {
+                  start.await();
+                  return httpClient.get(baseUrl + "/slow");
+                }));
+      }
+      start.countDown();
+      for (Future<ExtendedResponse> future : futures) {
+        assertEquals("slow", future.get().getContent());
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void testRetryPolicy() throws Exception {
+    RetryPolicy policy =
+        RetryPolicy.custom()
+            .setMaxRetries(3)
+            .setDelay(1, 10, TimeUnit.MILLISECONDS)
+            .setBudget(0.1, 2)
+            .build();
+    HttpClient httpClient = HttpUtil.newMultithreadedClient(10_000, 10, 5, policy);
+
+    FLAKY_REQUESTS.set(0);
+    ExtendedResponse response = httpClient.get(baseUrl + "/flaky");
+    assertEquals(HttpStatus.SC_OK, response.getStatusCode());
+    assertEquals("ok", response.getContent());
+    assertEquals(3, FLAKY_REQUESTS.get());
+    assertEquals(2, policy.getRetryCount());
+
+    // the budget is spent, so the failure is returned
+    assertEquals(
+        HttpStatus.SC_SERVICE_UNAVAILABLE, httpClient.get(baseUrl + "/flaky").getStatusCode());
+    assertEquals(1, policy.getBudgetExhaustedCount());
+
+    // a POST is not idempotent
+    FLAKY_REQUESTS.set(0);
+    assertEquals(
+        HttpStatus.SC_SERVICE_UNAVAILABLE,
+        httpClient.post(baseUrl + "/flaky", new StringEntity("x")).getStatusCode());
+    assertEquals(1, FLAKY_REQUESTS.get());
+
+    for (int i = 1; i < 10; i++) {
+      assertTrue(policy.delay(i) <= Math.min(1L << (i - 1), 10));
+    }
+    HttpResponse retryAfter =
+        new BasicHttpResponse(new BasicStatusLine(HttpVersion.HTTP_1_1, 503, "Unavailable"));
+    retryAfter.setHeader(HttpHeaders.RETRY_AFTER, "120");
+    assertEquals(120_000L, RetryPolicy.retryAfter(retryAfter));
+    retryAfter.setHeader(
+        HttpHeaders.RETRY_AFTER, DateUtils.formatDate(new Date(System.currentTimeMillis() - 1000)));
+    assertEquals(0L, RetryPolicy.retryAfter(retryAfter));
+  }
+
+  @Test
+  public void testCircuitBreaker() throws Exception {
+    HttpClient httpClient =
+        HttpClient.builder()
+            .setTimeout(10_000)
+            .setCircuitBreakers(
+                CircuitBreakers.custom()
+                    .setFailureRateThreshold(0.5, 4)
+                    .setOpenDuration(200, TimeUnit.MILLISECONDS)
+                    .setHalfOpenProbes(1)
+                    .build())
+            .build();
+    CircuitBreakers breakers = httpClient.getCircuitBreakers();
+    String host = "localhost:" + server.getLocalPort();
+
+    assertEquals("fresh", httpClient.get(baseUrl + "/fresh").getContent());
+    for (int i = 0; i < 3; i++) {
+      assertEquals(
+          HttpStatus.SC_INTERNAL_SERVER_ERROR, httpClient.get(baseUrl + "/broken").getStatusCode());
+    }
+    assertEquals(CircuitBreaker.State.OPEN, breakers.getState(host));
+    assertEquals(0.75, breakers.get(host).getFailureRate(), 0.001);
+
+    CircuitBreakerOpenException e =
+        assertThrows(
+            CircuitBreakerOpenException.class, () -> httpClient.get(baseUrl + "/fresh"));
+    assertEquals(host, e.getHost());
+
+    // a successful probe closes the breaker again
+    Thread.sleep(250);
+    assertEquals("fresh", httpClient.get(baseUrl + "/fresh").getContent());
+    assertEquals(CircuitBreaker.State.CLOSED, breakers.getState(host));
+    assertEquals(0, breakers.get(host).getRequestCount());
+  }
+
+  @Test
+  public void testConcurrencyLimits() throws Exception {
+    HttpClient httpClient =
+        HttpClient.builder()
+            .setTimeout(10_000)
+            .setConcurrencyLimits(
+                ConcurrencyLimits.custom()
+                    .setLimits(2, 1, 10)
+                    .setQueue(1, 100, TimeUnit.MILLISECONDS)
+                    .build())
+            .build();
+    ConcurrencyLimit limit =
+        httpClient.getConcurrencyLimits().get("localhost:" + server.getLocalPort());
+
+    // two requests run, one waits in vain and one is rejected right away
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    List<Future<ExtendedResponse>> futures = new ArrayList<>();
+    for (int i = 0; i < 4; i++) {
+      futures.add(executor.submit(() -> httpClient.get(baseUrl + "/slow")));
+      Thread.sleep(20);
+    }
+    int rejected = 0;
+    for (Future<ExtendedResponse> future : futures) {
+      try {
+        assertEquals("slow", future.get().getContent());
+      } catch (ExecutionException e) {
+        assertTrue(e.getCause() instanceof ConcurrencyLimitExceededException);
+        rejected++;
+      }
+    }
+    executor.shutdown();
+    assertEquals(2, rejected);
+    assertEquals(0, limit.getInFlight());
+    assertEquals(2, limit.getLimit());
+
+    // errors back the limit off to its minimum
+    for (int i = 0; i < 10; i++) {
+      assertEquals(
+          HttpStatus.SC_INTERNAL_SERVER_ERROR,
+          httpClient.get(baseUrl + "/broken").getStatusCode());
+    }
+    assertEquals(1, limit.getLimit());
+    assertEquals(0, limit.getInFlight());
+  }
+
+  @Test
+  public void testConcurrencyLimitsDontTripBreakers() throws Exception {
+    HttpClient httpClient =
+        HttpClient.builder()
+            .setTimeout(10_000)
+            .setCircuitBreakers(
+                CircuitBreakers.custom().setFailureRateThreshold(0.5, 2).build())
+            .setConcurrencyLimits(
+                ConcurrencyLimits.custom()
+                    .setLimits(1, 1, 1)
+                    .setQueue(0, 0, TimeUnit.MILLISECONDS)
+                    .build())
+            .build();
+    String host = "localhost:" + server.getLocalPort();
+
+    ExecutorService executor = Executors.newFixedThreadPool(3);
+    List<Future<ExtendedResponse>> futures = new ArrayList<>();
+    for (int i = 0; i < 3; i++) {
+      futures.add(executor.submit(() -> httpClient.get(baseUrl + "/slow")));
+      Thread.sleep(20);
+    }
+    int rejected = 0;
+    for (Future<ExtendedResponse> future : futures) {
+      try {
+        assertEquals("slow", future.get().getContent());
+      } catch (ExecutionException e) {
+        assertTrue(e.getCause() instanceof ConcurrencyLimitExceededException);
+        rejected++;
+      }
+    }
+    executor.shutdown();
+    assertEquals(2, rejected);
+
+    // only the request sent counts
+    assertEquals(CircuitBreaker.State.CLOSED, httpClient.getCircuitBreakers().getState(host));
+    assertEquals(1, httpClient.getCircuitBreakers().get(host).getRequestCount());
+  }
+
+  @Test
+  public void testRateLimits() throws Exception {
+    HttpClient httpClient =
+        HttpClient.builder()
+            .setRateLimits(
+                RateLimits.custom()
+                    .setRate("*.gbif.org", 1, 1)
+                    .setRate("localhost", 10, 2)
+                    .build())
+            .build();
+
+    // a burst of two, then one request every 100ms
+    long start = System.currentTimeMillis();
+    for (int i = 0; i < 5; i++) {
+      assertEquals("fresh", httpClient.get(baseUrl + "/fresh").getContent());
+    }
+    assertTrue(System.currentTimeMillis() - start >= 250);
+    RateLimiter limiter = httpClient.getRateLimits().get("localhost");
+    assertTrue(limiter.getDelayedCount() > 0);
+    assertEquals(10, limiter.getRate(), 0.001);
+    assertEquals(1, httpClient.getRateLimits().get("api.gbif.org").getRate(), 0.001);
+    assertNull(httpClient.getRateLimits().get("example.org"));
+
+    // requests due too late fail right away
+    HttpClient strictClient =
+        HttpClient.builder()
+            .setRateLimits(
+                RateLimits.custom()
+                    .setRate("*", 1, 1)
+                    .setMaxWait(100, TimeUnit.MILLISECONDS)
+                    .build())
+            .build();
+    assertEquals("fresh", strictClient.get(baseUrl + "/fresh").getContent());
+    RateLimitExceededException e =
+        assertThrows(
+            RateLimitExceededException.class, () -> strictClient.get(baseUrl + "/fresh"));
+    assertEquals("localhost", e.getHost());
+  }
+
+  @Test
+  public void testRateLimitsDontTripBreakers() throws Exception {
+    HttpClient httpClient =
+        HttpClient.builder()
+            .setCircuitBreakers(
+                CircuitBreakers.custom().setFailureRateThreshold(0.5, 2).build())
+            .setRateLimits(
+                RateLimits.custom()
+                    .setRate("localhost", 1, 1)
+                    .setMaxWait(0, TimeUnit.MILLISECONDS)
+                    .build())
+            .build();
+    String host = "localhost:" + server.getLocalPort();
+
+    assertEquals("fresh", httpClient.get(baseUrl + "/fresh").getContent());
+    for (int i = 0; i < 3; i++) {
+      assertThrows(RateLimitExceededException.class, () -> httpClient.get(baseUrl + "/fresh"));
+    }
+
+    // only the request sent counts
+    assertEquals(CircuitBreaker.State.CLOSED, httpClient.getCircuitBreakers().getState(host));
+    assertEquals(1, httpClient.getCircuitBreakers().get(host).getRequestCount());
+  }
+
+  @Test
+  public void testHedgedGet() throws Exception {
+    HedgingPolicy policy =
+        HedgingPolicy.custom()
+            .setDelay(50, TimeUnit.MILLISECONDS)
+            .setMaxHedgeRate(0.05, 1)
+            .build();
+    HttpClient httpClient = HttpClient.builder().setHedgingPolicy(policy).build();
+
+    long start = System.currentTimeMillis();
+    assertEquals("done", httpClient.get(baseUrl + "/stalling").getContent());
+    assertTrue(System.currentTimeMillis() - start < 1_500);
+    assertEquals(2, STALLING_REQUESTS.get());
+    assertEquals(1, policy.getHedgedCount());
+    assertEquals(1, policy.getHedgeWinCount());
+
+    // fast requests aren't hedged
+    assertEquals("fresh", httpClient.get(baseUrl + "/fresh").getContent());
+    assertEquals(1, policy.getHedgedCount());
+    assertEquals(TimeUnit.MILLISECONDS.toNanos(50), policy.getDelay());
+  }
 }
@@ -0,0 +1,129 @@
+/*
+ * Copyright 2021 Global Biodiversity Information Facility (GBIF)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.utils.cache;
+
+import org.gbif.utils.ExtendedResponse;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.http.Header;
+import org.apache.http.HttpVersion;
+import org.apache.http.message.BasicHeader;
+import org.apache.http.message.BasicStatusLine;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+public class DiskCacheStorageTest {
+
+  @TempDir File dir;
+
+  private static CacheEntry entry(String body, long expiresAt) {
+    ExtendedResponse response =
+        new ExtendedResponse(
+            new BasicStatusLine(HttpVersion.HTTP_1_1, 200, "OK"),
+            null,
+            new Header[] {new BasicHeader("ETag", "\"" + body + "\"")},
+            body.getBytes(StandardCharsets.UTF_8),
+            StandardCharsets.UTF_8);
+    return new CacheEntry(response, 1000, expiresAt);
+  }
+
+  @Test
+  public void testSurvivesRestart() throws Exception {
+    try (DiskCacheStorage storage = new DiskCacheStorage(dir, 1024 * 1024, 100)) {
+      storage.put("http://example.org/a", entry("a", 5000));
+      storage.put("http://example.org/b", entry("b", 6000));
+      storage.remove("http://example.org/b");
+    }
+
+    try (DiskCacheStorage storage = new DiskCacheStorage(dir, 1024 * 1024, 100)) {
+      assertEquals(1, storage.getEntryCount());
+      assertNull(storage.get("http://example.org/b"));
+      CacheEntry entry = storage.get("http://example.org/a");
+      assertNotNull(entry);
+      assertEquals(1000, entry.getResponseTime());
+      assertEquals(5000, entry.getExpiresAt());
+      assertEquals(200, entry.getResponse().getStatusCode());
+      assertEquals("\"a\"", entry.getResponse().getFirstHeader("etag").getValue());
+      assertArrayEquals("a".getBytes(StandardCharsets.UTF_8), entry.getResponse().getBytes());
+      assertEquals("\"a\"", entry.getValidators().getEtag());
+    }
+  }
+
+  @Test
+  public void testEvictsLeastRecentlyUsed() throws Exception {
+    try (DiskCacheStorage storage = new DiskCacheStorage(dir, 1024 * 1024, 3)) {
+      for (int i = 0; i < 100; i++) {
+        storage.put("key" + i, entry("body" + i, 0));
+        // keep the first entry in use
+        Thread.sleep(1);
+        assertNotNull(storage.get("key0"));
+      }
+      assertEquals(3, storage.getEntryCount());
+      assertEquals(97, storage.getEvictionCount());
+      assertNotNull(storage.get("key99"));
+      assertNull(storage.get("key50"));
+      assertEquals(3, dir.listFiles((d, name) -> name.endsWith(".entry")).length);
+    }
+  }
+
+  @Test
+  public void testEvictionOrderSurvivesRestart() throws Exception {
+    try (DiskCacheStorage storage = new DiskCacheStorage(dir, 1024 * 1024, 3)) {
+      for (String key : new String[] {"a", "b", "c"}) {
+        storage.put(key, entry(key, 0));
+        Thread.sleep(2);
+      }
+      assertNotNull(storage.get("a"));
+    }
+
+    try (DiskCacheStorage storage = new DiskCacheStorage(dir, 1024 * 1024, 3)) {
+      storage.put("d", entry("d", 0));
+      assertEquals(1, storage.getEvictionCount());
+      assertNull(storage.get("b"));
+      assertNotNull(storage.get("a"));
+      assertNotNull(storage.get("c"));
+      assertNotNull(storage.get("d"));
+    }
+  }
+
+  @Test
+  public void testDeletesUnknownFilesOnOpen() throws Exception {
+    try (DiskCacheStorage storage = new DiskCacheStorage(dir, 1024 * 1024, 100)) {
+      storage.put("a", entry("a", 0));
+    }
+    // left behind by a crash before the index was flushed
+    File orphan = new File(dir, "0123456789abcdef.entry");
+    File tmp = new File(dir, ".0123456789abcdef.entry.42.tmp");
+    FileUtils.writeStringToFile(orphan, "orphan", StandardCharsets.UTF_8);
+    FileUtils.writeStringToFile(tmp, "tmp", StandardCharsets.UTF_8);
+
+    try (DiskCacheStorage storage = new DiskCacheStorage(dir, 1024 * 1024, 100)) {
+      assertFalse(orphan.exists());
+      assertFalse(tmp.exists());
+      assertEquals(1, storage.getEntryCount());
+      assertNotNull(storage.get("a"));
+    }
+  }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright 2021 Global Biodiversity Information Facility (GBIF)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.varnish;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.UUID;
+import java.util.regex.Pattern;
+
+/**
+ * Compares the size and matching cost of the regexes built by {@link VarnishPurger#anyKey} and
+ * {@link BanRegexBuilder#anyKey}, matched against URLs of cached objects the way Varnish tests a ban.
+ * <p/>
+ * Run the main method, it is not part of the test suite. Java's regex engine stands in for PCRE, so absolute times
+ * differ from Varnish, but the relative cost of the two shapes is comparable.
+ */
+public class BanRegexBenchmark {
+
+  private static final int URLS = 20_000;
+  private static final int ROUNDS = 5;
+
+  public static void main(String[] args) {
+    Random random = new Random(42);
+    for (int size : new int[] {10, 100, 1000, 5000}) {
+      Set<String> numbers = new LinkedHashSet<>();
+      Set<String> uuids = new LinkedHashSet<>();
+      while (numbers.size() < size) {
+        numbers.add(String.valueOf(1_000_000 + random.nextInt(9_000_000)));
+      }
+      while (uuids.size() < size) {
+        uuids.add(UUID.randomUUID().toString());
+      }
+      run("occurrence keys", numbers, urls(random, true));
+      run("dataset UUIDs", uuids, urls(random, false));
+    }
+  }
+
+  private static List<String> urls(Random random, boolean numeric) {
+    List<String> urls = new ArrayList<>(URLS);
+    for (int i = 0; i < URLS; i++) {
+      String key =
+          numeric
+              ? String.valueOf(1_000_000 + random.nextInt(9_000_000))
+              : UUID.randomUUID().toString();
+      urls.add("/v1/occurrence/" + key + "/verbatim");
+    }
+    return urls;
+  }
+
+  private static void run(String name, Set<String> keys, List<String> urls) {
+    String flat = VarnishPurger.anyKey(keys);
+    String trie = BanRegexBuilder.anyKey(keys);
+    double flatNanos = matchNanos("/v1/occurrence/" + flat + "/.*", urls);
+    double trieNanos = matchNanos("/v1/occurrence/" + trie + "/.*", urls);
+    System.out.printf(
+        "%5d %-15s anyKey %7d B %8.0f ns/match | trie %7d B %8.0f ns/match | %d bans <= %d B%n",
+        keys.size(),
+        name,
+        flat.length(),
+        flatNanos,
+        trie.length(),
+        trieNanos,
+        BanRegexBuilder.anyKey(keys, BanRegexBuilder.DEFAULT_MAX_BYTES).size(),
+        BanRegexBuilder.DEFAULT_MAX_BYTES);
+  }
+
+  private static double matchNanos(String regex, List<String> urls) {
+    Pattern pattern = Pattern.compile(regex);
+    long best = Long.MAX_VALUE;
+    int matches = 0;
+    for (int round = 0; round < ROUNDS; round++) {
+      long start = System.nanoTime();
+      for (String url : urls) {
+        if (pattern.matcher(url).find()) {
+          matches++;
+        }
+      }
+      best = Math.min(best, System.nanoTime() - start);
+    }
+    // keeps the loop from being optimised away
+    if (matches < 0) {
+      System.out.println(matches);
+    }
+    return (double) best / urls.size();
+  }
+}
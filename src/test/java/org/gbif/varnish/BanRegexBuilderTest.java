@@ -0,0 +1,97 @@
+/*
+ * Copyright 2021 Global Biodiversity Information Facility (GBIF)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.varnish;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.UUID;
+import java.util.regex.Pattern;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class BanRegexBuilderTest {
+
+  @Test
+  public void testTrie() {
+    assertEquals("12(?:3[4-6]|99)", BanRegexBuilder.anyKey(Arrays.asList(1234, 1235, 1236, 1299)));
+    assertEquals("3456?", BanRegexBuilder.anyKey(Arrays.asList("345", "3456")));
+    assertEquals("34(?:56)?", BanRegexBuilder.anyKey(Arrays.asList("34", "3456")));
+    assertEquals("a[bd]?", BanRegexBuilder.anyKey(Arrays.asList("a", "ab", "ad")));
+    assertEquals("(?:a\\.b|c)", BanRegexBuilder.anyKey(Arrays.asList("a.b", "c")));
+    assertEquals("7", BanRegexBuilder.anyKey(Arrays.asList(7)));
+  }
+
+  @Test
+  public void testMatchesSameKeysAsAnyKey() {
+    Random random = new Random(42);
+    Set<String> keys = new HashSet<>();
+    for (int i = 0; i < 2000; i++) {
+      keys.add(String.valueOf(random.nextInt(100_000)));
+      keys.add(UUID.randomUUID().toString());
+    }
+    Pattern flat = Pattern.compile("occurrence/" + VarnishPurger.anyKey(keys) + "/.*");
+    Pattern trie = Pattern.compile("occurrence/" + BanRegexBuilder.anyKey(keys) + "/.*");
+    for (int i = 0; i < 5000; i++) {
+      String probe = "occurrence/" + random.nextInt(100_000) + "/verbatim";
+      assertEquals(flat.matcher(probe).matches(), trie.matcher(probe).matches(), probe);
+    }
+    for (String key : keys) {
+      assertTrue(trie.matcher("occurrence/" + key + "/verbatim").matches(), key);
+    }
+    assertTrue(BanRegexBuilder.anyKey(keys).length() < VarnishPurger.anyKey(keys).length());
+  }
+
+  @Test
+  public void testSplit() {
+    Set<String> keys = new HashSet<>();
+    for (int i = 0; i < 3000; i++) {
+      keys.add(UUID.randomUUID().toString());
+    }
+    List<String> regexes = BanRegexBuilder.anyKey(keys, 4096);
+    assertTrue(regexes.size() > 1);
+    for (String regex : regexes) {
+      assertTrue(regex.getBytes(StandardCharsets.UTF_8).length <= 4096);
+    }
+    for (String key : keys) {
+      assertTrue(regexes.stream().anyMatch(r -> Pattern.matches(r, key)), key);
+    }
+    assertFalse(regexes.stream().anyMatch(r -> Pattern.matches(r, UUID.randomUUID().toString())));
+
+    assertThrows(
+        IllegalArgumentException.class,
+        () -> BanRegexBuilder.anyKey(Arrays.asList("too-long-for-the-limit"), 10));
+  }
+
+  @Test
+  public void testAnyRegex() {
+    assertEquals(
+        Arrays.asList("(a/.*|b$)", "c{3}"),
+        BanRegexBuilder.anyRegex(Arrays.asList("a/.*", "b$", "a/.*", "c{3}"), 9));
+    // a regex over the limit is kept on its own
+    assertEquals(
+        Arrays.asList("x", "longer/.*", "y"),
+        BanRegexBuilder.anyRegex(Arrays.asList("x", "longer/.*", "y"), 4));
+  }
+}
@@ -15,22 +15,43 @@
  */
 package org.gbif.varnish;
 
+import java.io.File;
 import java.io.IOException;
+import java.net.ConnectException;
 import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
 
 import org.apache.commons.lang3.StringUtils;
 import org.apache.http.Header;
 import org.apache.http.HttpHost;
 import org.apache.http.HttpRequest;
+import org.apache.http.HttpVersion;
 import org.apache.http.client.ClientProtocolException;
 import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.message.BasicStatusLine;
 import org.apache.http.params.HttpParams;
 import org.apache.http.protocol.HttpContext;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
 
 /**
  * Test VarnishPurger generated URI and Http headers
@@ -47,6 +68,7 @@ public class VarnishPurgerTest {
 
     private String uri;
     private Header[] headers;
+    private final List<String> bans = new ArrayList<>();
 
     @Override
     public HttpParams getParams() {
@@ -67,9 +89,14 @@ public class VarnishPurgerTest {
         throws IOException, ClientProtocolException {
       uri = request.getRequestLine().getUri();
       headers = request.getAllHeaders();
+      if (HttpBan.METHOD_NAME.equals(request.getRequestLine().getMethod())) {
+        bans.add(getFirstHeaderValue(HttpBan.BAN_HEADER));
+      }
 
       // mock it
       CloseableHttpResponse response = mock(CloseableHttpResponse.class);
+      when(response.getStatusLine())
+          .thenReturn(new BasicStatusLine(HttpVersion.HTTP_1_1, 200, "OK"));
       return response;
     }
 
@@ -77,6 +104,10 @@ public class VarnishPurgerTest {
       return uri;
     }
 
+    public List<String> getBans() {
+      return bans;
+    }
+
     public Header[] getHeaders() {
       return headers;
     }
@@ -89,6 +120,126 @@ public class VarnishPurgerTest {
     }
   }
 
+  /**
+   * Records invalidations, holding the first one until released.
+   */
+  private static class RecordingPurger implements Purger {
+
+    private final List<String> calls = Collections.synchronizedList(new ArrayList<>());
+    private final CountDownLatch started = new CountDownLatch(1);
+    private final CountDownLatch release = new CountDownLatch(1);
+
+    @Override
+    public void purge(String path) {
+      record("PURGE " + path);
+    }
+
+    @Override
+    public void ban(String regex) {
+      record("BAN " + regex);
+    }
+
+    private void record(String call) {
+      calls.add(call);
+      started.countDown();
+      try {
+        release.await();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  /**
+   * Mock HttpClient recording the requests sent to each host, failing for hosts named down.
+   */
+  private static class MockClusterClient extends org.apache.http.impl.client.CloseableHttpClient {
+
+    private final List<String> requests = Collections.synchronizedList(new ArrayList<>());
+
+    @Override
+    public HttpParams getParams() {
+      return null;
+    }
+
+    @Override
+    public ClientConnectionManager getConnectionManager() {
+      return null;
+    }
+
+    @Override
+    public void close() throws IOException {}
+
+    @Override
+    protected CloseableHttpResponse doExecute(
+        HttpHost target, HttpRequest request, HttpContext context) throws IOException {
+      if (target.getHostName().equals("down")) {
+        throw new ConnectException("Connection refused");
+      }
+      Header ban = request.getFirstHeader(HttpBan.BAN_HEADER);
+      requests.add(
+          target.toHostString()
+              + " "
+              + request.getRequestLine().getMethod()
+              + " "
+              + URI.create(request.getRequestLine().getUri()).getPath()
+              + " Host: "
+              + request.getFirstHeader("Host").getValue()
+              + (ban != null ? " " + ban.getValue() : ""));
+      CloseableHttpResponse response = mock(CloseableHttpResponse.class);
+      when(response.getStatusLine())
+          .thenReturn(new BasicStatusLine(HttpVersion.HTTP_1_1, 200, "OK"));
+      return response;
+    }
+  }
+
+  /**
+   * Fails the given number of invalidations before acknowledging them.
+   */
+  private static class FlakyPurger implements Purger {
+
+    private final List<String> acknowledged = Collections.synchronizedList(new ArrayList<>());
+    private final AtomicInteger failures;
+
+    private FlakyPurger(int failures) {
+      this.failures = new AtomicInteger(failures);
+    }
+
+    @Override
+    public void purge(String path) {
+      tryPurge(path);
+    }
+
+    @Override
+    public void ban(String regex) {
+      tryBan(regex);
+    }
+
+    @Override
+    public boolean tryPurge(String path) {
+      return acknowledge("PURGE " + path);
+    }
+
+    @Override
+    public boolean tryBan(String regex) {
+      return acknowledge("BAN " + regex);
+    }
+
+    private boolean acknowledge(String call) {
+      if (failures.getAndDecrement() > 0) {
+        return false;
+      }
+      acknowledged.add(call);
+      return true;
+    }
+  }
+
+  private static void awaitPending(JournaledVarnishPurger purger) throws InterruptedException {
+    for (int i = 0; i < 500 && purger.getPendingCount() > 0; i++) {
+      Thread.sleep(10);
+    }
+  }
+
   @Test
   public void testPurge() {
     MockCloseableHttpClientTest mockHttClient = new MockCloseableHttpClientTest();
@@ -115,4 +266,284 @@ public class VarnishPurgerTest {
     purger.ban("/directory/*");
     assertEquals("/v1/directory/*", mockHttClient.getFirstHeaderValue(HttpBan.BAN_HEADER));
   }
+
+  @Test
+  public void testLiteral() {
+    assertEquals("occurrence/search\\?q=a\\+b", VarnishPurger.literal("occurrence/search?q=a+b"));
+  }
+
+  @Test
+  public void testBatching() {
+    MockCloseableHttpClientTest mockHttClient = new MockCloseableHttpClientTest();
+    VarnishPurger purger = new VarnishPurger(mockHttClient, URI.create(API_BASEURL));
+
+    try (BatchingVarnishPurger batching =
+        new BatchingVarnishPurger(purger, 1, TimeUnit.HOURS, 3)) {
+      batching.purge("occurrence/15");
+      batching.purge("/occurrence/15");
+      batching.ban("directory/*");
+      assertEquals(0, mockHttClient.getBans().size());
+
+      batching.flush();
+      assertEquals(Arrays.asList("/v1/(occurrence/15$|directory/*)"), mockHttClient.getBans());
+
+      batching.purge("species/1");
+      batching.purge("species/2");
+      batching.purge("species/3");
+      batching.purge("species/4");
+      // the full batch is sent in the background, close waits for it
+      batching.close();
+      assertEquals(7, batching.getReceivedCount());
+      assertEquals(3, batching.getSentCount());
+      assertEquals("/v1/species/[1-3]$", mockHttClient.getBans().get(1));
+      assertEquals("/v1/species/4$", mockHttClient.getBans().get(2));
+      assertThrows(IllegalStateException.class, () -> batching.purge("species/5"));
+    }
+  }
+
+  @Test
+  public void testBatchingConcurrently() throws Exception {
+    AtomicInteger bans = new AtomicInteger();
+    Purger counter =
+        new Purger() {
+          @Override
+          public void purge(String path) {}
+
+          @Override
+          public void ban(String regex) {
+            bans.incrementAndGet();
+          }
+        };
+
+    // single invalidation batches, so every ban received is sent as its own BAN
+    BatchingVarnishPurger batching =
+        new BatchingVarnishPurger(counter, 1, TimeUnit.MILLISECONDS, 1);
+    List<Thread> threads = new ArrayList<>();
+    for (int t = 0; t < 4; t++) {
+      String prefix = "t" + t + "/";
+      Thread thread =
+          new Thread(
+              () -> {
+                for (int i = 0; i < 5000; i++) {
+                  batching.ban(prefix + i);
+                }
+              });
+      thread.start();
+      threads.add(thread);
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    batching.close();
+
+    assertEquals(20000, batching.getReceivedCount());
+    assertEquals(20000, batching.getSentCount());
+    assertEquals(20000, bans.get());
+  }
+
+  @Test
+  public void testBatchingSplitsLargeBatches() {
+    MockCloseableHttpClientTest mockHttClient = new MockCloseableHttpClientTest();
+    VarnishPurger purger = new VarnishPurger(mockHttClient, URI.create(API_BASEURL));
+
+    List<String> paths = new ArrayList<>();
+    try (BatchingVarnishPurger batching =
+        new BatchingVarnishPurger(purger, 1, TimeUnit.HOURS, 1000)) {
+      for (int i = 0; i < 500; i++) {
+        String path = "dataset/" + UUID.randomUUID();
+        paths.add(path);
+        batching.purge(path);
+      }
+      batching.ban("occurrence/search.*");
+      batching.flush();
+    }
+
+    List<String> bans = mockHttClient.getBans();
+    assertTrue(bans.size() > 1);
+    for (String ban : bans) {
+      assertTrue(
+          ban.getBytes(StandardCharsets.UTF_8).length
+              <= "/v1/".length() + BanRegexBuilder.DEFAULT_MAX_BYTES);
+    }
+    paths.add("occurrence/search?q=1");
+    for (String path : paths) {
+      assertTrue(
+          bans.stream().anyMatch(ban -> Pattern.compile(ban).matcher("/v1/" + path).find()),
+          path);
+    }
+    assertFalse(
+        bans.stream().anyMatch(ban -> Pattern.compile(ban).matcher("/v1/dataset/1").find()));
+  }
+
+  @Test
+  public void testAsyncCoalesce() throws Exception {
+    RecordingPurger recorder = new RecordingPurger();
+    try (AsyncVarnishPurger purger =
+        new AsyncVarnishPurger(recorder, 1, 2, AsyncVarnishPurger.OverflowPolicy.COALESCE)) {
+      purger.purge("a");
+      recorder.started.await();
+      purger.purge("b");
+      purger.ban("c/.*");
+      purger.ban("c/.*");
+      // the queue is full, so b and c are merged
+      purger.purge("d");
+      assertEquals(2, purger.getQueueSize());
+
+      recorder.release.countDown();
+      purger.flush();
+      assertEquals(Arrays.asList("PURGE a", "BAN (b$|c/.*)", "PURGE d"), recorder.calls);
+      assertEquals(3, purger.getCompletedCount());
+      assertEquals(2, purger.getCoalescedCount());
+    }
+  }
+
+  @Test
+  public void testAsyncCoalesceCapsBans() throws Exception {
+    RecordingPurger recorder = new RecordingPurger();
+    try (AsyncVarnishPurger purger =
+        new AsyncVarnishPurger(recorder, 1, 3, AsyncVarnishPurger.OverflowPolicy.COALESCE)) {
+      purger.purge("a");
+      recorder.started.await();
+      List<String> paths = new ArrayList<>();
+      for (int i = 0; i < 4; i++) {
+        String path = i + "/" + StringUtils.repeat(UUID.randomUUID().toString(), 80);
+        paths.add(path);
+        purger.purge(path);
+      }
+      // the first three paths don't fit into a single BAN
+      assertEquals(3, purger.getQueueSize());
+
+      // merged BANs are not merged again, so the caller waits
+      Thread blocked = new Thread(() -> purger.purge("f"));
+      blocked.start();
+      blocked.join(200);
+      assertTrue(blocked.isAlive());
+
+      recorder.release.countDown();
+      blocked.join();
+      purger.flush();
+      assertEquals("PURGE a", recorder.calls.get(0));
+      assertEquals("PURGE f", recorder.calls.get(recorder.calls.size() - 1));
+      List<String> bans = recorder.calls.subList(1, recorder.calls.size() - 1);
+      for (String ban : bans) {
+        assertTrue(ban.length() <= "BAN ".length() + BanRegexBuilder.DEFAULT_MAX_BYTES);
+      }
+      for (String path : paths) {
+        assertTrue(
+            bans.stream()
+                .anyMatch(
+                    call ->
+                        call.equals("PURGE " + path)
+                            || Pattern.compile(call.substring(4)).matcher(path).find()),
+            path);
+      }
+    }
+  }
+
+  @Test
+  public void testAsyncDropOldest() throws Exception {
+    RecordingPurger recorder = new RecordingPurger();
+    AsyncVarnishPurger purger =
+        new AsyncVarnishPurger(recorder, 1, 2, AsyncVarnishPurger.OverflowPolicy.DROP_OLDEST);
+    purger.purge("a");
+    recorder.started.await();
+    purger.purge("b");
+    purger.purge("c");
+    purger.purge("d");
+
+    recorder.release.countDown();
+    purger.close();
+    assertEquals(Arrays.asList("PURGE a", "PURGE c", "PURGE d"), recorder.calls);
+    assertEquals(1, purger.getDroppedCount());
+    assertThrows(IllegalStateException.class, () -> purger.purge("e"));
+  }
+
+  @Test
+  public void testCluster() {
+    MockClusterClient client = new MockClusterClient();
+    List<URI> nodes =
+        Arrays.asList(
+            URI.create("http://varnish1:6081"),
+            URI.create("http://varnish2:6081/"),
+            URI.create("http://down:6081"));
+    try (ClusterVarnishPurger purger =
+        new ClusterVarnishPurger(client, URI.create(API_BASEURL), nodes)) {
+      List<ClusterVarnishPurger.NodeResult> results = purger.purgeNodes("/occurrence/15");
+      assertEquals(3, results.size());
+      assertTrue(results.get(0).isSuccess());
+      assertTrue(results.get(1).isSuccess());
+      assertFalse(results.get(2).isSuccess());
+      assertEquals(-1, results.get(2).getStatusCode());
+      assertTrue(results.get(2).getException() instanceof ConnectException);
+
+      purger.ban("directory/*");
+    }
+
+    Collections.sort(client.requests);
+    assertEquals(
+        Arrays.asList(
+            "varnish1:6081 BAN /v1/ Host: api.gbif-dev.org /v1/directory/*",
+            "varnish1:6081 PURGE /v1/occurrence/15 Host: api.gbif-dev.org",
+            "varnish2:6081 BAN /v1/ Host: api.gbif-dev.org /v1/directory/*",
+            "varnish2:6081 PURGE /v1/occurrence/15 Host: api.gbif-dev.org"),
+        client.requests);
+  }
+
+  @Test
+  public void testJournalRetries(@TempDir File dir) throws Exception {
+    FlakyPurger flaky = new FlakyPurger(3);
+    try (JournaledVarnishPurger purger =
+        new JournaledVarnishPurger(flaky, new File(dir, "journal"), 5, 10, 50)) {
+      purger.purge("occurrence/1");
+      purger.ban("directory/.*\nx");
+      awaitPending(purger);
+
+      assertEquals(0, purger.getPendingCount());
+      assertEquals(2, purger.getAcknowledgedCount());
+      assertEquals(3, purger.getRetryCount());
+      // retries are jittered, so the order may change
+      Collections.sort(flaky.acknowledged);
+      assertEquals(Arrays.asList("BAN directory/.*\nx", "PURGE occurrence/1"), flaky.acknowledged);
+    }
+  }
+
+  @Test
+  public void testJournalReplay(@TempDir File dir) throws Exception {
+    File journal = new File(dir, "journal");
+    FlakyPurger down = new FlakyPurger(Integer.MAX_VALUE);
+    try (JournaledVarnishPurger purger =
+        new JournaledVarnishPurger(down, journal, 5, 60_000, 60_000)) {
+      purger.purge("occurrence/1");
+      purger.ban("line\nbreak");
+      for (int i = 0; i < 500 && purger.getRetryCount() < 2; i++) {
+        Thread.sleep(10);
+      }
+    }
+    // a torn record of a crashed append
+    byte[] torn = "+99 Poccurrence/2".getBytes(StandardCharsets.UTF_8);
+    Files.write(journal.toPath(), torn, StandardOpenOption.APPEND);
+
+    FlakyPurger recovered = new FlakyPurger(0);
+    try (JournaledVarnishPurger purger =
+        new JournaledVarnishPurger(recovered, journal, 5, 10, 50)) {
+      awaitPending(purger);
+      assertEquals(0, purger.getPendingCount());
+      assertEquals(Arrays.asList("PURGE occurrence/1", "BAN line\nbreak"), recovered.acknowledged);
+    }
+  }
+
+  @Test
+  public void testPurgeKeys() {
+    MockCloseableHttpClientTest mockHttClient = new MockCloseableHttpClientTest();
+    VarnishPurger purger = new VarnishPurger(mockHttClient, URI.create(API_BASEURL));
+
+    assertTrue(purger.purgeKeys(Arrays.asList("dataset-1", 42, "dataset-1")));
+    assertEquals(API_BASEURL, mockHttClient.getUri());
+    assertEquals("dataset-1 42", mockHttClient.getFirstHeaderValue(HttpXkeyPurge.XKEY_HEADER));
+
+    assertEquals(
+        Arrays.asList("aaa bbb", "ccc"),
+        VarnishPurger.keyBatches(Arrays.asList("aaa", "bbb", "ccc"), 8));
+    assertThrows(IllegalArgumentException.class, () -> purger.purgeKeys(Arrays.asList("two keys")));
+  }
 }